@@ -20,6 +20,7 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Build.VERSION_CODES;
 import androidx.annotation.RequiresApi;
+import com.afwsamples.testdpc.mdm.InventoryIndex;
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 
@@ -49,15 +50,19 @@ public class DeviceAdminService extends android.app.admin.DeviceAdminService {
     IntentFilter intentFilter = new IntentFilter();
     intentFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
     intentFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+    intentFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+    intentFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
     intentFilter.addDataScheme("package");
     mPackageChangedReceiver = new PackageMonitorReceiver();
     getApplicationContext().registerReceiver(mPackageChangedReceiver, intentFilter);
+    InventoryIndex.setLive(true);
   }
 
   private void unregisterPackageChangesReceiver() {
     if (mPackageChangedReceiver != null) {
       getApplicationContext().unregisterReceiver(mPackageChangedReceiver);
       mPackageChangedReceiver = null;
+      InventoryIndex.setLive(false);
     }
   }
 
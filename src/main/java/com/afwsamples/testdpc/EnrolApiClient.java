@@ -9,17 +9,11 @@ import android.util.Log;
 import android.widget.Toast;
 import com.afwsamples.testdpc.common.Util;
 import com.afwsamples.testdpc.mdm.FcmPushManager;
+import com.afwsamples.testdpc.mdm.HttpTransport;
 import com.afwsamples.testdpc.mdm.MqttCredentialRefresher;
-import java.io.BufferedReader;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.security.cert.Certificate;
 import org.json.JSONObject;
-import javax.net.ssl.HttpsURLConnection;
 
 /** Fire-and-forget client that posts the saved enrol token to the Qubit endpoint. */
 public class EnrolApiClient {
@@ -104,7 +98,6 @@ public class EnrolApiClient {
             + ENROL_URL
             + " tokenPresent="
             + (enrolToken != null));
-    HttpURLConnection conn = null;
     try {
       JSONObject body = new JSONObject();
       body.put("enrol_token", enrolToken);
@@ -115,39 +108,25 @@ public class EnrolApiClient {
       body.put("device_manufacturer", Build.MANUFACTURER);
       byte[] payload = body.toString().getBytes(StandardCharsets.UTF_8);
 
-      URL url = new URL(ENROL_URL);
-      conn = (HttpURLConnection) url.openConnection();
-      conn.setRequestMethod("POST");
-      conn.setConnectTimeout(15000);
-      conn.setReadTimeout(15000);
-      conn.setDoOutput(true);
-      conn.setRequestProperty("Content-Type", "application/json; charset=utf-8");
-      conn.setFixedLengthStreamingMode(payload.length);
+      HttpTransport.Response response =
+          HttpTransport.execute(
+              new HttpTransport.Request("POST /enrol", ENROL_URL)
+                  .method("POST")
+                  .json(payload)
+                  .captureCertificates());
 
-      OutputStream os = conn.getOutputStream();
-      os.write(payload);
-      os.flush();
-      os.close();
-
-      if (conn instanceof HttpsURLConnection) {
-        try {
-          Certificate[] certs = ((HttpsURLConnection) conn).getServerCertificates();
-          if (certs != null && certs.length > 0) {
-            StringBuilder sb = new StringBuilder("EnrolApi server certs reqId=" + result.requestId + ": ");
-            for (Certificate c : certs) {
-              sb.append(c.getType()).append(";");
-            }
-            Log.i("EnrolApiClient", sb.toString());
-            FileLogger.log(appContext, sb.toString());
-          }
-        } catch (Exception certEx) {
-          Log.w("EnrolApiClient", "EnrolApi cert info failed reqId=" + result.requestId, certEx);
-          FileLogger.log(appContext, "EnrolApi cert info failed: " + certEx);
+      Certificate[] certs = response.certificates;
+      if (certs != null && certs.length > 0) {
+        StringBuilder sb = new StringBuilder("EnrolApi server certs reqId=" + result.requestId + ": ");
+        for (Certificate c : certs) {
+          sb.append(c.getType()).append(";");
         }
+        Log.i("EnrolApiClient", sb.toString());
+        FileLogger.log(appContext, sb.toString());
       }
 
-      result.responseCode = conn.getResponseCode();
-      result.responseBody = readResponse(conn, result.responseCode);
+      result.responseCode = response.code;
+      result.responseBody = response.body;
       if (result.responseCode >= 200 && result.responseCode < 300 && result.responseBody != null) {
         JSONObject json = new JSONObject(result.responseBody);
         EnrolState state = new EnrolState(appContext);
@@ -175,31 +154,7 @@ public class EnrolApiClient {
     } catch (Exception e) {
       result.errorMessage = e.getClass().getName() + ": " + e.getMessage();
       FileLogger.log(appContext, "EnrolApi error reqId=" + result.requestId + " " + result.errorMessage);
-    } finally {
-      if (conn != null) {
-        conn.disconnect();
-      }
     }
     return result;
   }
-
-  private static String readResponse(HttpURLConnection conn, int responseCode) {
-    InputStream is = null;
-    try {
-      is = responseCode >= 200 && responseCode < 300 ? conn.getInputStream() : conn.getErrorStream();
-      if (is == null) {
-        return null;
-      }
-      BufferedReader reader = new BufferedReader(new InputStreamReader(is));
-      StringBuilder sb = new StringBuilder();
-      String line;
-      while ((line = reader.readLine()) != null) {
-        sb.append(line);
-      }
-      reader.close();
-      return sb.toString();
-    } catch (Exception e) {
-      return null;
-    }
-  }
 }
@@ -0,0 +1,364 @@
+package com.afwsamples.testdpc;
+
+import android.content.Context;
+import androidx.annotation.VisibleForTesting;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UTFDataFormatException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Append-only journal of structured diagnostic events, next to the free-text {@link FileLogger}.
+ *
+ * <p>Each record is {@code int length} followed by {@code long timeMs}, the type, the request ID
+ * and {@code short count} key/value pairs, strings in modified UTF-8. An in-memory index of every
+ * record's offset, time and request ID is rebuilt from record headers on first use, so a query for
+ * one request or one time range reads only the matching records. The journal keeps two
+ * generations of at most {@link #MAX_FILE_BYTES} each.
+ *
+ * <p>{@link #record} only encodes on the caller's thread; the write runs on the {@link FileLogger}
+ * writer thread. Queries flush that thread first, so they see every event recorded before them.
+ */
+public final class EventJournal {
+
+  private static final String FILE_NAME = "event_journal.bin";
+  private static final String OLD_FILE_NAME = "event_journal.old.bin";
+  private static final int MAX_FILE_BYTES = 2 * 1024 * 1024;
+  private static final int MAX_RECORD_BYTES = 64 * 1024;
+  private static final long QUERY_FLUSH_MS = 1000;
+
+  private static final Object LOCK = new Object();
+  private static Generation sCurrent;
+  private static Generation sOld;
+
+  private EventJournal() {}
+
+  /** A decoded event. */
+  public static final class Event {
+    public final long timeMs;
+    public final String type;
+    public final String requestId;
+    public final Map<String, String> fields;
+
+    Event(long timeMs, String type, String requestId, Map<String, String> fields) {
+      this.timeMs = timeMs;
+      this.type = type;
+      this.requestId = requestId;
+      this.fields = fields;
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder sb =
+          new StringBuilder(
+              new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US).format(new Date(timeMs)));
+      sb.append(' ').append(type);
+      if (!requestId.isEmpty()) {
+        sb.append(" reqId=").append(requestId);
+      }
+      for (Map.Entry<String, String> e : fields.entrySet()) {
+        sb.append(' ').append(e.getKey()).append('=').append(e.getValue());
+      }
+      return sb.toString();
+    }
+  }
+
+  /**
+   * Queues an event for appending. {@code keyValues} alternates keys and values; values are stored
+   * with {@link String#valueOf}.
+   */
+  public static void record(Context context, String type, String requestId, Object... keyValues) {
+    if (context == null || type == null) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    String id = requestId != null ? requestId : "";
+    byte[] record;
+    try {
+      record = encode(now, type, id, keyValues);
+    } catch (IOException e) {
+      return;
+    }
+    Context app = context.getApplicationContext();
+    FileLogger.post(app, () -> append(app, record, now, id));
+  }
+
+  private static void append(Context context, byte[] record, long now, String id) {
+    synchronized (LOCK) {
+      try {
+        load(context);
+        if (sCurrent.length + record.length > MAX_FILE_BYTES) {
+          roll(context);
+        }
+        sCurrent.append(record, now, id);
+      } catch (IOException e) {
+        FileLogger.log(context, "EventJournal append failed: " + e.getMessage());
+      }
+    }
+  }
+
+  /** Returns the events of one request, oldest first. */
+  public static List<Event> forRequest(Context context, String requestId) {
+    List<Event> out = new ArrayList<>();
+    if (requestId == null) {
+      return out;
+    }
+    FileLogger.flush(QUERY_FLUSH_MS);
+    synchronized (LOCK) {
+      try {
+        load(context);
+        for (Generation g : generations()) {
+          g.read(g.byRequest.get(requestId), out);
+        }
+      } catch (IOException e) {
+        FileLogger.log(context, "EventJournal query failed: " + e.getMessage());
+      }
+    }
+    return out;
+  }
+
+  /** Returns the events with {@code fromMs <= time < toMs}, in journal order. */
+  public static List<Event> between(Context context, long fromMs, long toMs) {
+    List<Event> out = new ArrayList<>();
+    FileLogger.flush(QUERY_FLUSH_MS);
+    synchronized (LOCK) {
+      try {
+        load(context);
+        for (Generation g : generations()) {
+          List<Integer> hits = new ArrayList<>();
+          for (int i = 0; i < g.count; i++) {
+            if (g.times[i] >= fromMs && g.times[i] < toMs) {
+              hits.add(i);
+            }
+          }
+          g.read(hits, out);
+        }
+      } catch (IOException e) {
+        FileLogger.log(context, "EventJournal query failed: " + e.getMessage());
+      }
+    }
+    return out;
+  }
+
+  /** Closes both generations, so the next call rescans the files as after a restart. */
+  @VisibleForTesting
+  static void resetForTesting() {
+    synchronized (LOCK) {
+      if (sOld != null) {
+        sOld.close();
+      }
+      if (sCurrent != null) {
+        sCurrent.close();
+      }
+      sOld = null;
+      sCurrent = null;
+    }
+  }
+
+  private static List<Generation> generations() {
+    List<Generation> list = new ArrayList<>(2);
+    if (sOld != null) {
+      list.add(sOld);
+    }
+    list.add(sCurrent);
+    return list;
+  }
+
+  private static void load(Context context) throws IOException {
+    if (sCurrent != null) {
+      return;
+    }
+    File dir = context.getApplicationContext().getFilesDir();
+    File old = new File(dir, OLD_FILE_NAME);
+    sOld = old.isFile() ? Generation.scan(old) : null;
+    sCurrent = Generation.scan(new File(dir, FILE_NAME));
+  }
+
+  private static void roll(Context context) throws IOException {
+    File dir = context.getApplicationContext().getFilesDir();
+    File old = new File(dir, OLD_FILE_NAME);
+    if (sOld != null) {
+      sOld.close();
+    }
+    //noinspection ResultOfMethodCallIgnored
+    old.delete();
+    if (!sCurrent.file.renameTo(old)) {
+      throw new IOException("roll failed");
+    }
+    // the open handle follows the renamed file
+    sOld = sCurrent;
+    sOld.file = old;
+    sCurrent = Generation.scan(new File(dir, FILE_NAME));
+  }
+
+  private static byte[] encode(long timeMs, String type, String requestId, Object[] keyValues)
+      throws IOException {
+    ByteArrayOutputStream buf = new ByteArrayOutputStream(128);
+    DataOutputStream out = new DataOutputStream(buf);
+    out.writeInt(0); // length, patched below
+    out.writeLong(timeMs);
+    out.writeUTF(type);
+    out.writeUTF(requestId);
+    int pairs = keyValues != null ? keyValues.length / 2 : 0;
+    out.writeShort(pairs);
+    for (int i = 0; i < pairs; i++) {
+      out.writeUTF(String.valueOf(keyValues[2 * i]));
+      out.writeUTF(truncate(String.valueOf(keyValues[2 * i + 1])));
+    }
+    byte[] record = buf.toByteArray();
+    int length = record.length - 4;
+    if (length > MAX_RECORD_BYTES) {
+      throw new IOException("record too large");
+    }
+    record[0] = (byte) (length >>> 24);
+    record[1] = (byte) (length >>> 16);
+    record[2] = (byte) (length >>> 8);
+    record[3] = (byte) length;
+    return record;
+  }
+
+  private static String truncate(String value) {
+    // writeUTF is limited to 65535 encoded bytes
+    return value.length() > 4096 ? value.substring(0, 4096) + "..." : value;
+  }
+
+  /** One journal file and its index. */
+  private static final class Generation {
+    File file;
+    RandomAccessFile raf;
+    long length;
+    int count;
+    long[] offsets = new long[256];
+    long[] times = new long[256];
+    final Map<String, List<Integer>> byRequest = new HashMap<>();
+
+    /** Indexes {@code file} by reading record headers; a torn last record is cut off. */
+    static Generation scan(File file) throws IOException {
+      Generation g = new Generation();
+      g.file = file;
+      long valid = 0;
+      try (DataInputStream in =
+          new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+        long fileLength = file.length();
+        while (valid + 4 <= fileLength) {
+          int length = in.readInt();
+          if (length < 8 || length > MAX_RECORD_BYTES || valid + 4 + length > fileLength) {
+            break;
+          }
+          long time = in.readLong();
+          String type = in.readUTF();
+          String requestId = in.readUTF();
+          int headerBytes = 8 + utfLength(type) + utfLength(requestId);
+          skipFully(in, length - headerBytes);
+          g.index(valid, time, requestId);
+          valid += 4 + length;
+        }
+      } catch (FileNotFoundException e) {
+        // new journal
+      } catch (EOFException | UTFDataFormatException e) {
+        // torn or corrupt tail; everything before it stays readable
+      }
+      g.raf = new RandomAccessFile(file, "rw");
+      if (valid < g.raf.length()) {
+        g.raf.setLength(valid);
+      }
+      g.length = valid;
+      return g;
+    }
+
+    void append(byte[] record, long time, String requestId) throws IOException {
+      raf.seek(length);
+      raf.write(record);
+      index(length, time, requestId);
+      length += record.length;
+    }
+
+    void close() {
+      try {
+        raf.close();
+      } catch (IOException ignore) {
+        // nothing left to do
+      }
+    }
+
+    private void index(long offset, long time, String requestId) {
+      if (count == offsets.length) {
+        offsets = Arrays.copyOf(offsets, count * 2);
+        times = Arrays.copyOf(times, count * 2);
+      }
+      offsets[count] = offset;
+      times[count] = time;
+      if (!requestId.isEmpty()) {
+        List<Integer> list = byRequest.get(requestId);
+        if (list == null) {
+          list = new ArrayList<>();
+          byRequest.put(requestId, list);
+        }
+        list.add(count);
+      }
+      count++;
+    }
+
+    void read(List<Integer> records, List<Event> out) throws IOException {
+      if (records == null || records.isEmpty()) {
+        return;
+      }
+      for (int i : records) {
+        raf.seek(offsets[i]);
+        byte[] data = new byte[raf.readInt()];
+        raf.readFully(data);
+        out.add(decode(new DataInputStream(new ByteArrayInputStream(data))));
+      }
+    }
+
+    private static Event decode(DataInputStream in) throws IOException {
+      long time = in.readLong();
+      String type = in.readUTF();
+      String requestId = in.readUTF();
+      int pairs = in.readUnsignedShort();
+      Map<String, String> fields = new LinkedHashMap<>();
+      for (int i = 0; i < pairs; i++) {
+        fields.put(in.readUTF(), in.readUTF());
+      }
+      return new Event(time, type, requestId, Collections.unmodifiableMap(fields));
+    }
+
+    private static int utfLength(String s) {
+      int n = 2;
+      for (int i = 0; i < s.length(); i++) {
+        char c = s.charAt(i);
+        n += (c >= 0x0001 && c <= 0x007f) ? 1 : c <= 0x07ff ? 2 : 3;
+      }
+      return n;
+    }
+
+    private static void skipFully(InputStream in, long n) throws IOException {
+      while (n > 0) {
+        long skipped = in.skip(n);
+        if (skipped <= 0) {
+          throw new EOFException();
+        }
+        n -= skipped;
+      }
+    }
+  }
+}
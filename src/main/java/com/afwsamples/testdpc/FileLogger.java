@@ -1,52 +1,478 @@
 package com.afwsamples.testdpc;
 
 import android.content.Context;
+import android.util.Log;
+import androidx.annotation.VisibleForTesting;
+import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Simple file logger that appends messages to an internal file.
+ *
+ * <p>{@link #log} only stamps the line and puts it into a lock-free ring buffer. A single
+ * background thread drains the buffer into one long-lived writer and flushes once per drained
+ * batch, so bursts of lines share one write. If the buffer is full the line is dropped and
+ * counted rather than blocking the caller.
+ *
+ * <p>The file is rotated by size and age into gzipped {@code provision_log-<time>.txt.gz} files
+ * kept within a byte budget; {@link #tail} reads recent lines without scanning everything.
  */
 public final class FileLogger {
 
+  private static final String TAG = "FileLogger";
   private static final String LOG_FILE_NAME = "provision_log.txt";
+  private static final int CAPACITY = 4096; // power of two
+  private static final int MASK = CAPACITY - 1;
+  private static final String ROLLED_PREFIX = "provision_log-";
+  private static final long MAX_FILE_BYTES = 1024L * 1024L;
+  private static final long MAX_FILE_AGE_MS = TimeUnit.DAYS.toMillis(1);
+  /** Active plus rolled files. */
+  private static final long BUDGET_BYTES = 8L * 1024L * 1024L;
+  private static final int TIMESTAMP_LENGTH = "yyyy-MM-dd HH:mm:ss.SSS".length();
+  private static final int MAX_BATCH_CHARS = 64 * 1024;
+  private static final long IDLE_PARK_NS = TimeUnit.SECONDS.toNanos(1);
+
+  private static final AtomicReferenceArray<Entry> SLOTS = new AtomicReferenceArray<>(CAPACITY);
+  /** Next sequence a producer claims. */
+  private static final AtomicLong TAIL = new AtomicLong();
+  /** Next sequence the writer reads; only the writer thread advances it. */
+  private static volatile long head;
+  /** Sequences below this are in the file. */
+  private static volatile long written;
+
+  private static final AtomicLong DROPPED = new AtomicLong();
+  private static final AtomicBoolean PARKED = new AtomicBoolean();
+  private static final Object FLUSH_LOCK = new Object();
+  private static volatile Thread writerThread;
+  private static volatile File logFile;
 
   private FileLogger() {
     // no instances
   }
 
+  /** A line to write, or a task to run on the writer thread. */
+  private static final class Entry {
+    final long timeMs;
+    final String message;
+    final Runnable task;
+
+    Entry(long timeMs, String message, Runnable task) {
+      this.timeMs = timeMs;
+      this.message = message;
+      this.task = task;
+    }
+  }
+
   public static void log(Context context, String message) {
     if (context == null || message == null) {
       return;
     }
+    enqueue(context, new Entry(System.currentTimeMillis(), message, null));
+  }
+
+  /**
+   * Runs {@code task} on the writer thread, in order with the lines logged around it, so other
+   * diagnostic files get the same off-thread writes. Dropped like a line when the buffer is full;
+   * {@link #flush} also waits for posted tasks.
+   */
+  static void post(Context context, Runnable task) {
+    if (context == null || task == null) {
+      return;
+    }
+    enqueue(context, new Entry(System.currentTimeMillis(), null, task));
+  }
+
+  private static void enqueue(Context context, Entry entry) {
+    if (writerThread == null) {
+      start(context);
+    }
+    while (true) {
+      long t = TAIL.get();
+      if (t - head >= CAPACITY) {
+        DROPPED.incrementAndGet();
+        return;
+      }
+      if (TAIL.compareAndSet(t, t + 1)) {
+        SLOTS.set((int) (t & MASK), entry);
+        break;
+      }
+    }
+    if (PARKED.get() && PARKED.compareAndSet(true, false)) {
+      LockSupport.unpark(writerThread);
+    }
+  }
+
+  /**
+   * Blocks until every line logged before this call is written to the file, or {@code timeoutMs}
+   * passed. Use before reading the file or when the process is about to die.
+   */
+  public static void flush(long timeoutMs) {
+    Thread writer = writerThread;
+    if (writer == null) {
+      return;
+    }
+    long target = TAIL.get();
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    synchronized (FLUSH_LOCK) {
+      while (written < target) {
+        long left = deadline - System.currentTimeMillis();
+        if (left <= 0) {
+          return;
+        }
+        LockSupport.unpark(writer);
+        try {
+          FLUSH_LOCK.wait(Math.min(left, 50));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes pending lines, then points the writer at {@code context}'s files directory, as after a
+   * restart with a fresh data directory.
+   */
+  @VisibleForTesting
+  static synchronized void resetForTesting(Context context) {
+    flush(1000);
+    DROPPED.set(0);
+    logFile = new File(context.getApplicationContext().getFilesDir(), LOG_FILE_NAME);
+  }
+
+  private static synchronized void start(Context context) {
+    if (writerThread != null) {
+      return;
+    }
+    logFile = new File(context.getApplicationContext().getFilesDir(), LOG_FILE_NAME);
+    Thread t = new Thread(FileLogger::drainLoop, "FileLogger");
+    t.setDaemon(true);
+    t.setPriority(Thread.MIN_PRIORITY);
+    writerThread = t;
+    t.start();
+  }
+
+  private static void drainLoop() {
+    Formatter formatter = new Formatter();
+    Segment out = new Segment();
+    StringBuilder line = new StringBuilder(256);
+    while (true) {
+      long h = head;
+      Entry e = SLOTS.get((int) (h & MASK));
+      if (e == null) {
+        if (h != TAIL.get()) {
+          // a producer claimed the slot but has not published it yet
+          Thread.yield();
+          continue;
+        }
+        commit(out, formatter, line);
+        PARKED.set(true);
+        if (head == TAIL.get()) {
+          LockSupport.parkNanos(IDLE_PARK_NS);
+        }
+        PARKED.set(false);
+        continue;
+      }
+      SLOTS.set((int) (h & MASK), null);
+      head = h + 1;
+      if (e.task != null) {
+        try {
+          e.task.run();
+        } catch (RuntimeException ex) {
+          Log.w(TAG, "posted task failed", ex);
+        }
+        continue;
+      }
+      formatter.append(line, e.timeMs).append(' ').append(e.message).append('\n');
+      if (line.length() >= MAX_BATCH_CHARS) {
+        commit(out, formatter, line);
+      }
+    }
+  }
 
-    File dir = context.getFilesDir();
-    File logFile = new File(dir, LOG_FILE_NAME);
+  /** Writes the batch in {@code line} with one write and wakes {@link #flush} callers. */
+  private static void commit(Segment out, Formatter formatter, StringBuilder line) {
+    long dropped = DROPPED.getAndSet(0);
+    if (dropped > 0) {
+      formatter
+          .append(line, System.currentTimeMillis())
+          .append(" FileLogger dropped ")
+          .append(dropped)
+          .append(" entries\n");
+    }
+    if (line.length() > 0) {
+      byte[] data = line.toString().getBytes(StandardCharsets.UTF_8);
+      line.setLength(0);
+      try {
+        out.write(data);
+      } catch (IOException ex) {
+        Log.w(TAG, "log write failed, dropping " + data.length + " bytes", ex);
+        out.close();
+      }
+    }
+    written = head;
+    synchronized (FLUSH_LOCK) {
+      FLUSH_LOCK.notifyAll();
+    }
+  }
 
-    String line = getTimestamp() + " " + message;
+  /**
+   * The active log file. Once it exceeds {@link #MAX_FILE_BYTES} or is older than {@link
+   * #MAX_FILE_AGE_MS} it is renamed, gzipped, and the oldest rolled files are deleted until all
+   * files fit {@link #BUDGET_BYTES}. Only the writer thread touches it.
+   */
+  private static final class Segment {
+    private FileOutputStream stream;
+    private File file;
+    private long size;
+    private long startedMs;
 
-    PrintWriter pw = null;
+    void write(byte[] data) throws IOException {
+      if (file != logFile) {
+        close();
+      }
+      if (stream == null) {
+        open();
+      }
+      long now = System.currentTimeMillis();
+      if (size > 0
+          && (size + data.length > MAX_FILE_BYTES || now - startedMs > MAX_FILE_AGE_MS)) {
+        close();
+        roll();
+        open();
+      }
+      stream.write(data);
+      size += data.length;
+    }
+
+    void close() {
+      if (stream == null) {
+        return;
+      }
+      try {
+        stream.close();
+      } catch (IOException ignore) {
+        // nothing left to do
+      }
+      stream = null;
+    }
+
+    private void open() throws IOException {
+      file = logFile;
+      size = logFile.length();
+      startedMs = size > 0 ? firstLineTime(logFile) : System.currentTimeMillis();
+      stream = new FileOutputStream(logFile, true);
+    }
+
+    private void roll() {
+      File dir = logFile.getParentFile();
+      String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+      File rolled = new File(dir, ROLLED_PREFIX + stamp + ".txt");
+      for (int i = 1; rolled.exists() || new File(rolled.getPath() + ".gz").exists(); i++) {
+        rolled = new File(dir, ROLLED_PREFIX + stamp + "-" + i + ".txt");
+      }
+      if (!logFile.renameTo(rolled)) {
+        // keep appending rather than lose lines; the next batch retries
+        return;
+      }
+      File gz = new File(rolled.getPath() + ".gz");
+      try (InputStream in = new FileInputStream(rolled);
+          OutputStream zip = new GZIPOutputStream(new FileOutputStream(gz), 64 * 1024)) {
+        byte[] buf = new byte[64 * 1024];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+          zip.write(buf, 0, n);
+        }
+      } catch (IOException e) {
+        Log.w(TAG, "compressing " + rolled.getName() + " failed", e);
+        //noinspection ResultOfMethodCallIgnored
+        gz.delete();
+        return;
+      }
+      //noinspection ResultOfMethodCallIgnored
+      rolled.delete();
+      enforceBudget(dir);
+    }
+
+    private static void enforceBudget(File dir) {
+      File[] rolled = rolledFiles(dir);
+      long total = logFile.length();
+      for (File f : rolled) {
+        total += f.length();
+      }
+      // oldest first; always keep the newest rolled file
+      for (int i = 0; i < rolled.length - 1 && total > BUDGET_BYTES; i++) {
+        long len = rolled[i].length();
+        if (rolled[i].delete()) {
+          total -= len;
+        }
+      }
+    }
+
+    /** Reads the timestamp at the start of the file, or now if it cannot be parsed. */
+    private static long firstLineTime(File file) {
+      byte[] stamp = new byte[TIMESTAMP_LENGTH];
+      try (InputStream in = new FileInputStream(file)) {
+        if (in.read(stamp) == stamp.length) {
+          Date d =
+              new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US)
+                  .parse(new String(stamp, StandardCharsets.US_ASCII));
+          if (d != null) {
+            return d.getTime();
+          }
+        }
+      } catch (IOException | ParseException ignore) {
+        // fall through
+      }
+      return System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * Returns the last {@code n} lines, oldest first. The active file is read backwards from its
+   * end; older lines come from the newest rolled files when needed. Lines logged before the call
+   * are flushed first.
+   */
+  public static List<String> tail(Context context, int n) {
+    List<String> lines = new ArrayList<>();
+    if (context == null || n <= 0) {
+      return lines;
+    }
+    flush(1000);
+    File active = new File(context.getApplicationContext().getFilesDir(), LOG_FILE_NAME);
     try {
-      FileWriter fw = new FileWriter(logFile, true);
-      pw = new PrintWriter(fw);
-      pw.println(line);
-      pw.flush();
+      tailActive(active, n, lines);
+      if (lines.size() < n) {
+        File[] rolled = rolledFiles(active.getParentFile());
+        for (int i = rolled.length - 1; i >= 0 && lines.size() < n; i--) {
+          lines.addAll(0, tailGzip(rolled[i], n - lines.size()));
+        }
+      }
     } catch (IOException e) {
-      e.printStackTrace();
-    } finally {
-      if (pw != null) {
-        pw.close();
+      Log.w(TAG, "reading log tail failed", e);
+    }
+    return lines;
+  }
+
+  /** Scans {@code file} backwards in blocks until {@code n} complete lines are found. */
+  private static void tailActive(File file, int n, List<String> out) throws IOException {
+    if (!file.isFile()) {
+      return;
+    }
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      long end = raf.length();
+      long pos = end;
+      byte[] block = new byte[8192];
+      int newlines = 0;
+      long start = 0;
+      scan:
+      while (pos > 0) {
+        int len = (int) Math.min(block.length, pos);
+        pos -= len;
+        raf.seek(pos);
+        raf.readFully(block, 0, len);
+        for (int i = len - 1; i >= 0; i--) {
+          // the newline that ends the last line does not start a new one
+          if (block[i] == '\n' && pos + i != end - 1 && ++newlines == n) {
+            start = pos + i + 1;
+            break scan;
+          }
+        }
+      }
+      byte[] data = new byte[(int) (end - start)];
+      raf.seek(start);
+      raf.readFully(data);
+      String text = new String(data, StandardCharsets.UTF_8);
+      for (String line : text.split("\n")) {
+        if (!line.isEmpty()) {
+          out.add(line);
+        }
+      }
+    }
+  }
+
+  /** A gzip stream cannot be read backwards; rolled files are bounded, so stream it. */
+  private static List<String> tailGzip(File file, int n) throws IOException {
+    ArrayDeque<String> last = new ArrayDeque<>(n);
+    try (BufferedReader reader =
+        new BufferedReader(
+            new InputStreamReader(
+                new GZIPInputStream(new FileInputStream(file)), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (last.size() == n) {
+          last.removeFirst();
+        }
+        last.addLast(line);
       }
     }
+    return new ArrayList<>(last);
   }
 
-  private static String getTimestamp() {
-    SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
-    return sdf.format(new Date());
+  private static String rollKey(File f) {
+    String name = f.getName();
+    return name.substring(0, name.length() - ".txt.gz".length());
+  }
+
+  /** Rolled files in {@code dir}, oldest first. */
+  private static File[] rolledFiles(File dir) {
+    File[] files =
+        dir.listFiles((d, name) -> name.startsWith(ROLLED_PREFIX) && name.endsWith(".gz"));
+    if (files == null) {
+      return new File[0];
+    }
+    // "<time>.txt.gz" must sort before "<time>-1.txt.gz", so compare without the extension
+    Arrays.sort(files, (a, b) -> rollKey(a).compareTo(rollKey(b)));
+    return files;
+  }
+
+  /** Formats timestamps, reusing the date-time prefix while the second has not changed. */
+  private static final class Formatter {
+    private final SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+    private final Date date = new Date();
+    private long cachedSecond = Long.MIN_VALUE;
+    private String cachedPrefix;
+
+    StringBuilder append(StringBuilder sb, long timeMs) {
+      long second = Math.floorDiv(timeMs, 1000L);
+      if (second != cachedSecond) {
+        date.setTime(timeMs);
+        cachedPrefix = sdf.format(date);
+        cachedSecond = second;
+      }
+      int millis = (int) Math.floorMod(timeMs, 1000L);
+      sb.append(cachedPrefix).append('.');
+      if (millis < 100) {
+        sb.append('0');
+      }
+      if (millis < 10) {
+        sb.append('0');
+      }
+      return sb.append(millis);
+    }
   }
 }
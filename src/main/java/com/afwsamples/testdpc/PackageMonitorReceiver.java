@@ -8,6 +8,7 @@ import android.content.Intent;
 import android.text.TextUtils;
 import androidx.core.app.NotificationCompat;
 import com.afwsamples.testdpc.common.NotificationUtil;
+import com.afwsamples.testdpc.mdm.InventoryIndex;
 
 public class PackageMonitorReceiver extends BroadcastReceiver {
   private static final String TAG = "PackageMonitorReceiver";
@@ -16,14 +17,15 @@ public class PackageMonitorReceiver extends BroadcastReceiver {
   @Override
   public void onReceive(Context context, Intent intent) {
     String action = intent.getAction();
-    if (!Intent.ACTION_PACKAGE_ADDED.equals(action)
-        && !Intent.ACTION_PACKAGE_REMOVED.equals(action)) {
-      return;
-    }
     String packageName = getPackageNameFromIntent(intent);
     if (TextUtils.isEmpty(packageName)) {
       return;
     }
+    InventoryIndex.onPackageEvent(action, packageName);
+    if (!Intent.ACTION_PACKAGE_ADDED.equals(action)
+        && !Intent.ACTION_PACKAGE_REMOVED.equals(action)) {
+      return;
+    }
     boolean replacing = intent.getBooleanExtra(Intent.EXTRA_REPLACING, false);
     if (replacing) {
       return;
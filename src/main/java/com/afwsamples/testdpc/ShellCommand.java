@@ -44,6 +44,8 @@ import android.util.Log;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import com.afwsamples.testdpc.common.Util;
+import com.afwsamples.testdpc.lite.WakeLocks;
+import com.afwsamples.testdpc.mdm.SyncStats;
 import com.afwsamples.testdpc.policy.SecurityLogsFragment;
 import com.afwsamples.testdpc.policy.resetpassword.ResetPasswordWithTokenFragment;
 import com.afwsamples.testdpc.util.flags.Flags;
@@ -605,6 +607,22 @@ final class ShellCommand {
         command("clear-password", this::clearPassword)
             .setDescription("Resets password to an empty one. Requires an active token"));
 
+    flags.addCommand(
+        command("mdm-trace", this::printMdmTrace, ordinalParam(String.class, "requestId"))
+            .setDescription("Prints the journaled events of one MDM sync request."));
+    flags.addCommand(
+        command("mdm-events", this::printMdmEvents, optional(namedParam(int.class, "minutes")))
+            .setDescription("Prints the journaled MDM events of the last minutes (default 10)."));
+    flags.addCommand(
+        command("mqtt-wakelocks", this::printMqttWakeLocks)
+            .setDescription("Prints how often and how long the MQTT service held wake locks."));
+    flags.addCommand(
+        command("provision-log", this::printProvisionLog, optional(namedParam(int.class, "lines")))
+            .setDescription("Prints the last lines of the provisioning log (default 100)."));
+    flags.addCommand(
+        command("mdm-stats", this::printMdmStats)
+            .setDescription("Prints the MDM sync trigger, policy fetch and HTTP counters."));
+
     // Separator for S / pre-S commands - do NOT remove line to avoid cherry-pick conflicts
 
     if (Util.isAtLeastS()) {
@@ -666,6 +684,36 @@ final class ShellCommand {
         mDevicePolicyManagerGateway.isUniqueDeviceAttestationSupported());
   }
 
+  private void printMdmTrace(String requestId) {
+    printEvents(EventJournal.forRequest(mContext, requestId));
+  }
+
+  private void printMdmEvents(Integer minutes) {
+    long now = System.currentTimeMillis();
+    long from = now - TimeUnit.MINUTES.toMillis(minutes != null && minutes > 0 ? minutes : 10);
+    printEvents(EventJournal.between(mContext, from, now + 1));
+  }
+
+  private void printMqttWakeLocks() {
+    mWriter.println(WakeLocks.snapshot());
+  }
+
+  private void printProvisionLog(Integer lines) {
+    FileLogger.tail(mContext, lines != null && lines > 0 ? lines : 100).forEach(mWriter::println);
+  }
+
+  private void printMdmStats() {
+    mWriter.println(SyncStats.snapshot());
+  }
+
+  private void printEvents(List<EventJournal.Event> events) {
+    if (events.isEmpty()) {
+      mWriter.println("No events");
+      return;
+    }
+    events.forEach((e) -> mWriter.printf("%s\n", e));
+  }
+
   private void createUser(String name, int flags) {
     Log.i(TAG, "createUser(): name=" + name + ", flags=" + flags);
     mDevicePolicyManagerGateway.createAndManageUser(
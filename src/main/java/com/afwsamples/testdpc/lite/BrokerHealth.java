@@ -0,0 +1,104 @@
+package com.afwsamples.testdpc.lite;
+
+import android.os.SystemClock;
+import com.afwsamples.testdpc.lite.LiteMqttConfig.Broker;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Connect health of each MQTT broker: an EWMA of connect latency and the failures since the last
+ * success. {@link #rank} orders brokers by a score in milliseconds, so the configured order wins
+ * unless a later broker is clearly faster or an earlier one keeps failing.
+ */
+final class BrokerHealth {
+  private static final double ALPHA = 0.3;
+  /** Score added per configured position, so order is a preference rather than a rule. */
+  private static final long POSITION_MS = 250L;
+  private static final long FAILURE_PENALTY_MS = 10_000L;
+  /** Failures older than this no longer count, so a recovered broker gets traffic again. */
+  private static final long FAILURE_MEMORY_MS = 5 * 60_000L;
+
+  private static final class Stats {
+    double ewmaMs = -1;
+    int failures;
+    long lastFailureMs;
+    long connects;
+  }
+
+  private final Map<String, Stats> stats = new HashMap<>();
+
+  synchronized void recordSuccess(Broker broker, long latencyMs) {
+    Stats s = get(broker);
+    s.ewmaMs = s.ewmaMs < 0 ? latencyMs : ALPHA * latencyMs + (1 - ALPHA) * s.ewmaMs;
+    s.failures = 0;
+    s.connects++;
+  }
+
+  synchronized void recordFailure(Broker broker) {
+    Stats s = get(broker);
+    s.failures++;
+    s.lastFailureMs = SystemClock.elapsedRealtime();
+  }
+
+  /** Returns {@code brokers} best first; equal scores keep the configured order. */
+  synchronized List<Broker> rank(List<Broker> brokers) {
+    double known = 0;
+    int knownCount = 0;
+    for (Broker b : brokers) {
+      Stats s = stats.get(b.toString());
+      if (s != null && s.ewmaMs >= 0) {
+        known += s.ewmaMs;
+        knownCount++;
+      }
+    }
+    // an untried broker is assumed to be as fast as the average of the others
+    double assumed = knownCount > 0 ? known / knownCount : 0;
+    long now = SystemClock.elapsedRealtime();
+    Map<Broker, Double> scores = new HashMap<>();
+    for (int i = 0; i < brokers.size(); i++) {
+      Broker b = brokers.get(i);
+      Stats s = stats.get(b.toString());
+      double score = i * POSITION_MS;
+      score += s != null && s.ewmaMs >= 0 ? s.ewmaMs : assumed;
+      if (s != null && now - s.lastFailureMs < FAILURE_MEMORY_MS) {
+        score += s.failures * FAILURE_PENALTY_MS;
+      }
+      scores.put(b, score);
+    }
+    List<Broker> ranked = new ArrayList<>(brokers);
+    Collections.sort(ranked, Comparator.comparingDouble(scores::get));
+    return ranked;
+  }
+
+  synchronized JSONObject snapshot() {
+    JSONObject out = new JSONObject();
+    try {
+      for (Map.Entry<String, Stats> e : stats.entrySet()) {
+        Stats s = e.getValue();
+        JSONObject entry = new JSONObject();
+        entry.put("ewma_ms", Math.round(s.ewmaMs));
+        entry.put("failures", s.failures);
+        entry.put("connects", s.connects);
+        out.put(e.getKey(), entry);
+      }
+    } catch (JSONException ignore) {
+      // best-effort
+    }
+    return out;
+  }
+
+  private Stats get(Broker broker) {
+    Stats s = stats.get(broker.toString());
+    if (s == null) {
+      s = new Stats();
+      stats.put(broker.toString(), s);
+    }
+    return s;
+  }
+}
@@ -250,7 +250,8 @@ public class LiteEntryActivity extends Activity {
           public void onReceive(Context context, Intent intent) {
             String status = intent.getStringExtra(LiteMqttService.EXTRA_STATUS);
             String error = intent.getStringExtra(LiteMqttService.EXTRA_ERROR);
-            updateMqttStatus(status, error);
+            String broker = intent.getStringExtra(LiteMqttService.EXTRA_BROKER);
+            updateMqttStatus(status, error, broker);
           }
         };
   }
@@ -269,13 +270,13 @@ public class LiteEntryActivity extends Activity {
     cfg.setTlsEnabled(mqttTlsField.isChecked());
   }
 
-  private void updateMqttStatus(String status, String error) {
+  private void updateMqttStatus(String status, String error, String broker) {
     if (!mqttUiInitialized || mqttStatusView == null) {
       return;
     }
     runOnUiThread(
         () -> {
-          mqttStatusView.setText(formatMqttStatus(status, error));
+          mqttStatusView.setText(formatMqttStatus(status, error, broker));
         });
   }
 
@@ -289,7 +290,10 @@ public class LiteEntryActivity extends Activity {
     } else {
       registerReceiver(mqttStatusReceiver, filter);
     }
-    updateMqttStatus(LiteMqttService.getLastStatus(), LiteMqttService.getLastError());
+    updateMqttStatus(
+        LiteMqttService.getLastStatus(),
+        LiteMqttService.getLastError(),
+        LiteMqttService.getLastBroker());
   }
 
   private void unregisterMqttReceiver() {
@@ -311,12 +315,13 @@ public class LiteEntryActivity extends Activity {
     }
   }
 
-  private String formatMqttStatus(String status, String error) {
+  private String formatMqttStatus(String status, String error, String broker) {
     LiteMqttConfig cfg = new LiteMqttConfig(this);
+    // the service reports the broker actually used, as host:port; before that, show the config
     String endpoint =
-        (cfg.getHost() != null ? cfg.getHost() : "host")
-            + ":"
-            + cfg.getPort()
+        (broker != null
+                ? broker
+                : (cfg.getHost() != null ? cfg.getHost() : "host") + ":" + cfg.getPort())
             + (cfg.isTlsEnabled() ? " (TLS)" : " (no TLS)");
     String detail = (error != null && !error.isEmpty()) ? " (" + error + ")" : "";
     if ("connecting".equals(status)) {
@@ -325,10 +330,10 @@ public class LiteEntryActivity extends Activity {
       return "Connected to " + endpoint;
     } else if ("reconnecting".equals(status)) {
       return "Reconnecting to " + endpoint + detail;
-    } else if ("heartbeat".equals(status)) {
-      return "Connected (heartbeat ok)";
-    } else if ("heartbeat_error".equals(status)) {
-      return "Heartbeat failed" + detail;
+    } else if ("state_published".equals(status)) {
+      return "Connected (state published)";
+    } else if ("state_error".equals(status)) {
+      return "State publish failed" + detail;
     } else if ("subscribe_error".equals(status)) {
       return "Subscribe failed" + detail;
     } else if ("subscribed".equals(status)) {
@@ -2,6 +2,8 @@ package com.afwsamples.testdpc.lite;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
 /** Stores Lite MQTT client configuration and provides defaults. */
@@ -23,6 +25,22 @@ public class LiteMqttConfig {
 
   private final SharedPreferences prefs;
 
+  /** One broker endpoint; all brokers share path, TLS setting and credentials. */
+  public static final class Broker {
+    public final String host;
+    public final int port;
+
+    Broker(String host, int port) {
+      this.host = host;
+      this.port = port;
+    }
+
+    @Override
+    public String toString() {
+      return host + ":" + port;
+    }
+  }
+
   public LiteMqttConfig(Context context) {
     this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
   }
@@ -35,6 +53,43 @@ public class LiteMqttConfig {
     prefs.edit().putString(KEY_HOST, host).apply();
   }
 
+  /**
+   * Brokers in order of preference. The host setting may list several comma-separated {@code
+   * host[:port]} entries; entries without a port use {@link #getPort}.
+   */
+  public List<Broker> getBrokers() {
+    List<Broker> brokers = new ArrayList<>();
+    for (String entry : getHost().split(",")) {
+      String item = entry.trim();
+      if (item.isEmpty()) {
+        continue;
+      }
+      int port = getPort();
+      int colon = item.lastIndexOf(':');
+      if (colon > 0 && item.indexOf(':') == colon) {
+        try {
+          port = Integer.parseInt(item.substring(colon + 1));
+          item = item.substring(0, colon);
+        } catch (NumberFormatException ignore) {
+          // not a port; keep the entry as host
+        }
+      }
+      brokers.add(new Broker(item, port));
+    }
+    if (brokers.isEmpty()) {
+      brokers.add(new Broker(DEFAULT_HOST, getPort()));
+    }
+    return brokers;
+  }
+
+  /**
+   * Everything a built client depends on. Credentials are not part of it: they are sent with each
+   * connect, so changing them needs no new client.
+   */
+  public String clientFingerprint() {
+    return getBrokers() + "|" + getPath() + "|" + isTlsEnabled() + "|" + getClientId();
+  }
+
   public int getPort() {
     return prefs.getInt(KEY_PORT, DEFAULT_PORT);
   }
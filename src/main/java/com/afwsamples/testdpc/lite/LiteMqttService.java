@@ -10,23 +10,34 @@ import android.net.Network;
 import android.net.NetworkCapabilities;
 import android.os.Build;
 import android.os.IBinder;
-import android.os.PowerManager;
+import android.os.SystemClock;
 import android.content.pm.ServiceInfo;
 import android.util.Log;
 import androidx.core.app.NotificationCompat;
 import com.afwsamples.testdpc.FileLogger;
 import com.hivemq.client.mqtt.MqttClient;
 import com.hivemq.client.mqtt.MqttClientState;
+import com.hivemq.client.mqtt.MqttClientTransportConfig;
+import com.hivemq.client.mqtt.MqttClientTransportConfigBuilder;
 import com.hivemq.client.mqtt.datatypes.MqttQos;
 import com.hivemq.client.mqtt.mqtt5.Mqtt5AsyncClient;
 import com.afwsamples.testdpc.EnrolState;
+import com.afwsamples.testdpc.mdm.DeviceState;
 import com.afwsamples.testdpc.mdm.MdmSyncManager;
 import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
 
 /**
  * Lightweight MQTT service that connects over WSS using HiveMQ MQTT 5 async client.
@@ -43,30 +54,72 @@ public class LiteMqttService extends Service {
       "com.afwsamples.testdpc.lite.action.MQTT_STATUS";
   public static final String EXTRA_STATUS = "status";
   public static final String EXTRA_ERROR = "error";
+  /** The broker of the current or last connect attempt, as {@code host:port}. */
+  public static final String EXTRA_BROKER = "broker";
 
   private static final String TAG = "LiteMqttService";
   private static final long SESSION_EXPIRY_SECONDS = 24 * 60 * 60;
   private static final int KEEP_ALIVE_SECONDS = 120;
-  private static final long HEARTBEAT_INTERVAL_SECONDS = 60L;
+  private static final long CONNECT_WAKE_MS = 30_000L;
+  private static final long SYNC_WAKE_MS = 120_000L;
+  private static final long COMMAND_WAKE_MS = 60_000L;
+  /** Installs are acked once committed; the budget covers the download at a slow link rate. */
+  private static final long INSTALL_WAKE_MIN_MS = 180_000L;
+  private static final long INSTALL_WAKE_MAX_MS = 30 * 60_000L;
+  private static final long SLOW_LINK_BYTES_PER_SECOND = 128 * 1024L;
+  private static final long PUBLISH_WAKE_MS = 15_000L;
   private static final long BOOT_VPN_TIMEOUT_MS = 60000L;
   private static final long BOOT_VPN_RETRY_MS = 5000L;
-
+  private static final long RECONNECT_BASE_MS = 2000L;
+  private static final long RECONNECT_CAP_MS = 60000L;
+  /** Network callbacks may flap; retry at most this often outside the backoff schedule. */
+  private static final long MIN_IMMEDIATE_RETRY_MS = 5000L;
+  /** Bounds each attempt so a dead broker hands over to the next one quickly. */
+  private static final long CONNECT_TIMEOUT_SECONDS = 10L;
 
   private static final String CHANNEL_ID = "lite_mqtt";
   private static final int NOTIFICATION_ID = 2002;
   private static volatile String sLastStatus = null;
   private static volatile String sLastError = null;
+  private static volatile String sLastBroker = null;
   private final ScheduledExecutorService executor =
       Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "lite-mqtt"));
   private final AtomicInteger reconnectAttempts = new AtomicInteger(0);
 
+  /** Connection states; changed only on {@link #executor}, except for {@link #stopClient}. */
+  private enum ConnState {
+    IDLE,
+    CONNECTING,
+    CONNECTED,
+    BACKOFF,
+    STOPPED
+  }
+
+  private volatile ConnState connState = ConnState.IDLE;
+  private ScheduledFuture<?> reconnectTask;
+  private long lastBackoffMs = 0L;
+  private long lastImmediateRetryMs = 0L;
+  private ConnectivityManager.NetworkCallback networkCallback;
+
+  /** The client of the broker currently used; null until the first attempt. */
   private Mqtt5AsyncClient client;
-  private ScheduledFuture<?> heartbeatTask;
+  /** One client per broker, built on first use and kept while {@link #clientsConfig} holds. */
+  private final Map<String, Mqtt5AsyncClient> clients = new HashMap<>();
+  private String clientsConfig;
+  private final BrokerHealth brokerHealth = new BrokerHealth();
+  /** Brokers of the current failover round, best first, and the one being tried. */
+  private List<LiteMqttConfig.Broker> round;
+  private int roundIndex;
+  private long connectStartMs;
+  /** Last state document the broker acknowledged; only touched on {@link #executor}. */
+  private String lastPublishedState;
+  private final MdmSyncManager.SyncCallback stateObserver =
+      (success, message) -> post(() -> publishState(false));
 
   private ScheduledFuture<?> bootVpnWaitTask;
   private long bootDeadlineMs = 0L;
-  private boolean publishHandlerRegistered = false;
-  private PowerManager.WakeLock wakeLock;
+  /** Held from the start of a connect attempt until it succeeds or fails; executor only. */
+  private WakeLocks.Lease connectLease;
 
   @Override
   public int onStartCommand(Intent intent, int flags, int startId) {
@@ -89,6 +142,8 @@ public class LiteMqttService extends Service {
   public void onDestroy() {
     stopClient();
     executor.shutdownNow();
+    // the process may be killed right after; keep the wait short since this is the main thread
+    FileLogger.flush(250);
     super.onDestroy();
   }
 
@@ -99,19 +154,38 @@ public class LiteMqttService extends Service {
 
   private void startClient() {
     ensureForeground();
-    acquireWakeLock();
-    if (client != null && client.getState() == MqttClientState.CONNECTED) {
-      broadcastStatus("connected", null);
-      logToFile("MQTT startClient: already connected");
-      return;
-    }
-    logToFile("MQTT startClient: connecting...");
-    reconnectAttempts.set(0);
-    connectWithBackoff();
+    registerNetworkCallback();
+    MdmSyncManager.removeSyncObserver(stateObserver);
+    MdmSyncManager.addSyncObserver(stateObserver);
+    post(
+        () -> {
+          if (connState == ConnState.STOPPED) {
+            connState = ConnState.IDLE;
+          }
+          if (client != null && client.getState() == MqttClientState.CONNECTED) {
+            if (new LiteMqttConfig(this).clientFingerprint().equals(clientsConfig)) {
+              broadcastStatus("connected", null);
+              logToFile("MQTT startClient: already connected");
+              return;
+            }
+            // settings changed; connect() rebuilds the clients once this one is gone
+            logToFile("MQTT startClient: config changed, reconnecting");
+            connState = ConnState.IDLE;
+            client.disconnect().whenComplete((v, t) -> post(this::connect));
+            return;
+          }
+          logToFile("MQTT startClient: connecting...");
+          round = null;
+          reconnectAttempts.set(0);
+          lastBackoffMs = 0L;
+          cancelReconnectTask();
+          if (connState == ConnState.BACKOFF) {
+            connState = ConnState.IDLE;
+          }
+          connect();
+        });
   }
 
-  
-
   private void startAfterVpn() {
     bootDeadlineMs = System.currentTimeMillis() + BOOT_VPN_TIMEOUT_MS;
     checkVpnAndStart();
@@ -134,83 +208,310 @@ public class LiteMqttService extends Service {
     broadcastStatus("vpn_wait", "Waiting for VPN to start MQTT");
   }
 
-  private void connectWithBackoff() {
-    executor.execute(
-        () -> {
-          LiteMqttConfig config = new LiteMqttConfig(this);
-          EnrolState enrolState = new EnrolState(this);
-          try {
-            if (client == null) {
-              client =
-                  MqttClient.builder()
-                      .useMqttVersion5()
-                      .identifier(config.getClientId())
-                      .serverHost(config.getHost())
-                      .serverPort(config.getPort())
-                      .webSocketConfig()
-                      .serverPath(config.getPath())
-                      .applyWebSocketConfig()
-                      .sslWithDefaultConfig()
-                      .buildAsync();
-              if (!config.isTlsEnabled()) {
-                // recreate without SSL if TLS disabled
-                client =
-                    MqttClient.builder()
-                        .useMqttVersion5()
-                        .identifier(config.getClientId())
-                        .serverHost(config.getHost())
-                        .serverPort(config.getPort())
-                        .webSocketConfig()
-                        .serverPath(config.getPath())
-                        .applyWebSocketConfig()
-                        .buildAsync();
+  /**
+   * Starts one connect attempt unless one is already running or the client is connected. A round
+   * tries every broker once, best ranked first; only when all of them failed does the backoff
+   * start.
+   */
+  private void connect() {
+    if (connState != ConnState.IDLE) {
+      return;
+    }
+    connState = ConnState.CONNECTING;
+    releaseConnectLease();
+    connectLease = WakeLocks.acquire(this, WakeLocks.RECONNECT, CONNECT_WAKE_MS);
+    LiteMqttConfig config = new LiteMqttConfig(this);
+    String deviceId = new EnrolState(this).getDeviceId();
+    try {
+      if (round == null) {
+        round = brokerHealth.rank(config.getBrokers());
+        roundIndex = 0;
+      }
+      LiteMqttConfig.Broker broker = round.get(roundIndex);
+      Mqtt5AsyncClient attempt = clientFor(config, broker);
+      client = attempt;
+      broadcastStatus("connecting", null, broker);
+      connectStartMs = SystemClock.elapsedRealtime();
+      attempt
+          .connectWith()
+          .cleanStart(false)
+          .sessionExpiryInterval(SESSION_EXPIRY_SECONDS)
+          .keepAlive(KEEP_ALIVE_SECONDS)
+          .simpleAuth()
+          .username(config.getUsername() == null ? "" : config.getUsername())
+          .password(
+              config.getPassword() == null
+                  ? null
+                  : config.getPassword().getBytes(StandardCharsets.UTF_8))
+          .applySimpleAuth()
+          // the broker keeps this as the retained state once keep-alive notices we are gone
+          .willPublish()
+          .topic(stateTopic(deviceId))
+          .qos(MqttQos.AT_LEAST_ONCE)
+          .retain(true)
+          .payload(presence("offline", "connection_lost", null))
+          .applyWillPublish()
+          .send()
+          .whenComplete(
+              (ack, error) ->
+                  post(
+                      () -> {
+                        if (error != null) {
+                          onConnectFailed(broker, error);
+                        } else {
+                          onConnected(attempt, broker, deviceId);
+                        }
+                      }));
+    } catch (Exception e) {
+      onConnectFailed(null, e);
+    }
+  }
+
+  /**
+   * Returns the client for {@code broker}, building it on first use. All clients are dropped when
+   * the settings they were built from change.
+   */
+  private Mqtt5AsyncClient clientFor(LiteMqttConfig config, LiteMqttConfig.Broker broker) {
+    String fingerprint = config.clientFingerprint();
+    if (!fingerprint.equals(clientsConfig)) {
+      if (!clients.isEmpty()) {
+        logToFile("MQTT config changed, dropping " + clients.size() + " client(s)");
+      }
+      clients.clear();
+      clientsConfig = fingerprint;
+    }
+    Mqtt5AsyncClient existing = clients.get(broker.toString());
+    if (existing != null) {
+      return existing;
+    }
+    MqttClientTransportConfigBuilder transport =
+        MqttClientTransportConfig.builder()
+            .serverHost(broker.host)
+            .serverPort(broker.port)
+            .webSocketConfig()
+            .serverPath(config.getPath())
+            .applyWebSocketConfig()
+            .socketConnectTimeout(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+            .mqttConnectTimeout(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    if (config.isTlsEnabled()) {
+      transport = transport.sslWithDefaultConfig();
+    }
+    Mqtt5AsyncClient[] built = new Mqtt5AsyncClient[1];
+    built[0] =
+        MqttClient.builder()
+            .useMqttVersion5()
+            .identifier(config.getClientId())
+            .transportConfig(transport.build())
+            .addDisconnectedListener(ctx -> post(() -> onDisconnected(built[0], ctx.getCause())))
+            .buildAsync();
+    registerMessageHandler(built[0]);
+    clients.put(broker.toString(), built[0]);
+    logToFile("MQTT client built for " + broker);
+    return built[0];
+  }
+
+  private void onConnected(
+      Mqtt5AsyncClient connected, LiteMqttConfig.Broker broker, String deviceId) {
+    releaseConnectLease();
+    brokerHealth.recordSuccess(broker, SystemClock.elapsedRealtime() - connectStartMs);
+    round = null;
+    if (connState == ConnState.STOPPED) {
+      // stop() ran while this attempt was in flight; without this the socket, its broker session
+      // and the armed Will outlive the service, and the next start adds a second client
+      logToFile("MQTT connected to " + broker + " after stop, disconnecting");
+      clients.remove(broker.toString(), connected);
+      if (client == connected) {
+        client = null;
+      }
+      goOffline(connected);
+      return;
+    }
+    connState = ConnState.CONNECTED;
+    Log.i(TAG, "MQTT connected");
+    logToFile("MQTT connected ok after " + reconnectAttempts.get() + " retries");
+    reconnectAttempts.set(0);
+    lastBackoffMs = 0L;
+    broadcastStatus("connected", null, broker);
+    logToFile("MQTT broker " + broker + " health " + brokerHealth.snapshot());
+    subscribe(deviceId);
+    publishState(true);
+  }
+
+  private void onConnectFailed(LiteMqttConfig.Broker broker, Throwable error) {
+    releaseConnectLease();
+    Log.w(TAG, "MQTT connect failed", error);
+    logToFile("MQTT connect to " + broker + " failed: " + error.getMessage());
+    broadcastStatus("error", error.getMessage());
+    if (broker != null) {
+      brokerHealth.recordFailure(broker);
+    }
+    if (connState != ConnState.CONNECTING) {
+      return;
+    }
+    connState = ConnState.IDLE;
+    if (broker != null && round != null && ++roundIndex < round.size()) {
+      logToFile("MQTT failing over to " + round.get(roundIndex));
+      connect();
+      return;
+    }
+    round = null;
+    scheduleReconnect("connect_failed");
+  }
+
+  private void releaseConnectLease() {
+    if (connectLease != null) {
+      connectLease.release();
+      connectLease = null;
+    }
+  }
+
+  /** Called for every lost connection and failed attempt, including ones we report ourselves. */
+  private void onDisconnected(Mqtt5AsyncClient source, Throwable cause) {
+    if (source != client || connState != ConnState.CONNECTED) {
+      // a failed attempt is handled by onConnectFailed; a stop needs no reconnect
+      return;
+    }
+    connState = ConnState.IDLE;
+    logToFile("MQTT disconnected: " + (cause != null ? cause.getMessage() : "unknown"));
+    broadcastStatus("disconnected", cause != null ? cause.getMessage() : null);
+    scheduleReconnect("disconnected");
+  }
+
+  /**
+   * Schedules the next attempt with decorrelated jitter: a random delay between the base and three
+   * times the previous delay, capped. Does nothing while an attempt is running or scheduled, so
+   * connect failures and disconnect events cannot pile up reconnect tasks.
+   */
+  private void scheduleReconnect(String reason) {
+    if (connState != ConnState.IDLE) {
+      return;
+    }
+    int attempt = reconnectAttempts.incrementAndGet();
+    long delay = nextBackoff(lastBackoffMs);
+    lastBackoffMs = delay;
+    connState = ConnState.BACKOFF;
+    broadcastStatus("reconnecting", "retry in " + delay + "ms");
+    logToFile("MQTT reconnect attempt " + attempt + " in " + delay + "ms reason=" + reason);
+    reconnectTask =
+        executor.schedule(
+            () -> {
+              reconnectTask = null;
+              if (connState == ConnState.BACKOFF) {
+                connState = ConnState.IDLE;
+                connect();
               }
+            },
+            delay,
+            TimeUnit.MILLISECONDS);
+  }
+
+  private static long nextBackoff(long previous) {
+    long upper = Math.max(RECONNECT_BASE_MS, previous) * 3;
+    long delay =
+        RECONNECT_BASE_MS
+            + (long) (ThreadLocalRandom.current().nextDouble() * (upper - RECONNECT_BASE_MS));
+    return Math.min(RECONNECT_CAP_MS, delay);
+  }
+
+  /**
+   * Cuts a pending backoff short when the network comes back. The backoff level is kept, so a
+   * broker that is still down is not hammered by a flapping network.
+   */
+  private void retryNow(String reason) {
+    if (connState != ConnState.BACKOFF && connState != ConnState.IDLE) {
+      return;
+    }
+    if (client == null && connState == ConnState.IDLE) {
+      // never started; startClient owns the first attempt
+      return;
+    }
+    long now = System.currentTimeMillis();
+    if (now - lastImmediateRetryMs < MIN_IMMEDIATE_RETRY_MS) {
+      return;
+    }
+    lastImmediateRetryMs = now;
+    cancelReconnectTask();
+    connState = ConnState.IDLE;
+    logToFile("MQTT immediate reconnect reason=" + reason);
+    connect();
+  }
+
+  private void cancelReconnectTask() {
+    if (reconnectTask != null) {
+      reconnectTask.cancel(false);
+      reconnectTask = null;
+    }
+  }
+
+  private void registerNetworkCallback() {
+    if (networkCallback != null) {
+      return;
+    }
+    ConnectivityManager cm = getSystemService(ConnectivityManager.class);
+    if (cm == null) {
+      return;
+    }
+    networkCallback =
+        new ConnectivityManager.NetworkCallback() {
+          // callbacks arrive one at a time on the connectivity thread
+          private Network lastNetwork;
+          private boolean lastValidated;
+
+          @Override
+          public void onCapabilitiesChanged(Network network, NetworkCapabilities caps) {
+            boolean validated = caps.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED);
+            boolean changed = !network.equals(lastNetwork);
+            boolean becameValidated = validated && (changed || !lastValidated);
+            lastNetwork = network;
+            lastValidated = validated;
+            // capability updates on a validated network (signal, bandwidth) are not worth a retry
+            if (becameValidated) {
+              String reason =
+                  caps.hasTransport(NetworkCapabilities.TRANSPORT_VPN)
+                      ? "vpn_validated"
+                      : changed ? "network_changed" : "network_validated";
+              post(() -> retryNow(reason));
             }
-            broadcastStatus("connecting", null);
-            client
-                .connectWith()
-                .cleanStart(false)
-                .sessionExpiryInterval(SESSION_EXPIRY_SECONDS)
-                .keepAlive(KEEP_ALIVE_SECONDS)
-                .simpleAuth()
-                .username(config.getUsername() == null ? "" : config.getUsername())
-                .password(
-                    config.getPassword() == null
-                        ? null
-                        : config.getPassword().getBytes(StandardCharsets.UTF_8))
-                .applySimpleAuth()
-                .send()
-                .whenComplete(
-                    (ack, error) -> {
-                      if (error != null) {
-                        Log.w(TAG, "MQTT connect failed", error);
-                        logToFile("MQTT connect failed: " + error.getMessage());
-                        broadcastStatus("error", error.getMessage());
-                        scheduleReconnect();
-                        return;
-                      }
-                      Log.i(TAG, "MQTT connected");
-                      logToFile("MQTT connected ok");
-                      reconnectAttempts.set(0);
-                      broadcastStatus("connected", null);
-                      subscribeNotify(enrolState.getDeviceId());
-                      registerMessageHandler();
-                      startHeartbeat(config, enrolState.getDeviceId());
-                    });
-          } catch (Exception e) {
-            Log.w(TAG, "MQTT connection setup failed", e);
-            broadcastStatus("error", e.getMessage());
-            scheduleReconnect();
           }
-        });
+
+          @Override
+          public void onLost(Network network) {
+            if (network.equals(lastNetwork)) {
+              lastNetwork = null;
+              lastValidated = false;
+            }
+          }
+        };
+    try {
+      cm.registerDefaultNetworkCallback(networkCallback);
+    } catch (RuntimeException e) {
+      logToFile("Network callback registration failed: " + e.getMessage());
+      networkCallback = null;
+    }
   }
 
-  private void scheduleReconnect() {
-    int attempt = reconnectAttempts.incrementAndGet();
-    long delay = Math.min(30000L, 2000L * attempt);
-    broadcastStatus("reconnecting", "retry in " + delay + "ms");
-    logToFile("MQTT reconnect attempt " + attempt + " in " + delay + "ms");
-    executor.schedule(this::connectWithBackoff, delay, TimeUnit.MILLISECONDS);
+  private void unregisterNetworkCallback() {
+    if (networkCallback == null) {
+      return;
+    }
+    ConnectivityManager cm = getSystemService(ConnectivityManager.class);
+    if (cm != null) {
+      try {
+        cm.unregisterNetworkCallback(networkCallback);
+      } catch (RuntimeException ignore) {
+        // already unregistered
+      }
+    }
+    networkCallback = null;
+  }
+
+  /** Runs {@code task} on {@link #executor}; drops it once the service is destroyed. */
+  private void post(Runnable task) {
+    try {
+      executor.execute(task);
+    } catch (RejectedExecutionException ignore) {
+      // service destroyed
+    }
   }
 
   private void ensureForeground() {
@@ -240,15 +541,39 @@ public class LiteMqttService extends Service {
   }
 
   private void stopClient() {
-    releaseWakeLock();
-    
+    connState = ConnState.STOPPED;
+    unregisterNetworkCallback();
+    post(
+        () -> {
+          cancelReconnectTask();
+          releaseConnectLease();
+        });
+    logToFile("Wake locks " + WakeLocks.snapshot());
     cancelBootVpnWait();
-    if (heartbeatTask != null) {
-      heartbeatTask.cancel(true);
-      heartbeatTask = null;
+    MdmSyncManager.removeSyncObserver(stateObserver);
+    goOffline(client);
+  }
+
+  /** Publishes the stopped presence if {@code current} is connected, then disconnects it. */
+  private void goOffline(Mqtt5AsyncClient current) {
+    if (current != null && current.getState() == MqttClientState.CONNECTED) {
+      // a clean disconnect suppresses the Will, so say goodbye explicitly
+      current
+          .publishWith()
+          .topic(stateTopic(new EnrolState(this).getDeviceId()))
+          .qos(MqttQos.AT_LEAST_ONCE)
+          .retain(true)
+          .payload(presence("offline", "stopped", null))
+          .send()
+          .whenComplete((ack, err) -> disconnect(current));
+    } else {
+      disconnect(current);
     }
-    if (client != null) {
-      client
+  }
+
+  private void disconnect(Mqtt5AsyncClient current) {
+    if (current != null) {
+      current
           .disconnect()
           .whenComplete(
               (v, t) -> {
@@ -265,61 +590,82 @@ public class LiteMqttService extends Service {
     }
   }
 
-  private void startHeartbeat(LiteMqttConfig config, String deviceId) {
-    if (heartbeatTask != null && !heartbeatTask.isCancelled()) {
+  /**
+   * Publishes the retained online state when it differs from the last acknowledged one, or always
+   * when {@code force}. Replaces a periodic heartbeat: liveness comes from MQTT keep-alive and the
+   * Last Will, so the radio only wakes for real changes.
+   */
+  private void publishState(boolean force) {
+    if (connState != ConnState.CONNECTED || client == null) {
       return;
     }
-    heartbeatTask =
-        executor.scheduleAtFixedRate(
-            () -> sendHeartbeat(config, deviceId),
-            HEARTBEAT_INTERVAL_SECONDS,
-            HEARTBEAT_INTERVAL_SECONDS,
-            TimeUnit.SECONDS);
-  }
-
-  private void sendHeartbeat(LiteMqttConfig config, String deviceId) {
-    if (client == null || client.getState() != MqttClientState.CONNECTED) {
-      scheduleReconnect();
+    JSONObject state = DeviceState.build(this);
+    String document = state.toString();
+    if (!force && document.equals(lastPublishedState)) {
       return;
     }
-    String topic = heartbeatTopic(deviceId);
+    String topic = stateTopic(new EnrolState(this).getDeviceId());
+    WakeLocks.Lease lease = WakeLocks.acquire(this, WakeLocks.PUBLISH, PUBLISH_WAKE_MS);
     try {
       client
           .publishWith()
           .topic(topic)
           .qos(MqttQos.AT_LEAST_ONCE)
-          .payload(
-              ("{\"status\":\"ok\",\"ts\":" + System.currentTimeMillis() + "}").getBytes(
-                  StandardCharsets.UTF_8))
+          .retain(true)
+          .payload(presence("online", null, state))
           .send()
           .whenComplete(
-              (ack, err) -> {
-                if (err != null) {
-                  Log.w(TAG, "Heartbeat publish failed", err);
-                  logToFile("Heartbeat failed: " + err.getMessage());
-                  broadcastStatus("heartbeat_error", err.getMessage());
-                  scheduleReconnect();
-                } else {
-                  broadcastStatus("heartbeat", null);
-                  logToFile("Heartbeat ok to " + topic);
-                }
-              });
+              (ack, err) ->
+                  post(
+                      () -> {
+                        lease.release();
+                        if (err != null) {
+                          Log.w(TAG, "State publish failed", err);
+                          logToFile("State publish failed: " + err.getMessage());
+                          broadcastStatus("state_error", err.getMessage());
+                          return;
+                        }
+                        lastPublishedState = document;
+                        broadcastStatus("state_published", null);
+                        logToFile("State published to " + topic + (force ? " (connect)" : ""));
+                      }));
     } catch (Exception e) {
-      Log.w(TAG, "Heartbeat publish error", e);
-      broadcastStatus("heartbeat_error", e.getMessage());
-      logToFile("Heartbeat exception: " + e.getMessage());
-      scheduleReconnect();
+      lease.release();
+      Log.w(TAG, "State publish error", e);
+      broadcastStatus("state_error", e.getMessage());
+    }
+  }
+
+  private static byte[] presence(String status, String reason, JSONObject state) {
+    JSONObject body = new JSONObject();
+    try {
+      body.put("status", status);
+      body.put("ts", System.currentTimeMillis());
+      if (reason != null) {
+        body.put("reason", reason);
+      }
+      if (state != null) {
+        body.put("state", state);
+      }
+    } catch (JSONException ignore) {
+      // values are primitives
     }
+    return body.toString().getBytes(StandardCharsets.UTF_8);
   }
 
-  private String heartbeatTopic(String deviceId) {
+  private String stateTopic(String deviceId) {
     if (deviceId != null && !deviceId.isEmpty()) {
       return "mdm/" + deviceId + "/state";
     }
     return "mdm/unknown/state";
   }
 
-  private void subscribeNotify(String deviceId) {
+  /**
+   * Subscribes to {@code notify}, which asks for an inbox sync, and {@code cmd}, which carries
+   * commands to execute directly. The session outlives disconnects, so QoS 1 commands published
+   * while offline arrive on reconnect; the sync after the SUBACK reconciles anything else.
+   */
+  private void subscribe(String deviceId) {
     if (client == null || client.getState() != MqttClientState.CONNECTED) {
       return;
     }
@@ -330,8 +676,14 @@ public class LiteMqttService extends Service {
     String topic = "mdm/" + deviceId + "/notify";
     client
         .subscribeWith()
+        .addSubscription()
         .topicFilter(topic)
         .qos(MqttQos.AT_LEAST_ONCE)
+        .applySubscription()
+        .addSubscription()
+        .topicFilter("mdm/" + deviceId + "/cmd")
+        .qos(MqttQos.AT_LEAST_ONCE)
+        .applySubscription()
         .send()
         .whenComplete(
             (subAck, error) -> {
@@ -346,11 +698,9 @@ public class LiteMqttService extends Service {
             });
   }
 
-  private void registerMessageHandler() {
-    if (client == null || publishHandlerRegistered) {
-      return;
-    }
-    client
+  /** Registered before the first connect, so messages queued in the session are not missed. */
+  private void registerMessageHandler(Mqtt5AsyncClient target) {
+    target
         .publishes(
             com.hivemq.client.mqtt.MqttGlobalPublishFilter.ALL,
             publish -> {
@@ -358,17 +708,97 @@ public class LiteMqttService extends Service {
               if (topic.endsWith("/notify")) {
                 logToFile("Notify received on " + topic);
                 triggerInboxSync("notify");
+              } else if (topic.endsWith("/cmd")) {
+                onCommand(new String(publish.getPayloadAsBytes(), StandardCharsets.UTF_8));
+              }
+            });
+  }
+
+  private void onCommand(String payload) {
+    JSONObject cmd;
+    try {
+      cmd = new JSONObject(payload);
+    } catch (JSONException e) {
+      logToFile("Unparsable command, falling back to inbox: " + e.getMessage());
+      triggerInboxSync("cmd_unparsable");
+      return;
+    }
+    logToFile("Command received id=" + cmd.optLong("id", -1) + " type=" + cmd.optString("type"));
+    // held until the ack is published, or at the latest until the timeout
+    WakeLocks.Lease lease = WakeLocks.acquire(this, WakeLocks.MESSAGE, commandWakeMs(cmd));
+    MdmSyncManager.executePushed(
+        this,
+        cmd,
+        new MdmSyncManager.AckCallback() {
+          @Override
+          public void onAck(JSONObject ack) {
+            post(() -> publishAck(ack, lease));
+          }
+
+          @Override
+          public void onDropped(String reason) {
+            lease.release();
+            logToFile("Command " + cmd.optLong("id", -1) + " not acked here: " + reason);
+          }
+        });
+  }
+
+  /** Wake budget of a pushed command, sized from the declared download size of installs. */
+  static long commandWakeMs(JSONObject cmd) {
+    if (!"install_apk_package".equals(cmd.optString("type", cmd.optString("command")))) {
+      return COMMAND_WAKE_MS;
+    }
+    long bytes = 0;
+    JSONObject payload = cmd.optJSONObject("payload");
+    JSONArray files = payload != null ? payload.optJSONArray("files") : null;
+    for (int i = 0; files != null && i < files.length(); i++) {
+      JSONObject file = files.optJSONObject(i);
+      if (file != null) {
+        bytes += Math.max(0L, file.optLong("size", 0L));
+      }
+    }
+    return Math.min(
+        INSTALL_WAKE_MAX_MS, INSTALL_WAKE_MIN_MS + bytes * 1000L / SLOW_LINK_BYTES_PER_SECOND);
+  }
+
+  /**
+   * Publishes a command ack at QoS 1. Once the broker accepts it the ack leaves the outbox; if it
+   * does not, the next inbox sync sends it over HTTP instead.
+   */
+  private void publishAck(JSONObject ack, WakeLocks.Lease lease) {
+    if (client == null || client.getState() != MqttClientState.CONNECTED) {
+      lease.release();
+      logToFile("Ack " + ack.optLong("id", -1) + " left for the next sync: not connected");
+      return;
+    }
+    String topic = "mdm/" + new EnrolState(this).getDeviceId() + "/ack";
+    client
+        .publishWith()
+        .topic(topic)
+        .qos(MqttQos.AT_LEAST_ONCE)
+        .payload(ack.toString().getBytes(StandardCharsets.UTF_8))
+        .send()
+        .whenComplete(
+            (result, err) -> {
+              lease.release();
+              if (err != null) {
+                logToFile("Ack " + ack.optLong("id", -1) + " publish failed: " + err.getMessage());
+              } else {
+                MdmSyncManager.confirmPushedAck(this, ack);
+                logToFile("Ack " + ack.optLong("id", -1) + " published to " + topic);
               }
             });
-    publishHandlerRegistered = true;
   }
 
   private void triggerInboxSync(String reason) {
     broadcastStatus("sync", reason);
     logToFile("Trigger inbox sync: " + reason);
+    WakeLocks.Lease lease = WakeLocks.acquire(this, WakeLocks.SYNC, SYNC_WAKE_MS);
     MdmSyncManager.syncNow(
         this,
+        reason,
         (success, message) -> {
+          lease.release();
           if (!success) {
             Log.w(TAG, "Inbox sync failed: " + message);
             logToFile("Inbox sync failed: " + message);
@@ -387,13 +817,24 @@ public class LiteMqttService extends Service {
   }
 
   private void broadcastStatus(String status, String error) {
+    broadcastStatus(status, error, null);
+  }
+
+  /** Broadcasts {@code status}; a null {@code broker} keeps the last one reported. */
+  private void broadcastStatus(String status, String error, LiteMqttConfig.Broker broker) {
     sLastStatus = status;
     sLastError = error;
+    if (broker != null) {
+      sLastBroker = broker.toString();
+    }
     Intent intent = new Intent(ACTION_STATUS_BROADCAST);
     intent.putExtra(EXTRA_STATUS, status);
     if (error != null) {
       intent.putExtra(EXTRA_ERROR, error);
     }
+    if (sLastBroker != null) {
+      intent.putExtra(EXTRA_BROKER, sLastBroker);
+    }
     sendBroadcast(intent);
   }
 
@@ -405,7 +846,9 @@ public class LiteMqttService extends Service {
     return sLastError;
   }
 
-
+  public static String getLastBroker() {
+    return sLastBroker;
+  }
 
   private void cancelBootVpnWait() {
     if (bootVpnWaitTask != null) {
@@ -414,8 +857,6 @@ public class LiteMqttService extends Service {
     }
   }
 
-
-
   private boolean isVpnUp() {
     ConnectivityManager cm = getSystemService(ConnectivityManager.class);
     if (cm == null) {
@@ -428,25 +869,4 @@ public class LiteMqttService extends Service {
     NetworkCapabilities caps = cm.getNetworkCapabilities(active);
     return caps != null && caps.hasTransport(NetworkCapabilities.TRANSPORT_VPN);
   }
-
-  private void acquireWakeLock() {
-    if (wakeLock == null || !wakeLock.isHeld()) {
-      PowerManager pm = getSystemService(PowerManager.class);
-      if (pm != null) {
-        wakeLock = pm.newWakeLock(
-            PowerManager.PARTIAL_WAKE_LOCK,
-            "LiteMqttService:mqtt_connection");
-        wakeLock.setReferenceCounted(false);
-        wakeLock.acquire();
-        logToFile("WakeLock acquired");
-      }
-    }
-  }
-
-  private void releaseWakeLock() {
-    if (wakeLock != null && wakeLock.isHeld()) {
-      wakeLock.release();
-      logToFile("WakeLock released");
-    }
-  }
 }
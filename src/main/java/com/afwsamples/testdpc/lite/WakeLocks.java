@@ -0,0 +1,106 @@
+package com.afwsamples.testdpc.lite;
+
+import android.content.Context;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Short partial wake locks scoped to one piece of MQTT work. Every lease has a timeout, so a lost
+ * release costs at most that long, and per-reason counters record how often and how long the CPU
+ * was kept awake.
+ */
+public final class WakeLocks {
+  static final String MESSAGE = "message";
+  static final String SYNC = "sync";
+  static final String RECONNECT = "reconnect";
+  static final String PUBLISH = "publish";
+
+  private static final Map<String, Counter> COUNTERS = new ConcurrentHashMap<>();
+
+  private WakeLocks() {}
+
+  /** Per-reason totals. */
+  private static final class Counter {
+    final AtomicLong acquired = new AtomicLong();
+    final AtomicLong heldMs = new AtomicLong();
+    final AtomicLong timedOut = new AtomicLong();
+    final AtomicInteger active = new AtomicInteger();
+  }
+
+  /** A held wake lock; {@link #release} may be called any number of times. */
+  public static final class Lease {
+    private final PowerManager.WakeLock wakeLock;
+    private final Counter counter;
+    private final long startMs;
+    private final long timeoutMs;
+    private boolean released;
+
+    Lease(PowerManager.WakeLock wakeLock, Counter counter, long timeoutMs) {
+      this.wakeLock = wakeLock;
+      this.counter = counter;
+      this.timeoutMs = timeoutMs;
+      this.startMs = SystemClock.elapsedRealtime();
+    }
+
+    public synchronized void release() {
+      if (released) {
+        return;
+      }
+      released = true;
+      long held = SystemClock.elapsedRealtime() - startMs;
+      if (held >= timeoutMs) {
+        // the platform already dropped it when the timeout expired
+        held = timeoutMs;
+        counter.timedOut.incrementAndGet();
+      }
+      counter.heldMs.addAndGet(held);
+      counter.active.decrementAndGet();
+      if (wakeLock != null && wakeLock.isHeld()) {
+        wakeLock.release();
+      }
+    }
+  }
+
+  /** Acquires a partial wake lock for {@code reason} that expires after {@code timeoutMs}. */
+  static Lease acquire(Context context, String reason, long timeoutMs) {
+    Counter counter = COUNTERS.computeIfAbsent(reason, r -> new Counter());
+    counter.acquired.incrementAndGet();
+    counter.active.incrementAndGet();
+    PowerManager pm = context.getSystemService(PowerManager.class);
+    PowerManager.WakeLock wakeLock = null;
+    if (pm != null) {
+      wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "LiteMqttService:" + reason);
+      wakeLock.setReferenceCounted(false);
+      wakeLock.acquire(timeoutMs);
+    }
+    return new Lease(wakeLock, counter, timeoutMs);
+  }
+
+  /** Counters by reason: {@code acquired}, {@code held_ms}, {@code timed_out}, {@code active}. */
+  public static JSONObject snapshot() {
+    JSONObject out = new JSONObject();
+    try {
+      long total = 0;
+      for (Map.Entry<String, Counter> e : COUNTERS.entrySet()) {
+        Counter c = e.getValue();
+        JSONObject entry = new JSONObject();
+        entry.put("acquired", c.acquired.get());
+        entry.put("held_ms", c.heldMs.get());
+        entry.put("timed_out", c.timedOut.get());
+        entry.put("active", c.active.get());
+        out.put(e.getKey(), entry);
+        total += c.heldMs.get();
+      }
+      out.put("total_held_ms", total);
+    } catch (JSONException ignore) {
+      // best-effort
+    }
+    return out;
+  }
+}
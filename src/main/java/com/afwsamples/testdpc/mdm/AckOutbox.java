@@ -0,0 +1,346 @@
+package com.afwsamples.testdpc.mdm;
+
+import android.content.Context;
+import androidx.annotation.VisibleForTesting;
+import com.afwsamples.testdpc.FileLogger;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Durable, append-only queue of command acks. Each ack is written to disk as soon as its command
+ * has executed and stays there until the server confirms it, either through the {@code acked} list
+ * of an /inbox response or a successful POST /ack. Every ack carries an {@code idempotency_key}
+ * derived from its {@code qid} or {@code id} so re-sent acks can be deduplicated server side.
+ *
+ * <p>The file is read once per process into an in-memory index; afterwards it is only appended to
+ * and compacted. Appends are fsynced per batch with {@link #sync}. At most {@link #MAX_PENDING}
+ * acks are kept; beyond that the oldest are dropped and logged.
+ */
+public final class AckOutbox {
+  static final int BATCH_SIZE = 50;
+  static final int MAX_PENDING = 1000;
+  private static final String FILE_NAME = "mdm_ack_outbox.jsonl";
+  private static final String KEY_FIELD = "idempotency_key";
+  private static final int MAX_ATTEMPTS = 3;
+  private static final long BASE_BACKOFF_MS = 1000L;
+  private static final Object LOCK = new Object();
+
+  /** Pending acks by key in write order; null until loaded from the file. */
+  private static Map<String, JSONObject> sIndex;
+  private static File sFile;
+  private static FileOutputStream sOut;
+
+  private AckOutbox() {}
+
+  /**
+   * Key identifying the command an ack belongs to, or null if it has neither qid nor id. Follow-up
+   * acks carrying a {@code phase} get their own key so they do not replace the original ack.
+   */
+  static String idempotencyKey(JSONObject ack) {
+    String qid = ack.optString("qid", null);
+    String key;
+    if (qid != null && !qid.isEmpty()) {
+      key = "qid:" + qid;
+    } else {
+      long id = ack.optLong("id", -1);
+      if (id < 0) {
+        return null;
+      }
+      key = "id:" + id;
+    }
+    String phase = ack.optString("phase", null);
+    return phase != null && !phase.isEmpty() ? key + "#" + phase : key;
+  }
+
+  /**
+   * Queues {@code ack} and appends it to the file; it is durable after the next {@link #sync}.
+   * Write failures are logged and the ack stays in memory only.
+   */
+  public static void append(Context context, JSONObject ack) {
+    String key = idempotencyKey(ack);
+    if (key == null) {
+      return;
+    }
+    synchronized (LOCK) {
+      Map<String, JSONObject> index = loadLocked(context);
+      try {
+        ack.put(KEY_FIELD, key);
+      } catch (JSONException ignore) {
+        // key is a non-null string
+      }
+      index.remove(key);
+      index.put(key, ack);
+      if (index.size() > MAX_PENDING) {
+        dropOldestLocked(context, index);
+        return;
+      }
+      try {
+        if (sOut == null) {
+          sOut = new FileOutputStream(sFile, true);
+        }
+        sOut.write((ack.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+      } catch (IOException e) {
+        FileLogger.log(context, "AckOutbox append failed key=" + key + " err=" + e.getMessage());
+        closeLocked();
+      }
+    }
+  }
+
+  /** Forces appended acks to the device; call once per batch of {@link #append} calls. */
+  public static void sync(Context context) {
+    synchronized (LOCK) {
+      if (sOut == null) {
+        return;
+      }
+      try {
+        sOut.getFD().sync();
+      } catch (IOException e) {
+        FileLogger.log(context, "AckOutbox sync failed: " + e.getMessage());
+      }
+    }
+  }
+
+  /** Pending acks in write order; a later record for the same key replaces the earlier one. */
+  public static List<JSONObject> pending(Context context) {
+    synchronized (LOCK) {
+      return new ArrayList<>(loadLocked(context).values());
+    }
+  }
+
+  /** The pending ack stored under {@code key}, or null. */
+  static JSONObject find(Context context, String key) {
+    synchronized (LOCK) {
+      return loadLocked(context).get(key);
+    }
+  }
+
+  /** Up to {@code max} pending acks, for piggy-backing on the next /inbox request. */
+  static JSONArray peek(Context context, int max) {
+    JSONArray out = new JSONArray();
+    for (JSONObject ack : pending(context)) {
+      if (out.length() >= max) {
+        break;
+      }
+      out.put(ack);
+    }
+    return out;
+  }
+
+  /** Drops acks the server has confirmed; returns how many were removed. */
+  static int remove(Context context, Collection<String> keys) {
+    if (keys == null || keys.isEmpty()) {
+      return 0;
+    }
+    synchronized (LOCK) {
+      Map<String, JSONObject> index = loadLocked(context);
+      int before = index.size();
+      index.keySet().removeAll(keys);
+      if (index.size() != before) {
+        rewriteLocked(context, index.values());
+      }
+      return before - index.size();
+    }
+  }
+
+  /** Confirms the keys listed in an /inbox response's {@code acked} array. */
+  static int confirm(Context context, JSONArray ackedKeys) {
+    if (ackedKeys == null) {
+      return 0;
+    }
+    List<String> keys = new ArrayList<>();
+    for (int i = 0; i < ackedKeys.length(); i++) {
+      String k = ackedKeys.optString(i, null);
+      if (k != null) {
+        keys.add(k);
+      }
+    }
+    return remove(context, keys);
+  }
+
+  /**
+   * Sends all pending acks to /ack in batches, retrying each batch with exponential backoff. Acks
+   * listed in {@code preferredOrder} go first in that order so a fresh sync is acked in inbox
+   * order; older leftovers follow.
+   *
+   * @return number of acks still pending afterwards
+   */
+  static int flush(Context context, String requestId, JSONArray preferredOrder) {
+    Map<String, JSONObject> pending;
+    synchronized (LOCK) {
+      pending = new LinkedHashMap<>(loadLocked(context));
+    }
+    if (pending.isEmpty()) {
+      return 0;
+    }
+    List<JSONObject> ordered = new ArrayList<>();
+    if (preferredOrder != null) {
+      for (int i = 0; i < preferredOrder.length(); i++) {
+        JSONObject ack = preferredOrder.optJSONObject(i);
+        String key = ack != null ? idempotencyKey(ack) : null;
+        JSONObject stored = key != null ? pending.remove(key) : null;
+        if (stored != null) {
+          ordered.add(stored);
+        }
+      }
+    }
+    ordered.addAll(pending.values());
+
+    int remaining = ordered.size();
+    for (int start = 0; start < ordered.size(); start += BATCH_SIZE) {
+      List<JSONObject> batch = ordered.subList(start, Math.min(ordered.size(), start + BATCH_SIZE));
+      JSONArray body = new JSONArray();
+      List<String> keys = new ArrayList<>();
+      for (JSONObject ack : batch) {
+        body.put(ack);
+        keys.add(ack.optString(KEY_FIELD));
+      }
+      if (!postWithBackoff(context, requestId, body)) {
+        return remaining;
+      }
+      remove(context, keys);
+      remaining -= batch.size();
+    }
+    return remaining;
+  }
+
+  private static boolean postWithBackoff(Context context, String requestId, JSONArray body) {
+    for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+      try {
+        JSONObject resp = MdmApiClient.postAck(context, body);
+        FileLogger.log(
+            context,
+            "AckOutbox sent reqId=" + requestId + " count=" + body.length() + " resp=" + resp);
+        return true;
+      } catch (Exception e) {
+        FileLogger.log(
+            context,
+            "AckOutbox send failed reqId="
+                + requestId
+                + " attempt="
+                + attempt
+                + " err="
+                + e.getMessage());
+        if (attempt == MAX_ATTEMPTS) {
+          break;
+        }
+        try {
+          Thread.sleep(BASE_BACKOFF_MS << (attempt - 1));
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+    }
+    return false;
+  }
+
+  private static Map<String, JSONObject> loadLocked(Context context) {
+    if (sIndex != null) {
+      return sIndex;
+    }
+    sFile = new File(context.getFilesDir(), FILE_NAME);
+    sIndex = new LinkedHashMap<>();
+    if (!sFile.exists()) {
+      return sIndex;
+    }
+    try (BufferedReader br =
+        new BufferedReader(
+            new InputStreamReader(new FileInputStream(sFile), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = br.readLine()) != null) {
+        if (line.isEmpty()) {
+          continue;
+        }
+        try {
+          JSONObject ack = new JSONObject(line);
+          String key = ack.optString(KEY_FIELD, null);
+          if (key != null) {
+            sIndex.remove(key);
+            sIndex.put(key, ack);
+          }
+        } catch (JSONException torn) {
+          // a crash mid-append can leave a partial last line; skip it
+        }
+      }
+    } catch (IOException e) {
+      FileLogger.log(context, "AckOutbox read failed: " + e.getMessage());
+    }
+    if (sIndex.size() > MAX_PENDING) {
+      dropOldestLocked(context, sIndex);
+    }
+    return sIndex;
+  }
+
+  private static void dropOldestLocked(Context context, Map<String, JSONObject> index) {
+    // drop a tenth more than needed so a full outbox is not rewritten on every append
+    int drop = index.size() - MAX_PENDING * 9 / 10;
+    Iterator<String> it = index.keySet().iterator();
+    StringBuilder dropped = new StringBuilder();
+    for (int i = 0; i < drop && it.hasNext(); i++) {
+      dropped.append(i > 0 ? "," : "").append(it.next());
+      it.remove();
+    }
+    FileLogger.log(context, "AckOutbox full, dropped oldest " + drop + " ack(s): " + dropped);
+    rewriteLocked(context, index.values());
+  }
+
+  /** Forgets the in-memory index, so the next call reloads the file as after a restart. */
+  @VisibleForTesting
+  static void resetForTesting() {
+    synchronized (LOCK) {
+      closeLocked();
+      sIndex = null;
+      sFile = null;
+    }
+  }
+
+  private static void closeLocked() {
+    if (sOut != null) {
+      try {
+        sOut.close();
+      } catch (IOException ignore) {
+        // nothing left to do
+      }
+      sOut = null;
+    }
+  }
+
+  private static void rewriteLocked(Context context, Collection<JSONObject> acks) {
+    closeLocked();
+    File f = sFile;
+    if (acks.isEmpty()) {
+      //noinspection ResultOfMethodCallIgnored
+      f.delete();
+      return;
+    }
+    File tmp = new File(f.getPath() + ".tmp");
+    try (FileOutputStream out = new FileOutputStream(tmp)) {
+      for (JSONObject ack : acks) {
+        out.write((ack.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+      }
+      out.getFD().sync();
+    } catch (IOException e) {
+      FileLogger.log(context, "AckOutbox compact failed: " + e.getMessage());
+      //noinspection ResultOfMethodCallIgnored
+      tmp.delete();
+      return;
+    }
+    if (!tmp.renameTo(f)) {
+      FileLogger.log(context, "AckOutbox compact rename failed");
+    }
+  }
+}
@@ -0,0 +1,153 @@
+package com.afwsamples.testdpc.mdm;
+
+import android.content.Context;
+import com.afwsamples.testdpc.FileLogger;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Content-addressed APK store shared by install commands and baseline provisioning. Verified APKs
+ * are kept as {@code <sha256>.apk} next to the resumable partials of {@link ApkDownloader}. A
+ * lookup refreshes the file's timestamp, and {@link #trim} evicts the least recently used files
+ * once the directory exceeds {@link #BUDGET_BYTES}.
+ */
+public final class ApkCache {
+  static final long BUDGET_BYTES = 512L * 1024L * 1024L;
+  /** Files touched this recently may be mid-install and are never evicted. */
+  private static final long IN_USE_MS = TimeUnit.MINUTES.toMillis(10);
+  private static final Object LOCK = new Object();
+
+  private ApkCache() {}
+
+  /** A cached APK. */
+  public static final class Entry {
+    public final File file;
+    public final String sha256;
+    public final long length;
+    /** True if served without touching the network. */
+    public final boolean hit;
+    public final long resumedBytes;
+    public final int attempts;
+
+    Entry(File file, String sha256, boolean hit, long resumedBytes, int attempts) {
+      this.file = file;
+      this.sha256 = sha256;
+      this.length = file.length();
+      this.hit = hit;
+      this.resumedBytes = resumedBytes;
+      this.attempts = attempts;
+    }
+  }
+
+  /** Returns the cached APK with this digest, or null. */
+  public static File lookup(Context context, String sha256) {
+    if (sha256 == null || sha256.isEmpty()) {
+      return null;
+    }
+    File f = fileFor(context, sha256);
+    if (!f.isFile() || f.length() == 0) {
+      return null;
+    }
+    //noinspection ResultOfMethodCallIgnored
+    f.setLastModified(System.currentTimeMillis());
+    return f;
+  }
+
+  /**
+   * Returns the APK at {@code url}, from the cache when {@code expectedSha} is known and present,
+   * otherwise downloaded, verified and added to the cache under its actual digest.
+   */
+  public static Entry fetch(Context context, String url, String expectedSha) throws IOException {
+    File cached = lookup(context, expectedSha);
+    if (cached != null) {
+      FileLogger.log(context, "ApkCache hit sha256=" + expectedSha + " bytes=" + cached.length());
+      return new Entry(cached, expectedSha.toLowerCase(Locale.US), true, 0L, 0);
+    }
+    ApkDownloader.Result dl = ApkDownloader.download(context, url, expectedSha);
+    if (dl.hit) {
+      FileLogger.log(context, "ApkCache hit after wait sha256=" + dl.sha256);
+    }
+    File file = put(context, dl.file, dl.sha256);
+    return new Entry(file, dl.sha256, dl.hit, dl.resumedBytes, dl.attempts);
+  }
+
+  /**
+   * Moves a verified {@code file} from {@link ApkDownloader#directory} into the cache under
+   * {@code sha256} and returns the cached file.
+   */
+  static File put(Context context, File file, String sha256) throws IOException {
+    File target = fileFor(context, sha256);
+    if (!file.equals(target)) {
+      synchronized (LOCK) {
+        if (target.isFile()) {
+          // same bytes were cached meanwhile under their digest
+          //noinspection ResultOfMethodCallIgnored
+          file.delete();
+        } else if (!file.renameTo(target)) {
+          throw new IOException("apk cache rename failed sha256=" + sha256);
+        }
+      }
+    }
+    //noinspection ResultOfMethodCallIgnored
+    target.setLastModified(System.currentTimeMillis());
+    trim(context);
+    return target;
+  }
+
+  /**
+   * Evicts least recently used files until the cache fits {@link #BUDGET_BYTES}. Partials that a
+   * download is writing, and anything touched within {@link #IN_USE_MS}, are kept.
+   */
+  public static void trim(Context context) {
+    synchronized (LOCK) {
+      File[] files = ApkDownloader.directory(context).listFiles();
+      if (files == null) {
+        return;
+      }
+      long total = 0;
+      for (File f : files) {
+        total += f.length();
+      }
+      if (total <= BUDGET_BYTES) {
+        return;
+      }
+      Arrays.sort(files, Comparator.comparingLong(ApkCache::lastUsed));
+      long now = System.currentTimeMillis();
+      for (File f : files) {
+        if (total <= BUDGET_BYTES) {
+          break;
+        }
+        if (ApkDownloader.isActive(f) || now - lastUsed(f) < IN_USE_MS) {
+          continue;
+        }
+        long len = f.length();
+        if (f.delete()) {
+          total -= len;
+          FileLogger.log(context, "ApkCache evict " + f.getName() + " bytes=" + len);
+        }
+      }
+    }
+  }
+
+  /**
+   * Last write of {@code f}. A partial's validator is only written once, so it goes by the newer of
+   * its own and its partial's timestamp and is never evicted ahead of the bytes it validates.
+   */
+  private static long lastUsed(File f) {
+    String name = f.getName();
+    if (!name.endsWith(".part.validator")) {
+      return f.lastModified();
+    }
+    String partName = name.substring(0, name.length() - ".validator".length());
+    File part = new File(f.getParentFile(), partName);
+    return Math.max(f.lastModified(), part.lastModified());
+  }
+
+  private static File fileFor(Context context, String sha256) {
+    return new File(ApkDownloader.directory(context), sha256.toLowerCase(Locale.US) + ".apk");
+  }
+}
@@ -0,0 +1,504 @@
+package com.afwsamples.testdpc.mdm;
+
+import android.content.Context;
+import android.content.pm.PackageInstaller;
+import com.afwsamples.testdpc.FileLogger;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Resumable APK download with SHA-256 verification.
+ *
+ * <p>When the expected sha256 is known, bytes go to {@code <sha256>.part} in a private cache
+ * directory, so a later command for the same artifact continues where an earlier one stopped.
+ * Within one call, a dropped connection is retried with a {@code Range} request from the current
+ * offset. The running digest is kept across those retries. A partial left by an earlier call is
+ * hashed once from disk before resuming, because a JCA digest cannot be persisted. The server
+ * validator (ETag or Last-Modified) is sent as {@code If-Range}, so a changed file restarts from
+ * zero instead of being spliced.
+ *
+ * <p>{@link #streamInto} uses the same retry logic but writes into a {@code PackageInstaller}
+ * session entry instead of a file.
+ */
+final class ApkDownloader {
+  static final long MAX_APK_BYTES = 200L * 1024L * 1024L; // 200MB guardrail
+  private static final String DIR_NAME = "mdm_apk_cache";
+  private static final int READ_TIMEOUT_MS = 45000;
+  private static final int MAX_ATTEMPTS = 5;
+  private static final long BASE_BACKOFF_MS = 1000L;
+  private static final int HTTP_PARTIAL = 206;
+  private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+  /** Per-digest locks, removed once no caller holds or waits for them. */
+  private static final Map<String, KeyLock> LOCKS = new HashMap<>();
+  /** Names of partial files a download is writing right now, guarded by itself. */
+  private static final Set<String> ACTIVE = new HashSet<>();
+
+  private static final class KeyLock {
+    int users;
+  }
+
+  /** A verified download, stored in {@link #directory}. */
+  static final class Result {
+    File file;
+    long length;
+    String sha256;
+    /** Bytes served from a partial file instead of the network. */
+    long resumedBytes;
+    int attempts;
+    /** True if another caller finished this artifact while this one waited for its lock. */
+    boolean hit;
+  }
+
+  private ApkDownloader() {}
+
+  static Result download(Context context, String url, String expectedSha) throws IOException {
+    boolean keyed = expectedSha != null && !expectedSha.isEmpty();
+    if (!keyed) {
+      return downloadLocked(context, url, null);
+    }
+    // two commands fetching the same artifact must not write the same partial file
+    String key = expectedSha.toLowerCase(Locale.US);
+    KeyLock lock = acquireLock(key);
+    try {
+      synchronized (lock) {
+        // a caller that waited here finds what the previous holder just moved into the cache
+        File cached = ApkCache.lookup(context, key);
+        if (cached != null) {
+          Result result = new Result();
+          result.file = cached;
+          result.length = cached.length();
+          result.sha256 = key;
+          result.hit = true;
+          return result;
+        }
+        return downloadLocked(context, url, expectedSha);
+      }
+    } finally {
+      releaseLock(key, lock);
+    }
+  }
+
+  private static KeyLock acquireLock(String key) {
+    synchronized (LOCKS) {
+      KeyLock lock = LOCKS.get(key);
+      if (lock == null) {
+        lock = new KeyLock();
+        LOCKS.put(key, lock);
+      }
+      lock.users++;
+      return lock;
+    }
+  }
+
+  private static void releaseLock(String key, KeyLock lock) {
+    synchronized (LOCKS) {
+      if (--lock.users == 0) {
+        LOCKS.remove(key);
+      }
+    }
+  }
+
+  /** True if {@code file} is the partial, or its validator, of a download in progress. */
+  static boolean isActive(File file) {
+    String name = file.getName();
+    if (name.endsWith(".validator")) {
+      name = name.substring(0, name.length() - ".validator".length());
+    }
+    synchronized (ACTIVE) {
+      return ACTIVE.contains(name);
+    }
+  }
+
+  private static Result downloadLocked(Context context, String url, String expectedSha)
+      throws IOException {
+    File dir = directory(context);
+    boolean keyed = expectedSha != null;
+    File part =
+        keyed
+            ? new File(dir, expectedSha.toLowerCase(Locale.US) + ".part")
+            : File.createTempFile("mdm_dl_", ".part", dir);
+    File validatorFile = new File(part.getPath() + ".validator");
+    Partial p = new Partial(new FileSink(part));
+    p.validatorFile = validatorFile;
+    if (keyed && part.length() > 0) {
+      p.offset = hashExisting(part, p.md);
+      p.validator = readValidator(validatorFile);
+    } else {
+      deleteQuietly(part, validatorFile);
+    }
+
+    Result result = new Result();
+    synchronized (ACTIVE) {
+      ACTIVE.add(part.getName());
+    }
+    try {
+      fetchWithRetries(context, url, p, result);
+    } catch (IOException e) {
+      if (!keyed || e instanceof FatalException) {
+        deleteQuietly(part, validatorFile);
+      }
+      throw e;
+    } finally {
+      synchronized (ACTIVE) {
+        ACTIVE.remove(part.getName());
+      }
+    }
+
+    String actual = hex(p.md.digest());
+    deleteQuietly(validatorFile);
+    if (keyed && !expectedSha.equalsIgnoreCase(actual)) {
+      deleteQuietly(part);
+      throw new IOException("sha256_mismatch expected=" + expectedSha + " actual=" + actual);
+    }
+    String name = part.getName();
+    File done = new File(dir, name.substring(0, name.length() - ".part".length()) + ".apk");
+    if (!part.renameTo(done)) {
+      done = part;
+    }
+    result.file = done;
+    result.length = done.length();
+    result.sha256 = actual;
+    result.resumedBytes = p.resumed;
+    return result;
+  }
+
+  /**
+   * Streams {@code url} straight into entry {@code name} of an open install session, hashing on
+   * the way, with the same Range-based retries as {@link #download}. Nothing touches local storage.
+   * Throws on a size or digest mismatch; the caller must then abandon the session.
+   */
+  static Result streamInto(
+      Context context,
+      String url,
+      String expectedSha,
+      long size,
+      PackageInstaller.Session session,
+      String name)
+      throws IOException {
+    Partial p = new Partial(new SessionSink(session, name, size));
+    p.expectedLength = size;
+    Result result = new Result();
+    fetchWithRetries(context, url, p, result);
+    if (p.offset != size) {
+      throw new IOException("size_mismatch expected=" + size + " actual=" + p.offset);
+    }
+    String actual = hex(p.md.digest());
+    if (!expectedSha.equalsIgnoreCase(actual)) {
+      throw new IOException("sha256_mismatch expected=" + expectedSha + " actual=" + actual);
+    }
+    result.length = size;
+    result.sha256 = actual;
+    result.resumedBytes = p.resumed;
+    return result;
+  }
+
+  private static void fetchWithRetries(Context context, String url, Partial p, Result result)
+      throws IOException {
+    for (int attempt = 1; ; attempt++) {
+      result.attempts = attempt;
+      try {
+        fetch(url, p);
+        return;
+      } catch (IOException e) {
+        FileLogger.log(
+            context,
+            "ApkDownloader attempt="
+                + attempt
+                + " offset="
+                + p.offset
+                + " url="
+                + url
+                + " err="
+                + e.getMessage());
+        if (e instanceof FatalException || attempt >= MAX_ATTEMPTS) {
+          throw e;
+        }
+        if (p.sink instanceof StoredSink) {
+          StoredSink stored = (StoredSink) p.sink;
+          if (stored.storedLength() != p.offset) {
+            // a write was cut short; re-derive the digest from what actually reached the disk
+            p.md.reset();
+            p.offset = stored.rehash(p.md);
+          }
+        }
+        sleep(BASE_BACKOFF_MS << (attempt - 1));
+      }
+    }
+  }
+
+  /** Download progress shared by the attempts of one call. */
+  private static final class Partial {
+    final Sink sink;
+    final MessageDigest md = newDigest();
+    /** Persisted copy of {@link #validator}, or null if the sink is not resumable later. */
+    File validatorFile;
+    String validator;
+    /** Bytes written to {@link #sink} and fed to {@link #md}. */
+    long offset;
+    /** Offset the first accepted Range response started at. */
+    long resumed;
+    /** Exact size the server must deliver, or -1 if unknown. */
+    long expectedLength = -1;
+
+    Partial(Sink sink) {
+      this.sink = sink;
+    }
+  }
+
+  /**
+   * Destination of downloaded bytes. A retry reopens it at the count of bytes written and hashed;
+   * anything a failed write left beyond that is overwritten.
+   */
+  private interface Sink {
+    /** Opens for writing at {@code offset}; 0 discards anything written before. */
+    OutputStream open(long offset) throws IOException;
+
+    /** Makes everything written to {@code out} durable. */
+    void sync(OutputStream out) throws IOException;
+  }
+
+  /**
+   * A sink whose stored bytes can be read back, so a download can resume from them after the
+   * process restarts. Only sinks of this kind are resumable across calls.
+   */
+  private interface StoredSink extends Sink {
+    /** Bytes actually stored. */
+    long storedLength();
+
+    /** Feeds the stored bytes to {@code md} and returns their count. */
+    long rehash(MessageDigest md) throws IOException;
+  }
+
+  private static final class FileSink implements StoredSink {
+    private final File file;
+
+    FileSink(File file) {
+      this.file = file;
+    }
+
+    @Override
+    public OutputStream open(long offset) throws IOException {
+      return new FileOutputStream(file, offset > 0);
+    }
+
+    @Override
+    public void sync(OutputStream out) throws IOException {
+      ((FileOutputStream) out).getFD().sync();
+    }
+
+    @Override
+    public long storedLength() {
+      return file.length();
+    }
+
+    @Override
+    public long rehash(MessageDigest md) throws IOException {
+      return hashExisting(file, md);
+    }
+  }
+
+  private static final class SessionSink implements Sink {
+    private final PackageInstaller.Session session;
+    private final String name;
+    private final long size;
+
+    SessionSink(PackageInstaller.Session session, String name, long size) {
+      this.session = session;
+      this.name = name;
+      this.size = size;
+    }
+
+    @Override
+    public OutputStream open(long offset) throws IOException {
+      return session.openWrite(name, offset, size - offset);
+    }
+
+    @Override
+    public void sync(OutputStream out) throws IOException {
+      session.fsync(out);
+    }
+  }
+
+  /** Downloads from {@code p.offset} to the end of the file into {@code p.sink}. */
+  private static void fetch(String url, Partial p) throws IOException {
+    HttpTransport.Request request =
+        new HttpTransport.Request("GET apk", url)
+            .header("Accept-Encoding", "identity")
+            .header("Cache-Control", "no-cache")
+            .readTimeout(READ_TIMEOUT_MS);
+    if (p.offset > 0) {
+      request.header("Range", "bytes=" + p.offset + "-");
+      if (p.validator != null) {
+        request.header("If-Range", p.validator);
+      }
+    }
+    try (HttpTransport.Stream stream = HttpTransport.open(request)) {
+      int code = stream.code;
+      if (p.offset > 0 && code == HTTP_RANGE_NOT_SATISFIABLE) {
+        // the partial already holds the whole file; the digest check decides
+        return;
+      }
+      if (code < 200 || code >= 300) {
+        String msg = "download_failed code=" + code;
+        throw code >= 400 && code < 500 ? new FatalException(msg) : new IOException(msg);
+      }
+      boolean append = p.offset > 0 && code == HTTP_PARTIAL;
+      if (append) {
+        // counted once: a later retry resumes past bytes an earlier attempt already counted
+        if (p.resumed == 0) {
+          p.resumed = p.offset;
+        }
+      } else if (p.offset > 0) {
+        // range ignored or file changed upstream: this response is the whole file
+        p.md.reset();
+        p.offset = 0;
+        p.resumed = 0;
+      }
+      long remaining = stream.contentLength();
+      if (remaining > 0 && p.offset + remaining > MAX_APK_BYTES) {
+        throw new FatalException("file_too_large bytes=" + (p.offset + remaining));
+      }
+      if (remaining > 0 && p.expectedLength >= 0 && p.offset + remaining != p.expectedLength) {
+        throw new FatalException(
+            "size_mismatch expected=" + p.expectedLength + " actual=" + (p.offset + remaining));
+      }
+      if (!append) {
+        p.validator = stream.header("ETag");
+        if (p.validator == null) {
+          p.validator = stream.header("Last-Modified");
+        }
+        if (p.validatorFile != null) {
+          writeValidator(p.validatorFile, p.validator);
+        }
+      }
+      InputStream in = stream.body();
+      if (in == null) {
+        throw new IOException("download_failed empty body");
+      }
+      long limit = p.expectedLength >= 0 ? p.expectedLength : MAX_APK_BYTES;
+      long end = remaining > 0 ? p.offset + remaining : -1;
+      try (OutputStream out = p.sink.open(p.offset)) {
+        byte[] buf = new byte[65536];
+        int read;
+        try {
+          while ((read = in.read(buf)) != -1) {
+            if (p.offset + read > limit) {
+              throw new FatalException("file_too_large bytes=" + (p.offset + read));
+            }
+            out.write(buf, 0, read);
+            p.md.update(buf, 0, read);
+            p.offset += read;
+          }
+        } finally {
+          p.sink.sync(out);
+        }
+      }
+      if (end >= 0 && p.offset < end) {
+        // some stacks report a socket closed mid-body as a normal end of stream
+        throw new IOException("download_truncated offset=" + p.offset + " expected=" + end);
+      }
+    }
+  }
+
+  private static long hashExisting(File file, MessageDigest md) throws IOException {
+    long total = 0;
+    try (InputStream in = new FileInputStream(file)) {
+      byte[] buf = new byte[65536];
+      int read;
+      while ((read = in.read(buf)) != -1) {
+        md.update(buf, 0, read);
+        total += read;
+      }
+    }
+    return total;
+  }
+
+  private static String readValidator(File f) {
+    if (!f.exists()) {
+      return null;
+    }
+    try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+      byte[] data = new byte[(int) Math.min(raf.length(), 1024)];
+      raf.readFully(data);
+      String v = new String(data, StandardCharsets.UTF_8).trim();
+      return v.isEmpty() ? null : v;
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  private static void writeValidator(File f, String validator) {
+    if (validator == null) {
+      //noinspection ResultOfMethodCallIgnored
+      f.delete();
+      return;
+    }
+    try (FileOutputStream out = new FileOutputStream(f)) {
+      out.write(validator.getBytes(StandardCharsets.UTF_8));
+    } catch (IOException ignore) {
+      // resume then simply goes without If-Range
+    }
+  }
+
+  static File directory(Context context) {
+    File dir = new File(context.getCacheDir(), DIR_NAME);
+    if (!dir.isDirectory()) {
+      //noinspection ResultOfMethodCallIgnored
+      dir.mkdirs();
+    }
+    return dir;
+  }
+
+  static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  static String hex(byte[] data) {
+    StringBuilder sb = new StringBuilder(data.length * 2);
+    for (byte b : data) {
+      sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return sb.toString();
+  }
+
+  private static void deleteQuietly(File... files) {
+    for (File f : files) {
+      //noinspection ResultOfMethodCallIgnored
+      f.delete();
+    }
+  }
+
+  private static void sleep(long ms) throws IOException {
+    try {
+      Thread.sleep(ms);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("download interrupted");
+    }
+  }
+
+  /** Errors a retry cannot fix. */
+  private static final class FatalException extends IOException {
+    FatalException(String message) {
+      super(message);
+    }
+  }
+
+}
@@ -0,0 +1,165 @@
+package com.afwsamples.testdpc.mdm;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Rebuilds an APK from the installed base APK and a binary patch.
+ *
+ * <p>Patches use the single-stream bsdiff layout of {@code ENDSLEY/BSDIFF43}: a 16-byte magic, the
+ * new size, then repeated control triples {@code (diffLen, extraLen, seek)} each followed by
+ * {@code diffLen} bytes added to the old file and {@code extraLen} literal bytes. The stream after
+ * the magic is gzip-compressed instead of bzip2, which the platform has no codec for. Offsets are
+ * 8-byte little-endian sign-magnitude integers as in bsdiff.
+ */
+final class ApkPatcher {
+  static final String FORMAT = "bsdiff43-gzip";
+  private static final byte[] MAGIC = "ENDSLEY/BSDIFF43".getBytes(StandardCharsets.US_ASCII);
+  private static final int BUFFER = 65536;
+
+  private ApkPatcher() {}
+
+  /** The installed base does not match what the patch was built against. */
+  static final class BaseMismatchException extends IOException {
+    BaseMismatchException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * Returns the installed base APK of {@code pkg}, checked against {@code baseVersionCode} and,
+   * when given, {@code baseSha256}.
+   */
+  static File baseApk(Context context, String pkg, long baseVersionCode, String baseSha256)
+      throws IOException {
+    PackageInfo info;
+    try {
+      info = context.getPackageManager().getPackageInfo(pkg, 0);
+    } catch (PackageManager.NameNotFoundException e) {
+      throw new BaseMismatchException("base_not_installed");
+    }
+    long installed =
+        Build.VERSION.SDK_INT >= Build.VERSION_CODES.P
+            ? info.getLongVersionCode()
+            : info.versionCode;
+    if (baseVersionCode >= 0 && installed != baseVersionCode) {
+      throw new BaseMismatchException(
+          "base_version_mismatch expected=" + baseVersionCode + " installed=" + installed);
+    }
+    if (info.applicationInfo == null || info.applicationInfo.sourceDir == null) {
+      throw new BaseMismatchException("base_source_missing");
+    }
+    File base = new File(info.applicationInfo.sourceDir);
+    if (!base.canRead()) {
+      throw new BaseMismatchException("base_unreadable");
+    }
+    if (baseSha256 != null && !baseSha256.isEmpty()) {
+      String actual = sha256(base);
+      if (!baseSha256.equalsIgnoreCase(actual)) {
+        throw new BaseMismatchException(
+            "base_sha256_mismatch expected=" + baseSha256 + " actual=" + actual);
+      }
+    }
+    return base;
+  }
+
+  /**
+   * Applies {@code patch} to {@code base}, writing at most {@code maxSize} bytes to {@code out}.
+   *
+   * @return the size of the rebuilt file
+   */
+  static long apply(File base, File patch, OutputStream out, long maxSize) throws IOException {
+    try (InputStream raw = new BufferedInputStream(new FileInputStream(patch), BUFFER);
+        RandomAccessFile baseFile = new RandomAccessFile(base, "r");
+        FileChannel channel = baseFile.getChannel()) {
+      byte[] magic = new byte[MAGIC.length];
+      new DataInputStream(raw).readFully(magic);
+      if (!Arrays.equals(magic, MAGIC)) {
+        throw new IOException("patch_bad_magic");
+      }
+      DataInputStream in = new DataInputStream(new GZIPInputStream(raw, BUFFER));
+      long newSize = readOffset(in);
+      if (newSize < 0 || newSize > maxSize) {
+        throw new IOException("patch_bad_size " + newSize);
+      }
+      // the base may be far larger than the heap allows; map it instead of reading it
+      MappedByteBuffer old = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      long oldSize = channel.size();
+      byte[] buf = new byte[BUFFER];
+      long newPos = 0;
+      long oldPos = 0;
+      while (newPos < newSize) {
+        long diffLen = readOffset(in);
+        long extraLen = readOffset(in);
+        long seek = readOffset(in);
+        if (diffLen < 0 || extraLen < 0 || newPos + diffLen + extraLen > newSize) {
+          throw new IOException("patch_corrupt control at " + newPos);
+        }
+        for (long left = diffLen; left > 0; ) {
+          int n = (int) Math.min(left, buf.length);
+          in.readFully(buf, 0, n);
+          for (int i = 0; i < n; i++) {
+            long at = oldPos + i;
+            if (at >= 0 && at < oldSize) {
+              buf[i] += old.get((int) at);
+            }
+          }
+          out.write(buf, 0, n);
+          oldPos += n;
+          left -= n;
+        }
+        for (long left = extraLen; left > 0; ) {
+          int n = (int) Math.min(left, buf.length);
+          in.readFully(buf, 0, n);
+          out.write(buf, 0, n);
+          left -= n;
+        }
+        newPos += diffLen + extraLen;
+        oldPos += seek;
+      }
+      return newPos;
+    } catch (EOFException e) {
+      throw new IOException("patch_truncated", e);
+    }
+  }
+
+  /** Reads a bsdiff offset: 8 bytes little-endian, sign in the top bit. */
+  private static long readOffset(DataInputStream in) throws IOException {
+    byte[] b = new byte[8];
+    in.readFully(b);
+    long y = b[7] & 0x7f;
+    for (int i = 6; i >= 0; i--) {
+      y = (y << 8) | (b[i] & 0xff);
+    }
+    return (b[7] & 0x80) != 0 ? -y : y;
+  }
+
+  private static String sha256(File file) throws IOException {
+    MessageDigest md = ApkDownloader.newDigest();
+    try (InputStream in = new FileInputStream(file)) {
+      byte[] buf = new byte[BUFFER];
+      int read;
+      while ((read = in.read(buf)) != -1) {
+        md.update(buf, 0, read);
+      }
+    }
+    return ApkDownloader.hex(md.digest());
+  }
+}
@@ -0,0 +1,11 @@
+package com.afwsamples.testdpc.mdm;
+
+import org.json.JSONObject;
+
+/**
+ * Executes one inbox command type. Implementations fill {@code ack} with at least {@code success}
+ * and, on failure, {@code error}; {@code id}, {@code command} and {@code qid} are already set.
+ */
+public interface CommandHandler {
+  void handle(SyncContext sync, JSONObject cmd, JSONObject ack) throws Exception;
+}
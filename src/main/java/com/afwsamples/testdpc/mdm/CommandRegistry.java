@@ -0,0 +1,28 @@
+package com.afwsamples.testdpc.mdm;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Maps lower-cased inbox command types to their {@link CommandHandler}. */
+public final class CommandRegistry {
+  private static final Map<String, CommandHandler> HANDLERS = new ConcurrentHashMap<>();
+
+  private CommandRegistry() {}
+
+  public static void register(String type, CommandHandler handler) {
+    HANDLERS.put(normalize(type), handler);
+  }
+
+  /** Returns the handler for {@code type}, or null if the type is not supported. */
+  public static CommandHandler lookup(String type) {
+    if (type == null || type.isEmpty()) {
+      return null;
+    }
+    return HANDLERS.get(normalize(type));
+  }
+
+  private static String normalize(String type) {
+    return type.toLowerCase(Locale.US);
+  }
+}
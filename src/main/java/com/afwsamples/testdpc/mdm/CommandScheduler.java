@@ -0,0 +1,217 @@
+package com.afwsamples.testdpc.mdm;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Executes one inbox batch in independent lanes so a slow download does not hold back policy
+ * calls. Commands keep inbox order within their lane, and a command touching a package waits for
+ * any earlier command on the same package in another lane.
+ *
+ * <p>Lanes run on one process-wide pool whose threads outlive a batch, so syncs and pushes reuse
+ * them instead of starting new ones. Each lane of a batch is a serial queue with at most one task
+ * on the pool, so the pool never holds more threads than lanes times concurrent batches.
+ */
+final class CommandScheduler {
+
+  /** Execution lane of a command type. */
+  enum Lane {
+    /** Commands dominated by downloads. */
+    NETWORK,
+    /** Quick DevicePolicyManager calls. */
+    DPM,
+    /** Device-wide state changes that must not interleave with each other. */
+    ORDERED
+  }
+
+  /** Yields inbox commands one at a time; null marks the end of the batch. */
+  interface CommandSource {
+    JSONObject next() throws IOException;
+  }
+
+  /** Runs a single command and returns its ack, or null if it has none to send; must not throw. */
+  interface CommandRunner {
+    JSONObject run(JSONObject cmd);
+  }
+
+  /** Builds and stores the ack of a command dropped before it ran; must not throw. */
+  interface DropHandler {
+    JSONObject dropped(JSONObject cmd, String reason);
+  }
+
+  private static final Map<String, Lane> LANES = new HashMap<>();
+  private static final long IDLE_THREAD_MS = TimeUnit.SECONDS.toMillis(60);
+  /**
+   * Unbounded on paper only: every batch keeps at most one task per lane here. Lanes of different
+   * batches must not share a thread, because a waiting lane would then block another batch's lane
+   * that its own dependency is queued behind.
+   */
+  private static final ThreadPoolExecutor POOL =
+      new ThreadPoolExecutor(
+          0,
+          Integer.MAX_VALUE,
+          IDLE_THREAD_MS,
+          TimeUnit.MILLISECONDS,
+          new SynchronousQueue<>(),
+          r -> new Thread(r, "mdm-cmd-lane"));
+
+  static {
+    LANES.put("install_apk_package", Lane.NETWORK);
+    LANES.put("wipe", Lane.ORDERED);
+    LANES.put("set_lock_screen", Lane.ORDERED);
+    LANES.put("set_password_policy", Lane.ORDERED);
+    LANES.put("request_password_change", Lane.ORDERED);
+    LANES.put("set_password_complexity", Lane.ORDERED);
+  }
+
+  private CommandScheduler() {}
+
+  /**
+   * Runs commands as {@code source} yields them and returns their acks in inbox order. Each
+   * command is dispatched to its lane as soon as it is read, so execution overlaps parsing. If the
+   * source fails, commands already dispatched still complete before the error is rethrown.
+   */
+  static JSONArray run(CommandSource source, CommandRunner runner, DropHandler dropHandler)
+      throws IOException, InterruptedException {
+    List<JSONObject> acks = new ArrayList<>();
+    List<Lane> laneOf = new ArrayList<>();
+    List<CountDownLatch> done = new ArrayList<>();
+    Map<Lane, SerialLane> lanes = new EnumMap<>(Lane.class);
+    Map<String, Integer> lastTouch = new HashMap<>();
+    try {
+      JSONObject cmd;
+      while ((cmd = source.next()) != null) {
+        final int idx = acks.size();
+        final JSONObject command = cmd;
+        Lane lane = laneFor(command);
+        List<CountDownLatch> deps = new ArrayList<>();
+        for (String pkg : packagesOf(command)) {
+          Integer prev = lastTouch.put(pkg, idx);
+          if (prev != null && laneOf.get(prev) != lane && !deps.contains(done.get(prev))) {
+            deps.add(done.get(prev));
+          }
+        }
+        CountDownLatch mine = new CountDownLatch(1);
+        synchronized (acks) {
+          acks.add(null);
+        }
+        laneOf.add(lane);
+        done.add(mine);
+        SerialLane executor = lanes.get(lane);
+        if (executor == null) {
+          // One task at a time per lane: dependencies always point at earlier commands, which
+          // every lane reaches without waiting on a later one, so the batch cannot deadlock.
+          executor = new SerialLane();
+          lanes.put(lane, executor);
+        }
+        executor.execute(
+            () -> {
+              try {
+                for (CountDownLatch dep : deps) {
+                  dep.await();
+                }
+                JSONObject ack = runner.run(command);
+                synchronized (acks) {
+                  acks.set(idx, ack);
+                }
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                JSONObject ack = dropHandler.dropped(command, "interrupted");
+                synchronized (acks) {
+                  acks.set(idx, ack);
+                }
+              } finally {
+                mine.countDown();
+              }
+            });
+      }
+    } finally {
+      for (CountDownLatch latch : done) {
+        latch.await();
+      }
+    }
+    JSONArray out = new JSONArray();
+    synchronized (acks) {
+      for (JSONObject ack : acks) {
+        if (ack != null) {
+          out.put(ack);
+        }
+      }
+    }
+    return out;
+  }
+
+  /** Runs its tasks one after another on {@link #POOL}, in submission order. */
+  private static final class SerialLane implements Executor {
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+    private boolean active;
+
+    @Override
+    public synchronized void execute(Runnable task) {
+      tasks.add(
+          () -> {
+            try {
+              task.run();
+            } finally {
+              scheduleNext();
+            }
+          });
+      if (!active) {
+        scheduleNext();
+      }
+    }
+
+    private synchronized void scheduleNext() {
+      Runnable next = tasks.poll();
+      active = next != null;
+      if (active) {
+        POOL.execute(next);
+      }
+    }
+  }
+
+  static Lane laneFor(JSONObject cmd) {
+    String type = cmd.optString("type", cmd.optString("command", "")).toLowerCase(Locale.US);
+    Lane lane = LANES.get(type);
+    return lane != null ? lane : Lane.DPM;
+  }
+
+  /** Packages a command reads or mutates, used for cross-lane ordering. */
+  static Set<String> packagesOf(JSONObject cmd) {
+    Set<String> out = new LinkedHashSet<>();
+    JSONObject payload = cmd.optJSONObject("payload");
+    if (payload == null) {
+      return out;
+    }
+    String single = payload.optString("package", payload.optString("package_name", null));
+    if (single != null && !single.isEmpty()) {
+      out.add(single);
+    }
+    JSONArray arr = payload.optJSONArray("packages");
+    if (arr != null) {
+      for (int i = 0; i < arr.length(); i++) {
+        String p = arr.optString(i, null);
+        if (p != null && !p.isEmpty()) {
+          out.add(p);
+        }
+      }
+    }
+    return out;
+  }
+
+}
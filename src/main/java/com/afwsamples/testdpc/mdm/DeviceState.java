@@ -0,0 +1,102 @@
+package com.afwsamples.testdpc.mdm;
+
+import android.app.admin.DevicePolicyManager;
+import android.content.ComponentName;
+import android.content.Context;
+import com.afwsamples.testdpc.DeviceAdminReceiver;
+import com.afwsamples.testdpc.FileLogger;
+import com.afwsamples.testdpc.common.Util;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Compact device state published as the retained MQTT presence message. Bulky parts (restrictions,
+ * inventory) are reduced to short hashes, so the message is small and an unchanged device
+ * produces a byte-identical document.
+ */
+public final class DeviceState {
+
+  private DeviceState() {}
+
+  /** Builds the current state; failures of one part leave that part out. */
+  public static JSONObject build(Context context) {
+    JSONObject state = new JSONObject();
+    try {
+      state.put("device_owner", Util.isDeviceOwner(context));
+      String etag = PolicyConfig.getPolicyEtag(context);
+      if (etag != null) {
+        state.put("policy_etag", etag);
+      }
+      JSONObject lock = lockScreen(context);
+      if (lock != null) {
+        state.put("lock_screen", lock);
+      }
+      JSONObject restrictions =
+          UserRestrictionsManager.snapshot(context).optJSONObject("restrictions");
+      if (restrictions != null) {
+        state.put("restrictions_hash", hashSorted(restrictions));
+      }
+      state.put("inventory_hash", inventoryHash(context));
+    } catch (Exception e) {
+      FileLogger.log(context, "DeviceState build error: " + e.getMessage());
+    }
+    return state;
+  }
+
+  private static JSONObject lockScreen(Context context) throws JSONException {
+    DevicePolicyManager dpm =
+        (DevicePolicyManager) context.getSystemService(Context.DEVICE_POLICY_SERVICE);
+    ComponentName admin = DeviceAdminReceiver.getComponentName(context);
+    if (dpm == null || admin == null || !dpm.isAdminActive(admin)) {
+      return null;
+    }
+    JSONObject lock = new JSONObject();
+    lock.put("keyguard_disabled_features", dpm.getKeyguardDisabledFeatures(admin));
+    lock.put("max_time_to_lock_ms", dpm.getMaximumTimeToLock(admin));
+    lock.put("password_quality", dpm.getPasswordQuality(admin));
+    CharSequence info = dpm.getDeviceOwnerLockScreenInfo();
+    if (info != null) {
+      lock.put("info_hash", hash(info.toString()));
+    }
+    return lock;
+  }
+
+  private static String inventoryHash(Context context) {
+    // entries come sorted by package, so equal inventories hash equally
+    JSONArray inventory = InventoryIndex.snapshot(context);
+    StringBuilder sb = new StringBuilder(inventory.length() * 17);
+    for (int i = 0; i < inventory.length(); i++) {
+      JSONObject entry = inventory.optJSONObject(i);
+      if (entry != null) {
+        sb.append(InventoryStore.fingerprint(entry)).append(',');
+      }
+    }
+    return hash(sb.toString());
+  }
+
+  private static String hashSorted(JSONObject obj) {
+    List<String> keys = new ArrayList<>();
+    for (Iterator<String> it = obj.keys(); it.hasNext(); ) {
+      keys.add(it.next());
+    }
+    Collections.sort(keys);
+    StringBuilder sb = new StringBuilder();
+    for (String key : keys) {
+      sb.append(key).append('=').append(obj.opt(key)).append(',');
+    }
+    return hash(sb.toString());
+  }
+
+  /** First 16 hex digits of the SHA-256 of {@code s}. */
+  static String hash(String s) {
+    MessageDigest md = ApkDownloader.newDigest();
+    return ApkDownloader.hex(md.digest(s.getBytes(StandardCharsets.UTF_8))).substring(0, 16);
+  }
+}
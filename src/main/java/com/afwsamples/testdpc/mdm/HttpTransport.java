@@ -0,0 +1,479 @@
+package com.afwsamples.testdpc.mdm;
+
+import android.content.Context;
+import android.util.Log;
+import androidx.annotation.VisibleForTesting;
+import com.afwsamples.testdpc.FileLogger;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.Certificate;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.net.ssl.HttpsURLConnection;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Shared HTTP transport for the MDM backend, enrolment and baseline downloads.
+ *
+ * <p>The platform {@link HttpURLConnection} keeps a process-wide pool of keep-alive sockets, but a
+ * socket only goes back to the pool when its response has been read to the end and closed without
+ * {@code disconnect()}. Every call here does exactly that, so one sync reuses a single TLS session
+ * for /policy, /inbox, /ack and /inventory. Response bodies are requested gzip-encoded and larger
+ * JSON request bodies are sent gzip-encoded; a server answering 415 to a compressed body is retried
+ * once uncompressed and request compression is then switched off for the process. Latency, byte
+ * counts and errors are recorded per endpoint.
+ */
+public final class HttpTransport {
+  private static final String TAG = "HttpTransport";
+  private static final int CONNECT_TIMEOUT_MS = 15000;
+  private static final int READ_TIMEOUT_MS = 15000;
+  private static final int GZIP_MIN_BYTES = 1024;
+  /** Bytes of an unread response worth draining to keep the socket; beyond that, drop it. */
+  private static final int MAX_DRAIN_BYTES = 64 * 1024;
+  private static final int HTTP_UNSUPPORTED_MEDIA_TYPE = 415;
+
+  private static final Map<String, EndpointStats> STATS = new ConcurrentHashMap<>();
+  private static volatile boolean sGzipRequests = true;
+
+  private HttpTransport() {}
+
+  /** One request; endpoint is the metrics key, e.g. "POST /inbox". */
+  public static final class Request {
+    final String endpoint;
+    final String url;
+    String method = "GET";
+    byte[] body;
+    boolean gzipBody;
+    boolean captureCertificates;
+    int readTimeoutMs = READ_TIMEOUT_MS;
+    final Map<String, String> headers = new LinkedHashMap<>();
+
+    public Request(String endpoint, String url) {
+      this.endpoint = endpoint;
+      this.url = url;
+    }
+
+    public Request method(String method) {
+      this.method = method;
+      return this;
+    }
+
+    public Request header(String name, String value) {
+      headers.put(name, value);
+      return this;
+    }
+
+    /** Sets a JSON body; it is gzip-encoded when large enough. */
+    public Request json(byte[] body) {
+      this.body = body;
+      this.gzipBody = true;
+      headers.put("Content-Type", "application/json; charset=utf-8");
+      return this;
+    }
+
+    public Request readTimeout(int ms) {
+      this.readTimeoutMs = ms;
+      return this;
+    }
+
+    /** Records the server certificate chain on the response (HTTPS only). */
+    public Request captureCertificates() {
+      this.captureCertificates = true;
+      return this;
+    }
+  }
+
+  /** A fully read response. */
+  public static final class Response {
+    public final int code;
+    public final String body;
+    public final Certificate[] certificates;
+    private final Map<String, String> headers;
+
+    Response(int code, String body, Certificate[] certificates, Map<String, String> headers) {
+      this.code = code;
+      this.body = body;
+      this.certificates = certificates;
+      this.headers = headers;
+    }
+
+    public boolean isSuccessful() {
+      return code >= 200 && code < 300;
+    }
+
+    /** Header value by lower-case name, or null. */
+    public String header(String name) {
+      return headers.get(name);
+    }
+  }
+
+  /**
+   * An open response for callers that consume the body incrementally. {@link #close} drains small
+   * leftovers so the socket can be reused, and records the endpoint latency.
+   */
+  public static final class Stream implements Closeable {
+    public final int code;
+    private final Request request;
+    private final HttpURLConnection conn;
+    private final InputStream in;
+    private final long startNanos;
+    private final AtomicLong wireBytes;
+    private boolean closed;
+
+    Stream(
+        Request request,
+        HttpURLConnection conn,
+        int code,
+        InputStream in,
+        long startNanos,
+        AtomicLong wireBytes) {
+      this.request = request;
+      this.conn = conn;
+      this.code = code;
+      this.in = in;
+      this.startNanos = startNanos;
+      this.wireBytes = wireBytes;
+    }
+
+    public boolean isSuccessful() {
+      return code >= 200 && code < 300;
+    }
+
+    /** Decoded response body, or null if the server sent none. */
+    public InputStream body() {
+      return in;
+    }
+
+    /** Declared length of the (possibly encoded) body, or -1. */
+    public long contentLength() {
+      String value = conn.getHeaderField("Content-Length");
+      try {
+        return value != null ? Long.parseLong(value) : -1L;
+      } catch (NumberFormatException e) {
+        return -1L;
+      }
+    }
+
+    public String header(String name) {
+      return conn.getHeaderField(name);
+    }
+
+    /** Reads the remaining body as UTF-8; meant for error responses and small documents. */
+    public String readString() throws IOException {
+      return in == null ? null : readFully(in);
+    }
+
+    @Override
+    public void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      boolean reusable = drain(in);
+      if (!reusable) {
+        conn.disconnect();
+      }
+      record(request.endpoint, code, startNanos, wireBytes.get(), !isSuccessful());
+    }
+  }
+
+  /** Executes {@code request} and reads the whole response. */
+  public static Response execute(Request request) throws IOException {
+    long start = System.nanoTime();
+    AtomicLong wireBytes = new AtomicLong();
+    int code = -1;
+    boolean complete = false;
+    try {
+      HttpURLConnection conn = connect(request);
+      code = conn.getResponseCode();
+      Certificate[] certs = null;
+      if (request.captureCertificates && conn instanceof HttpsURLConnection) {
+        try {
+          certs = ((HttpsURLConnection) conn).getServerCertificates();
+        } catch (Exception e) {
+          Log.w(TAG, "server certificates unavailable", e);
+        }
+      }
+      Map<String, String> headers = new LinkedHashMap<>();
+      for (Map.Entry<String, List<String>> e : conn.getHeaderFields().entrySet()) {
+        if (e.getKey() != null && !e.getValue().isEmpty()) {
+          headers.put(e.getKey().toLowerCase(Locale.US), e.getValue().get(0));
+        }
+      }
+      String body = null;
+      InputStream in = responseStream(conn, code, wireBytes);
+      try {
+        if (in != null) {
+          body = readFully(in);
+        }
+      } catch (IOException e) {
+        conn.disconnect();
+        throw e;
+      } finally {
+        closeQuietly(in);
+      }
+      complete = true;
+      return new Response(code, body, certs, headers);
+    } finally {
+      // failures are recorded too, with whatever code and bytes were seen before them
+      boolean error = !complete || code < 200 || code >= 300;
+      record(request.endpoint, code, start, wireBytes.get(), error);
+    }
+  }
+
+  /** Executes {@code request} and hands the open response to the caller, who must close it. */
+  public static Stream open(Request request) throws IOException {
+    long start = System.nanoTime();
+    AtomicLong wireBytes = new AtomicLong();
+    int code = -1;
+    try {
+      HttpURLConnection conn = connect(request);
+      code = conn.getResponseCode();
+      InputStream in = responseStream(conn, code, wireBytes);
+      return new Stream(request, conn, code, in, start, wireBytes);
+    } catch (IOException e) {
+      record(request.endpoint, code, start, wireBytes.get(), true);
+      throw e;
+    }
+  }
+
+  /** Per-endpoint counters: count, errors, avg/max/last latency and wire bytes received. */
+  public static JSONObject metrics() {
+    JSONObject out = new JSONObject();
+    for (Map.Entry<String, EndpointStats> e : STATS.entrySet()) {
+      try {
+        out.put(e.getKey(), e.getValue().toJson());
+      } catch (JSONException ignore) {
+        // best-effort
+      }
+    }
+    return out;
+  }
+
+  private static HttpURLConnection connect(Request request) throws IOException {
+    byte[] body = request.body;
+    boolean gzip = false;
+    if (body != null && request.gzipBody && sGzipRequests && body.length >= GZIP_MIN_BYTES) {
+      body = gzip(body);
+      gzip = true;
+    }
+    HttpURLConnection conn = newConnection(request, body, gzip);
+    if (gzip && conn.getResponseCode() == HTTP_UNSUPPORTED_MEDIA_TYPE) {
+      sGzipRequests = false;
+      drain(responseStream(conn, HTTP_UNSUPPORTED_MEDIA_TYPE, null));
+      Log.i(TAG, "server rejected gzip request body; sending uncompressed from now on");
+      conn = newConnection(request, request.body, false);
+    }
+    return conn;
+  }
+
+  private static HttpURLConnection newConnection(Request request, byte[] body, boolean gzip)
+      throws IOException {
+    HttpURLConnection conn = (HttpURLConnection) new URL(request.url).openConnection();
+    conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
+    conn.setReadTimeout(request.readTimeoutMs);
+    conn.setRequestMethod(request.method);
+    conn.setInstanceFollowRedirects(true);
+    conn.setRequestProperty("Connection", "keep-alive");
+    if (!request.headers.containsKey("Accept-Encoding")) {
+      // set explicitly so the encoding is visible to us and decoded in responseStream
+      conn.setRequestProperty("Accept-Encoding", "gzip");
+    }
+    for (Map.Entry<String, String> h : request.headers.entrySet()) {
+      conn.setRequestProperty(h.getKey(), h.getValue());
+    }
+    if (body != null) {
+      if (gzip) {
+        conn.setRequestProperty("Content-Encoding", "gzip");
+      }
+      conn.setDoOutput(true);
+      conn.setFixedLengthStreamingMode(body.length);
+      try (OutputStream os = conn.getOutputStream()) {
+        os.write(body);
+      }
+    } else if ("POST".equals(request.method)) {
+      conn.setDoOutput(true);
+      conn.setFixedLengthStreamingMode(0);
+    }
+    return conn;
+  }
+
+  /**
+   * Returns the decoded response body, or null. If {@code wireBytes} is set, it receives the count
+   * of bytes read off the connection before decoding.
+   */
+  private static InputStream responseStream(
+      HttpURLConnection conn, int code, AtomicLong wireBytes) throws IOException {
+    InputStream in;
+    try {
+      in = code >= 200 && code < 400 ? conn.getInputStream() : conn.getErrorStream();
+    } catch (IOException e) {
+      in = conn.getErrorStream();
+    }
+    if (in != null && wireBytes != null) {
+      in = new CountingInputStream(in, wireBytes);
+    }
+    if (in != null && "gzip".equalsIgnoreCase(conn.getContentEncoding())) {
+      in = new GZIPInputStream(in);
+    }
+    return in;
+  }
+
+  private static byte[] gzip(byte[] data) throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 4 + 64);
+    try (GZIPOutputStream gz = new GZIPOutputStream(bos)) {
+      gz.write(data);
+    }
+    return bos.toByteArray();
+  }
+
+  private static String readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    byte[] buf = new byte[8192];
+    int r;
+    while ((r = in.read(buf)) != -1) {
+      bos.write(buf, 0, r);
+    }
+    return new String(bos.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  /** Reads what is left of a small response; returns false if the socket should be dropped. */
+  private static boolean drain(InputStream in) {
+    if (in == null) {
+      return true;
+    }
+    try {
+      byte[] buf = new byte[8192];
+      int total = 0;
+      int r;
+      while ((r = in.read(buf)) != -1) {
+        total += r;
+        if (total > MAX_DRAIN_BYTES) {
+          return false;
+        }
+      }
+      return true;
+    } catch (IOException e) {
+      return false;
+    } finally {
+      closeQuietly(in);
+    }
+  }
+
+  /** Adds every byte read through it to a shared counter. */
+  private static final class CountingInputStream extends FilterInputStream {
+    private final AtomicLong count;
+
+    CountingInputStream(InputStream in, AtomicLong count) {
+      super(in);
+      this.count = count;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b != -1) {
+        count.incrementAndGet();
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int r = super.read(b, off, len);
+      if (r > 0) {
+        count.addAndGet(r);
+      }
+      return r;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long r = super.skip(n);
+      count.addAndGet(r);
+      return r;
+    }
+  }
+
+  private static void closeQuietly(InputStream in) {
+    if (in != null) {
+      try {
+        in.close();
+      } catch (IOException ignore) {
+        // ignore
+      }
+    }
+  }
+
+  private static void record(
+      String endpoint, int code, long startNanos, long bytesIn, boolean error) {
+    long ms = (System.nanoTime() - startNanos) / 1_000_000L;
+    EndpointStats stats = STATS.get(endpoint);
+    if (stats == null) {
+      STATS.putIfAbsent(endpoint, new EndpointStats());
+      stats = STATS.get(endpoint);
+    }
+    stats.add(ms, bytesIn, error);
+    Log.d(TAG, endpoint + " code=" + code + " ms=" + ms);
+  }
+
+  /** Turns request compression back on, as after a restart. */
+  @VisibleForTesting
+  static void resetForTesting() {
+    sGzipRequests = true;
+  }
+
+  /** Logs the metrics table to the provisioning log. */
+  public static void logMetrics(Context context) {
+    FileLogger.log(context, "HttpTransport metrics " + metrics());
+  }
+
+  private static final class EndpointStats {
+    final AtomicLong count = new AtomicLong();
+    final AtomicLong errors = new AtomicLong();
+    final AtomicLong totalMs = new AtomicLong();
+    final AtomicLong maxMs = new AtomicLong();
+    final AtomicLong lastMs = new AtomicLong();
+    final AtomicLong bytesIn = new AtomicLong();
+
+    void add(long ms, long bytes, boolean error) {
+      count.incrementAndGet();
+      if (error) {
+        errors.incrementAndGet();
+      }
+      totalMs.addAndGet(ms);
+      lastMs.set(ms);
+      bytesIn.addAndGet(bytes);
+      long prev;
+      while (ms > (prev = maxMs.get()) && !maxMs.compareAndSet(prev, ms)) {
+        // retry
+      }
+    }
+
+    JSONObject toJson() throws JSONException {
+      JSONObject o = new JSONObject();
+      long n = count.get();
+      o.put("count", n);
+      o.put("errors", errors.get());
+      o.put("avg_ms", n == 0 ? 0 : totalMs.get() / n);
+      o.put("max_ms", maxMs.get());
+      o.put("last_ms", lastMs.get());
+      o.put("bytes_in", bytesIn.get());
+      return o;
+    }
+  }
+}
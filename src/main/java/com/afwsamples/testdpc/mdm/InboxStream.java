@@ -0,0 +1,184 @@
+package com.afwsamples.testdpc.mdm;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Reads an /inbox response straight from the connection, one command at a time, so a large batch
+ * is never held as a string and a parsed tree at once. Top-level fields other than {@code results}
+ * and {@code acked} are skipped. The body is capped at {@link #MAX_BODY_BYTES}.
+ */
+final class InboxStream implements Closeable, CommandScheduler.CommandSource {
+  static final long MAX_BODY_BYTES = 8L * 1024L * 1024L;
+
+  private final HttpTransport.Stream stream;
+  private final CountingInputStream counter;
+  private final JsonReader reader;
+  private JSONArray acked;
+  private boolean sawResults;
+  private boolean inResults;
+  private boolean finished;
+  private int count;
+
+  InboxStream(HttpTransport.Stream stream) throws IOException {
+    InputStream in = stream.body();
+    if (in == null) {
+      throw new IOException("inbox response has no body");
+    }
+    this.stream = stream;
+    this.counter = new CountingInputStream(in, MAX_BODY_BYTES);
+    this.reader = new JsonReader(new InputStreamReader(counter, StandardCharsets.UTF_8));
+    reader.beginObject();
+  }
+
+  /** Returns the next command of {@code results}, or null once the response is exhausted. */
+  @Override
+  public JSONObject next() throws IOException {
+    if (finished) {
+      return null;
+    }
+    while (true) {
+      if (inResults) {
+        while (reader.hasNext()) {
+          if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            continue;
+          }
+          count++;
+          return (JSONObject) readValue(reader);
+        }
+        reader.endArray();
+        inResults = false;
+      }
+      if (!reader.hasNext()) {
+        reader.endObject();
+        finished = true;
+        close();
+        return null;
+      }
+      String name = reader.nextName();
+      if ("results".equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+        sawResults = true;
+        inResults = true;
+        reader.beginArray();
+      } else if ("acked".equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+        acked = (JSONArray) readValue(reader);
+      } else {
+        reader.skipValue();
+      }
+    }
+  }
+
+  /** The {@code acked} idempotency keys; complete only after {@link #next} returned null. */
+  JSONArray getAcked() {
+    return acked;
+  }
+
+  /** False if the response had no {@code results} array. */
+  boolean hasResults() {
+    return sawResults;
+  }
+
+  int getCount() {
+    return count;
+  }
+
+  long getBytesRead() {
+    return counter.count;
+  }
+
+  /** Returns the connection to the transport; drops it if the body was not fully read. */
+  @Override
+  public void close() {
+    stream.close();
+  }
+
+  private static Object readValue(JsonReader reader) throws IOException {
+    try {
+      switch (reader.peek()) {
+        case BEGIN_OBJECT:
+          JSONObject obj = new JSONObject();
+          reader.beginObject();
+          while (reader.hasNext()) {
+            obj.put(reader.nextName(), readValue(reader));
+          }
+          reader.endObject();
+          return obj;
+        case BEGIN_ARRAY:
+          JSONArray arr = new JSONArray();
+          reader.beginArray();
+          while (reader.hasNext()) {
+            arr.put(readValue(reader));
+          }
+          reader.endArray();
+          return arr;
+        case BOOLEAN:
+          return reader.nextBoolean();
+        case NUMBER:
+          return parseNumber(reader.nextString());
+        case NULL:
+          reader.nextNull();
+          return JSONObject.NULL;
+        case STRING:
+        default:
+          return reader.nextString();
+      }
+    } catch (JSONException e) {
+      throw new IOException("inbox parse failed: " + e.getMessage(), e);
+    }
+  }
+
+  private static Object parseNumber(String literal) {
+    try {
+      long l = Long.parseLong(literal);
+      return l >= Integer.MIN_VALUE && l <= Integer.MAX_VALUE ? (Object) (int) l : (Object) l;
+    } catch (NumberFormatException e) {
+      return Double.parseDouble(literal);
+    }
+  }
+
+  /** Counts bytes read and fails once {@code limit} is exceeded. */
+  private static final class CountingInputStream extends FilterInputStream {
+    private final long limit;
+    long count;
+
+    CountingInputStream(InputStream in, long limit) {
+      super(in);
+      this.limit = limit;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0) {
+        add(1);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n > 0) {
+        add(n);
+      }
+      return n;
+    }
+
+    private void add(long n) throws IOException {
+      count += n;
+      if (count > limit) {
+        throw new IOException("inbox body exceeds " + limit + " bytes");
+      }
+    }
+  }
+}
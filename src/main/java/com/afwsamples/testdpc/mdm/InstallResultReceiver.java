@@ -0,0 +1,28 @@
+package com.afwsamples.testdpc.mdm;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/** Receives PackageInstaller session results for sessions committed by install commands. */
+public class InstallResultReceiver extends BroadcastReceiver {
+
+  @Override
+  public void onReceive(Context context, Intent intent) {
+    if (intent == null || !InstallTracker.ACTION_INSTALL_RESULT.equals(intent.getAction())) {
+      return;
+    }
+    final Context app = context.getApplicationContext();
+    final PendingResult pending = goAsync();
+    new Thread(
+            () -> {
+              try {
+                InstallTracker.onResult(app, intent);
+              } finally {
+                pending.finish();
+              }
+            },
+            "mdm-install-result")
+        .start();
+  }
+}
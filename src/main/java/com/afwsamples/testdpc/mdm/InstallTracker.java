@@ -0,0 +1,248 @@
+package com.afwsamples.testdpc.mdm;
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentSender;
+import android.content.SharedPreferences;
+import android.content.pm.PackageInstaller;
+import android.os.Build;
+import com.afwsamples.testdpc.FileLogger;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Correlates {@link PackageInstaller} session results with the install command that committed
+ * the session. The command is acked with status "pending" and no {@code success} once the commit
+ * is accepted; the real status and {@code success} are queued in {@link AckOutbox} as a follow-up
+ * ack with {@code phase} "install_result". Sessions are persisted, so a result delivered after a
+ * process restart still finds its command. Sessions without a command, such as baseline installs,
+ * are tracked with {@link #trackLocal} and their result is handed to a waiter in this process.
+ */
+public final class InstallTracker {
+  static final String ACTION_INSTALL_RESULT = "com.qubit.mdm.ACTION_INSTALL_RESULT";
+  static final String PHASE_INSTALL_RESULT = "install_result";
+  private static final String PREFS = "mdm_install_sessions";
+  private static final long MAX_AGE_MS = TimeUnit.DAYS.toMillis(1);
+  /** Waiters of sessions tracked with {@link #trackLocal}, by session id. */
+  private static final Map<Integer, Pending> WAITERS = new ConcurrentHashMap<>();
+
+  private InstallTracker() {}
+
+  /** Final outcome of one session. */
+  public static final class Result {
+    final int status;
+    final String message;
+    public final long latencyMs;
+
+    Result(int status, String message, long latencyMs) {
+      this.status = status;
+      this.message = message;
+      this.latencyMs = latencyMs;
+    }
+
+    public boolean isSuccess() {
+      return status == PackageInstaller.STATUS_SUCCESS;
+    }
+  }
+
+  /** A committed session whose result someone in this process waits for. */
+  public static final class Pending {
+    /** Pass to {@code Session.commit}. */
+    public final IntentSender sender;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile Result result;
+
+    Pending(IntentSender sender) {
+      this.sender = sender;
+    }
+
+    /** Returns the result, or null if none arrived within {@code timeoutMs}. */
+    public Result await(long timeoutMs) throws InterruptedException {
+      done.await(timeoutMs, TimeUnit.MILLISECONDS);
+      return result;
+    }
+
+    void complete(Result result) {
+      this.result = result;
+      done.countDown();
+    }
+  }
+
+  /**
+   * Records that {@code sessionId} belongs to the command {@code commandId}/{@code qid} started at
+   * {@code startMs}, and returns the sender to pass to {@code Session.commit}.
+   */
+  static IntentSender track(
+      Context context, int sessionId, long commandId, String qid, String pkg, long startMs) {
+    JSONObject record = new JSONObject();
+    try {
+      record.put("id", commandId);
+      if (qid != null) {
+        record.put("qid", qid);
+      }
+      record.put("package", pkg);
+      record.put("start_ms", startMs);
+    } catch (JSONException ignore) {
+      // fields are primitives
+    }
+    return persist(context, sessionId, record);
+  }
+
+  /**
+   * Tracks a session that no command waits on. Its result is not acked but handed to the returned
+   * {@link Pending}; pass {@link Pending#sender} to {@code Session.commit}.
+   */
+  public static Pending trackLocal(Context context, int sessionId, String pkg, long startMs) {
+    JSONObject record = new JSONObject();
+    try {
+      record.put("package", pkg);
+      record.put("start_ms", startMs);
+    } catch (JSONException ignore) {
+      // fields are primitives
+    }
+    Pending pending = new Pending(persist(context, sessionId, record));
+    WAITERS.put(sessionId, pending);
+    return pending;
+  }
+
+  private static IntentSender persist(Context context, int sessionId, JSONObject record) {
+    prune(context);
+    prefs(context).edit().putString(Integer.toString(sessionId), record.toString()).commit();
+    Intent intent =
+        new Intent(ACTION_INSTALL_RESULT)
+            .setClass(context, InstallResultReceiver.class)
+            .putExtra(PackageInstaller.EXTRA_SESSION_ID, sessionId);
+    // the installer fills in EXTRA_STATUS, which an immutable PendingIntent would drop
+    int flags =
+        Build.VERSION.SDK_INT >= Build.VERSION_CODES.S
+            ? PendingIntent.FLAG_MUTABLE | PendingIntent.FLAG_UPDATE_CURRENT
+            : PendingIntent.FLAG_UPDATE_CURRENT;
+    return PendingIntent.getBroadcast(context, sessionId, intent, flags).getIntentSender();
+  }
+
+  /** Forgets a session that was abandoned before commit. */
+  public static void untrack(Context context, int sessionId) {
+    WAITERS.remove(sessionId);
+    prefs(context).edit().remove(Integer.toString(sessionId)).apply();
+  }
+
+  /** Handles a session status broadcast; called off the main thread. */
+  static void onResult(Context context, Intent intent) {
+    int sessionId = intent.getIntExtra(PackageInstaller.EXTRA_SESSION_ID, -1);
+    int status = intent.getIntExtra(PackageInstaller.EXTRA_STATUS, PackageInstaller.STATUS_FAILURE);
+    String message = intent.getStringExtra(PackageInstaller.EXTRA_STATUS_MESSAGE);
+    if (status == PackageInstaller.STATUS_PENDING_USER_ACTION) {
+      // a device owner installs silently; a confirmation prompt means the install cannot finish
+      message = "pending_user_action";
+      status = PackageInstaller.STATUS_FAILURE;
+    }
+    SharedPreferences prefs = prefs(context);
+    String key = Integer.toString(sessionId);
+    JSONObject record = parse(prefs.getString(key, null));
+    prefs.edit().remove(key).apply();
+    long latency =
+        record != null ? System.currentTimeMillis() - record.optLong("start_ms") : -1L;
+    Result result = new Result(status, message, latency);
+    FileLogger.log(
+        context,
+        "InstallTracker session="
+            + sessionId
+            + " status="
+            + status
+            + " msg="
+            + message
+            + " latency_ms="
+            + latency);
+
+    Pending waiter = WAITERS.remove(sessionId);
+    if (waiter != null) {
+      waiter.complete(result);
+    }
+    if (record == null || !record.has("id")) {
+      // unknown, or a local session whose waiter reports it
+      return;
+    }
+    JSONObject ack = new JSONObject();
+    try {
+      ack.put("id", record.optLong("id", -1));
+      if (record.has("qid")) {
+        ack.put("qid", record.optString("qid"));
+      }
+      ack.put("command", "install_apk_package");
+      ack.put("phase", PHASE_INSTALL_RESULT);
+      ack.put("success", result.isSuccess());
+      JSONObject meta = new JSONObject();
+      meta.put("package", record.optString("package"));
+      meta.put("session_id", sessionId);
+      putStatus(meta, result);
+      ack.put("meta", meta);
+      if (!result.isSuccess()) {
+        ack.put("error", errorOf(result));
+      }
+    } catch (JSONException e) {
+      return;
+    }
+    AckOutbox.append(context, ack);
+    AckOutbox.sync(context);
+    if (result.isSuccess()) {
+      MdmSyncManager.requestInventoryReport(record.optString("package"));
+    }
+    MdmSyncManager.syncNow(context, "install_result", null);
+  }
+
+  static void putStatus(JSONObject meta, Result result) throws JSONException {
+    meta.put("install_status", result.isSuccess() ? "success" : "failure");
+    meta.put("install_status_code", result.status);
+    if (result.message != null) {
+      meta.put("install_status_message", result.message);
+    }
+    if (result.latencyMs >= 0) {
+      meta.put("install_latency_ms", result.latencyMs);
+    }
+  }
+
+  public static String errorOf(Result result) {
+    return "install_failed status="
+        + result.status
+        + (result.message != null ? " " + result.message : "");
+  }
+
+  /** Drops records of sessions whose result never arrived. */
+  static void prune(Context context) {
+    SharedPreferences prefs = prefs(context);
+    SharedPreferences.Editor editor = null;
+    long now = System.currentTimeMillis();
+    for (Map.Entry<String, ?> e : prefs.getAll().entrySet()) {
+      JSONObject record = parse(String.valueOf(e.getValue()));
+      if (record == null || now - record.optLong("start_ms") > MAX_AGE_MS) {
+        if (editor == null) {
+          editor = prefs.edit();
+        }
+        editor.remove(e.getKey());
+      }
+    }
+    if (editor != null) {
+      editor.apply();
+    }
+  }
+
+  private static JSONObject parse(String json) {
+    if (json == null) {
+      return null;
+    }
+    try {
+      return new JSONObject(json);
+    } catch (JSONException e) {
+      return null;
+    }
+  }
+
+  private static SharedPreferences prefs(Context context) {
+    return context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+  }
+}
@@ -0,0 +1,215 @@
+package com.afwsamples.testdpc.mdm;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import com.afwsamples.testdpc.FileLogger;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Incrementally maintained inventory, kept in memory and mirrored to disk.
+ *
+ * <p>Package broadcasts seen by {@link com.afwsamples.testdpc.PackageMonitorReceiver} and state
+ * changes the DPC applies itself mark packages dirty; a snapshot only re-describes those. While
+ * the receiver is registered the index is trusted as complete. Otherwise (first use in a process,
+ * or no receiver) a snapshot enumerates installed packages once and re-describes only those that
+ * are new, dirty or whose {@code lastUpdateTime} moved.
+ */
+public final class InventoryIndex {
+  private static final String FILE_NAME = "mdm_inventory_index.json";
+
+  private static final Map<String, JSONObject> ENTRIES = new TreeMap<>();
+  private static final Set<String> DIRTY = new LinkedHashSet<>();
+  private static boolean sLoaded = false;
+  private static boolean sValidated = false;
+  private static boolean sLive = false;
+
+  private InventoryIndex() {}
+
+  /** Called when the package broadcast receiver is (un)registered. */
+  public static synchronized void setLive(boolean live) {
+    sLive = live;
+    if (!live) {
+      // events may be missed from now on; revalidate against the package manager next time
+      sValidated = false;
+    }
+  }
+
+  /** Records a package broadcast; unknown actions are ignored. */
+  public static synchronized void onPackageEvent(String action, String packageName) {
+    if (packageName == null) {
+      return;
+    }
+    if (Intent.ACTION_PACKAGE_ADDED.equals(action)
+        || Intent.ACTION_PACKAGE_REMOVED.equals(action)
+        || Intent.ACTION_PACKAGE_REPLACED.equals(action)
+        || Intent.ACTION_PACKAGE_CHANGED.equals(action)) {
+      DIRTY.add(packageName);
+    }
+  }
+
+  /** Marks packages whose state the DPC just changed (suspend, hide, install, uninstall). */
+  public static synchronized void markDirty(Iterable<String> packageNames) {
+    for (String p : packageNames) {
+      if (p != null) {
+        DIRTY.add(p);
+      }
+    }
+  }
+
+  public static synchronized void markDirty(String packageName) {
+    if (packageName != null) {
+      DIRTY.add(packageName);
+    }
+  }
+
+  /** Returns the current inventory, refreshing only what changed since the last call. */
+  public static synchronized JSONArray snapshot(Context context) {
+    loadLocked(context);
+    InventoryReporter.Probe probe = new InventoryReporter.Probe(context);
+    int refreshed = 0;
+    try {
+      if (!sValidated || !sLive) {
+        refreshed = validateLocked(context, probe);
+        sValidated = true;
+      } else {
+        List<String> dirty = new ArrayList<>(DIRTY);
+        for (String pkg : dirty) {
+          refreshLocked(context, probe, pkg);
+          refreshed++;
+        }
+      }
+      DIRTY.clear();
+    } catch (Exception e) {
+      FileLogger.log(context, "InventoryIndex refresh error: " + e.getMessage());
+    }
+    if (refreshed > 0) {
+      saveLocked(context);
+    }
+    JSONArray out = new JSONArray();
+    for (JSONObject entry : ENTRIES.values()) {
+      out.put(entry);
+    }
+    FileLogger.log(
+        context, "InventoryIndex snapshot count=" + out.length() + " refreshed=" + refreshed);
+    return out;
+  }
+
+  private static int validateLocked(Context context, InventoryReporter.Probe probe) {
+    List<PackageInfo> infos = probe.pm.getInstalledPackages(0);
+    Set<String> present = new HashSet<>();
+    int refreshed = 0;
+    for (PackageInfo info : infos) {
+      present.add(info.packageName);
+      JSONObject cached = ENTRIES.get(info.packageName);
+      boolean stale =
+          cached == null
+              || DIRTY.contains(info.packageName)
+              || cached.optLong("last_update", -1) != info.lastUpdateTime / 1000;
+      if (stale) {
+        describeLocked(context, probe, info);
+        refreshed++;
+      }
+    }
+    for (String pkg : new ArrayList<>(ENTRIES.keySet())) {
+      if (!present.contains(pkg)) {
+        ENTRIES.remove(pkg);
+        refreshed++;
+      }
+    }
+    return refreshed;
+  }
+
+  private static void refreshLocked(
+      Context context, InventoryReporter.Probe probe, String pkg) {
+    PackageInfo info;
+    try {
+      info = probe.pm.getPackageInfo(pkg, 0);
+    } catch (PackageManager.NameNotFoundException e) {
+      ENTRIES.remove(pkg);
+      return;
+    }
+    describeLocked(context, probe, info);
+  }
+
+  private static void describeLocked(
+      Context context, InventoryReporter.Probe probe, PackageInfo info) {
+    try {
+      ENTRIES.put(info.packageName, InventoryReporter.describe(probe, info));
+    } catch (Exception perPkg) {
+      ENTRIES.remove(info.packageName);
+      FileLogger.log(
+          context,
+          "InventoryReporter package skip " + info.packageName + ": " + perPkg.getMessage());
+    }
+  }
+
+  private static void loadLocked(Context context) {
+    if (sLoaded) {
+      return;
+    }
+    sLoaded = true;
+    File f = file(context);
+    if (!f.exists()) {
+      return;
+    }
+    try (FileInputStream in = new FileInputStream(f)) {
+      byte[] data = new byte[(int) f.length()];
+      int off = 0;
+      int read;
+      while (off < data.length && (read = in.read(data, off, data.length - off)) != -1) {
+        off += read;
+      }
+      JSONArray arr = new JSONArray(new String(data, 0, off, StandardCharsets.UTF_8));
+      Map<String, JSONObject> loaded = new HashMap<>();
+      for (int i = 0; i < arr.length(); i++) {
+        JSONObject entry = arr.optJSONObject(i);
+        String pkg = entry != null ? entry.optString("package", null) : null;
+        if (pkg != null) {
+          loaded.put(pkg, entry);
+        }
+      }
+      ENTRIES.putAll(loaded);
+    } catch (Exception e) {
+      FileLogger.log(context, "InventoryIndex load failed: " + e.getMessage());
+      ENTRIES.clear();
+    }
+  }
+
+  private static void saveLocked(Context context) {
+    JSONArray arr = new JSONArray();
+    for (JSONObject entry : ENTRIES.values()) {
+      arr.put(entry);
+    }
+    File f = file(context);
+    File tmp = new File(f.getPath() + ".tmp");
+    try (FileOutputStream out = new FileOutputStream(tmp)) {
+      out.write(arr.toString().getBytes(StandardCharsets.UTF_8));
+    } catch (IOException e) {
+      FileLogger.log(context, "InventoryIndex save failed: " + e.getMessage());
+      return;
+    }
+    if (!tmp.renameTo(f)) {
+      FileLogger.log(context, "InventoryIndex rename failed");
+    }
+  }
+
+  private static File file(Context context) {
+    return new File(context.getFilesDir(), FILE_NAME);
+  }
+}
@@ -0,0 +1,220 @@
+package com.afwsamples.testdpc.mdm;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import androidx.annotation.VisibleForTesting;
+import com.afwsamples.testdpc.FileLogger;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Remembers the inventory last accepted by the server, keyed by package with a fingerprint per
+ * entry, so later uploads only carry added, removed and changed packages. A full snapshot is
+ * still sent when no baseline exists or the periodic reconciliation interval has elapsed.
+ */
+final class InventoryStore {
+  static final long RECONCILE_INTERVAL_MS = TimeUnit.HOURS.toMillis(24);
+  private static final String FILE_NAME = "mdm_inventory_baseline.json";
+  private static final String PREFS = "mdm_inventory";
+  private static final String KEY_LAST_FULL = "last_full_upload_ms";
+  private static final Object LOCK = new Object();
+
+  /** Cached copy of the on-disk baseline: package -> {fp, entry}. */
+  private static Map<String, JSONObject> sBaseline;
+
+  private InventoryStore() {}
+
+  /**
+   * Compares {@code snapshot} with the baseline. The result has {@code mode} "full" (with {@code
+   * packages}) or "delta" (with {@code added}, {@code removed} and {@code changed}).
+   */
+  static JSONObject diff(Context context, JSONArray snapshot) throws JSONException {
+    JSONObject out = new JSONObject();
+    synchronized (LOCK) {
+      Map<String, JSONObject> baseline = loadLocked(context);
+      long lastFull = prefs(context).getLong(KEY_LAST_FULL, 0L);
+      if (baseline.isEmpty() || System.currentTimeMillis() - lastFull > RECONCILE_INTERVAL_MS) {
+        out.put("mode", "full");
+        out.put("packages", snapshot);
+        return out;
+      }
+      JSONArray added = new JSONArray();
+      JSONArray changed = new JSONArray();
+      Map<String, Boolean> seen = new HashMap<>();
+      for (int i = 0; i < snapshot.length(); i++) {
+        JSONObject entry = snapshot.optJSONObject(i);
+        String pkg = entry != null ? entry.optString("package", null) : null;
+        if (pkg == null) {
+          continue;
+        }
+        seen.put(pkg, Boolean.TRUE);
+        JSONObject prev = baseline.get(pkg);
+        if (prev == null) {
+          added.put(entry);
+        } else if (!fingerprint(entry).equals(prev.optString("fp"))) {
+          changed.put(changedFields(prev.optJSONObject("entry"), entry));
+        }
+      }
+      JSONArray removed = new JSONArray();
+      for (String pkg : baseline.keySet()) {
+        if (!seen.containsKey(pkg)) {
+          removed.put(pkg);
+        }
+      }
+      out.put("mode", "delta");
+      out.put("added", added);
+      out.put("removed", removed);
+      out.put("changed", changed);
+      return out;
+    }
+  }
+
+  /** True if the delta carries nothing to upload. */
+  static boolean isEmpty(JSONObject delta) {
+    if ("full".equals(delta.optString("mode"))) {
+      return false;
+    }
+    return lengthOf(delta, "added") == 0
+        && lengthOf(delta, "removed") == 0
+        && lengthOf(delta, "changed") == 0;
+  }
+
+  /** Makes {@code snapshot} the new baseline after the server accepted {@code delta}. */
+  static void commit(Context context, JSONArray snapshot, JSONObject delta) {
+    synchronized (LOCK) {
+      Map<String, JSONObject> baseline = new HashMap<>();
+      JSONObject file = new JSONObject();
+      try {
+        for (int i = 0; i < snapshot.length(); i++) {
+          JSONObject entry = snapshot.optJSONObject(i);
+          String pkg = entry != null ? entry.optString("package", null) : null;
+          if (pkg == null) {
+            continue;
+          }
+          JSONObject record = new JSONObject();
+          record.put("fp", fingerprint(entry));
+          record.put("entry", entry);
+          baseline.put(pkg, record);
+          file.put(pkg, record);
+        }
+      } catch (JSONException e) {
+        FileLogger.log(context, "InventoryStore commit failed: " + e.getMessage());
+        return;
+      }
+      writeFile(context, file.toString());
+      sBaseline = baseline;
+      if ("full".equals(delta.optString("mode"))) {
+        prefs(context).edit().putLong(KEY_LAST_FULL, System.currentTimeMillis()).apply();
+      }
+    }
+  }
+
+  static String fingerprint(JSONObject entry) {
+    // FNV-1a 64 over the canonical entry string; entries are built with a fixed key order.
+    long h = 0xcbf29ce484222325L;
+    String s = entry.toString();
+    for (int i = 0; i < s.length(); i++) {
+      h ^= s.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    return Long.toHexString(h);
+  }
+
+  private static JSONObject changedFields(JSONObject prev, JSONObject cur) throws JSONException {
+    JSONObject out = new JSONObject();
+    out.put("package", cur.optString("package"));
+    for (Iterator<String> it = cur.keys(); it.hasNext(); ) {
+      String key = it.next();
+      Object value = cur.opt(key);
+      if (prev == null || !String.valueOf(value).equals(String.valueOf(prev.opt(key)))) {
+        out.put(key, value);
+      }
+    }
+    if (prev != null) {
+      for (Iterator<String> it = prev.keys(); it.hasNext(); ) {
+        String key = it.next();
+        if (!cur.has(key)) {
+          out.put(key, JSONObject.NULL);
+        }
+      }
+    }
+    return out;
+  }
+
+  private static int lengthOf(JSONObject obj, String key) {
+    JSONArray arr = obj.optJSONArray(key);
+    return arr == null ? 0 : arr.length();
+  }
+
+  /** Forgets the cached baseline, so the next call reloads the file as after a restart. */
+  @VisibleForTesting
+  static void resetForTesting() {
+    synchronized (LOCK) {
+      sBaseline = null;
+    }
+  }
+
+  private static Map<String, JSONObject> loadLocked(Context context) {
+    if (sBaseline != null) {
+      return sBaseline;
+    }
+    Map<String, JSONObject> out = new HashMap<>();
+    File f = file(context);
+    if (f.exists()) {
+      try (FileInputStream in = new FileInputStream(f)) {
+        byte[] data = new byte[(int) f.length()];
+        int off = 0;
+        int read;
+        while (off < data.length && (read = in.read(data, off, data.length - off)) != -1) {
+          off += read;
+        }
+        JSONObject root = new JSONObject(new String(data, 0, off, StandardCharsets.UTF_8));
+        for (Iterator<String> it = root.keys(); it.hasNext(); ) {
+          String pkg = it.next();
+          JSONObject record = root.optJSONObject(pkg);
+          if (record != null) {
+            out.put(pkg, record);
+          }
+        }
+      } catch (Exception e) {
+        FileLogger.log(context, "InventoryStore load failed, forcing full: " + e.getMessage());
+        out.clear();
+      }
+    }
+    sBaseline = out;
+    return out;
+  }
+
+  private static void writeFile(Context context, String content) {
+    File f = file(context);
+    File tmp = new File(f.getPath() + ".tmp");
+    try (FileOutputStream out = new FileOutputStream(tmp)) {
+      out.write(content.getBytes(StandardCharsets.UTF_8));
+      out.getFD().sync();
+    } catch (IOException e) {
+      FileLogger.log(context, "InventoryStore write failed: " + e.getMessage());
+      return;
+    }
+    if (!tmp.renameTo(f)) {
+      FileLogger.log(context, "InventoryStore rename failed");
+    }
+  }
+
+  private static File file(Context context) {
+    return new File(context.getFilesDir(), FILE_NAME);
+  }
+
+  private static SharedPreferences prefs(Context context) {
+    return context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+  }
+}
@@ -4,104 +4,109 @@ import android.content.Context;
 import android.util.Log;
 import com.afwsamples.testdpc.EnrolState;
 import com.afwsamples.testdpc.FileLogger;
-import java.io.BufferedReader;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
+import java.io.IOException;
 import java.net.HttpURLConnection;
-import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-/** Minimal HTTP client for Qubit MDM endpoints. */
+/** Minimal HTTP client for Qubit MDM endpoints, built on the shared {@link HttpTransport}. */
 public final class MdmApiClient {
   private static final String TAG = "MdmApiClient";
   private static final String BASE_URL = "https://user-admin.tailnet.qubitsecured.online/api/mdm";
-  private static final int TIMEOUT_MS = 15000;
 
   private MdmApiClient() {}
 
-  private static HttpURLConnection open(
-      Context context, String path, String method, String deviceToken) throws Exception {
-    URL url = new URL(BASE_URL + path);
-    HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-    conn.setConnectTimeout(TIMEOUT_MS);
-    conn.setReadTimeout(TIMEOUT_MS);
-    conn.setRequestMethod(method);
-    conn.setRequestProperty("Content-Type", "application/json; charset=utf-8");
-    conn.setRequestProperty("Accept", "application/json");
+  private static HttpTransport.Request request(String path, String method, String deviceToken) {
+    HttpTransport.Request request =
+        new HttpTransport.Request(method + " " + path, BASE_URL + path)
+            .method(method)
+            .header("Accept", "application/json");
     if (deviceToken != null) {
-      conn.setRequestProperty("X-Device-Token", deviceToken);
-      conn.setRequestProperty("Authorization", "Device " + deviceToken);
+      request.header("X-Device-Token", deviceToken);
+      request.header("Authorization", "Device " + deviceToken);
     }
-    if ("POST".equals(method)) {
-      conn.setDoOutput(true);
-    }
-    return conn;
+    return request;
   }
 
-  private static String readBody(HttpURLConnection conn, int code) {
-    try {
-      InputStream is =
-          code >= 200 && code < 300 ? conn.getInputStream() : conn.getErrorStream();
-      if (is == null) return null;
-      BufferedReader br = new BufferedReader(new InputStreamReader(is));
-      StringBuilder sb = new StringBuilder();
-      String line;
-      while ((line = br.readLine()) != null) {
-        sb.append(line);
-      }
-      br.close();
-      return sb.toString();
-    } catch (Exception e) {
-      return null;
-    }
+  private static HttpTransport.Response post(String path, String deviceToken, String json)
+      throws IOException {
+    return HttpTransport.execute(
+        request(path, "POST", deviceToken).json(json.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  /** Body length for logging. */
+  private static int len(String body) {
+    return body == null ? 0 : body.length();
   }
 
+  /**
+   * Fetches the policy document, sending the stored {@code policy_etag} as {@code If-None-Match}.
+   *
+   * @return the parsed policy root, or null when the server answered 304 Not Modified
+   */
   public static JSONObject getPolicy(Context context) throws Exception {
     String token = new EnrolState(context).getDeviceToken();
-    HttpURLConnection conn = open(context, "/policy", "GET", token);
-    int code = conn.getResponseCode();
-    String body = readBody(conn, code);
-    conn.disconnect();
-    log(context, "GET /policy code=" + code + " bodyLen=" + (body == null ? 0 : body.length()));
-    if (code >= 200 && code < 300 && body != null) {
+    HttpTransport.Request request = request("/policy", "GET", token);
+    String etag = PolicyConfig.getPolicyEtag(context);
+    if (etag != null && !etag.isEmpty()) {
+      request.header("If-None-Match", quoteEtag(etag));
+    }
+    HttpTransport.Response resp = HttpTransport.execute(request);
+    int code = resp.code;
+    if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+      log(context, "GET /policy code=304 etag=" + etag);
+      return null;
+    }
+    String body = resp.body;
+    log(context, "GET /policy code=" + code + " bodyLen=" + len(body));
+    if (resp.isSuccessful() && body != null) {
       return new JSONObject(body);
     }
     throw new Exception("GET /policy failed code=" + code + " body=" + body);
   }
 
-  public static JSONArray postInbox(Context context, JSONObject payload) throws Exception {
+  private static String quoteEtag(String etag) {
+    if (etag.startsWith("\"") || etag.startsWith("W/")) {
+      return etag;
+    }
+    return "\"" + etag + "\"";
+  }
+
+  /**
+   * Posts to /inbox and returns a reader over the response: {@code results} holds the commands and
+   * the optional {@code acked} array lists idempotency keys of acks piggy-backed on the request.
+   * The caller must close the returned stream.
+   */
+  static InboxStream openInbox(Context context, JSONObject payload) throws Exception {
     String token = new EnrolState(context).getDeviceToken();
-    HttpURLConnection conn = open(context, "/inbox", "POST", token);
-    byte[] bytes = (payload != null ? payload : new JSONObject()).toString().getBytes("UTF-8");
-    OutputStream os = conn.getOutputStream();
-    os.write(bytes);
-    os.flush();
-    os.close();
-    int code = conn.getResponseCode();
-    String body = readBody(conn, code);
-    conn.disconnect();
-    log(context, "POST /inbox code=" + code + " bodyLen=" + (body == null ? 0 : body.length()));
-    if (code >= 200 && code < 300 && body != null) {
-      JSONObject root = new JSONObject(body);
-      return root.optJSONArray("results");
+    byte[] bytes =
+        (payload != null ? payload : new JSONObject()).toString().getBytes(StandardCharsets.UTF_8);
+    HttpTransport.Stream stream =
+        HttpTransport.open(request("/inbox", "POST", token).json(bytes));
+    long length = stream.contentLength();
+    log(context, "POST /inbox code=" + stream.code + " contentLength=" + length);
+    try {
+      if (!stream.isSuccessful()) {
+        throw new Exception(
+            "POST /inbox failed code=" + stream.code + " body=" + stream.readString());
+      }
+      if (length > InboxStream.MAX_BODY_BYTES) {
+        throw new Exception("POST /inbox body too large contentLength=" + length);
+      }
+      return new InboxStream(stream);
+    } catch (Exception e) {
+      stream.close();
+      throw e;
     }
-    throw new Exception("POST /inbox failed code=" + code + " body=" + body);
   }
 
   public static JSONObject postAck(Context context, JSONArray commands) throws Exception {
     String token = new EnrolState(context).getDeviceToken();
-    HttpURLConnection conn = open(context, "/ack", "POST", token);
-    byte[] bytes = commands.toString().getBytes("UTF-8");
-    OutputStream os = conn.getOutputStream();
-    os.write(bytes);
-    os.flush();
-    os.close();
-    int code = conn.getResponseCode();
-    String body = readBody(conn, code);
-    conn.disconnect();
-    log(context, "POST /ack code=" + code + " bodyLen=" + (body == null ? 0 : body.length()));
+    HttpTransport.Response resp = post("/ack", token, commands.toString());
+    int code = resp.code;
+    String body = resp.body;
+    log(context, "POST /ack code=" + code + " bodyLen=" + len(body));
     if (code >= 200 && code < 300 && body != null) {
       return new JSONObject(body);
     }
@@ -114,23 +119,15 @@ public final class MdmApiClient {
       return null;
     }
     String token = new EnrolState(context).getDeviceToken();
-    HttpURLConnection conn = open(context, "/inventory", "POST", token);
     JSONObject payload = new JSONObject();
     payload.put("request_id", requestId);
     payload.put("timestamp", System.currentTimeMillis() / 1000);
     payload.put("packages", packages);
     payload.put("device_id", new EnrolState(context).getDeviceId());
-    byte[] bytes = payload.toString().getBytes("UTF-8");
-    OutputStream os = conn.getOutputStream();
-    os.write(bytes);
-    os.flush();
-    os.close();
-    int code = conn.getResponseCode();
-    String body = readBody(conn, code);
-    conn.disconnect();
-    log(
-        context,
-        "POST /inventory code=" + code + " bodyLen=" + (body == null ? 0 : body.length()));
+    HttpTransport.Response resp = post("/inventory", token, payload.toString());
+    int code = resp.code;
+    String body = resp.body;
+    log(context, "POST /inventory code=" + code + " bodyLen=" + len(body));
     if (code >= 200 && code < 300) {
       return body != null ? new JSONObject(body) : null;
     }
@@ -140,21 +137,39 @@ public final class MdmApiClient {
     throw new Exception("POST /inventory failed code=" + code + " body=" + body);
   }
 
+  /** Posts only the packages added, removed or changed since the last accepted inventory. */
+  public static JSONObject postInventoryDelta(Context context, JSONObject delta, String requestId)
+      throws Exception {
+    String token = new EnrolState(context).getDeviceToken();
+    JSONObject payload = new JSONObject();
+    payload.put("request_id", requestId);
+    payload.put("timestamp", System.currentTimeMillis() / 1000);
+    payload.put("mode", "delta");
+    payload.put("added", delta.optJSONArray("added"));
+    payload.put("removed", delta.optJSONArray("removed"));
+    payload.put("changed", delta.optJSONArray("changed"));
+    payload.put("device_id", new EnrolState(context).getDeviceId());
+    HttpTransport.Response resp = post("/inventory", token, payload.toString());
+    int code = resp.code;
+    String body = resp.body;
+    log(
+        context,
+        "POST /inventory delta code=" + code + " bodyLen=" + len(body));
+    if (code >= 200 && code < 300) {
+      return body != null && !body.isEmpty() ? new JSONObject(body) : null;
+    }
+    throw new Exception("POST /inventory delta failed code=" + code + " body=" + body);
+  }
+
   public static JSONObject postLockScreenState(Context context, JSONObject payload) throws Exception {
     if (payload == null) {
       return null;
     }
     String token = new EnrolState(context).getDeviceToken();
-    HttpURLConnection conn = open(context, "/lock-screen/state", "POST", token);
-    byte[] bytes = payload.toString().getBytes("UTF-8");
-    OutputStream os = conn.getOutputStream();
-    os.write(bytes);
-    os.flush();
-    os.close();
-    int code = conn.getResponseCode();
-    String body = readBody(conn, code);
-    conn.disconnect();
-    log(context, "POST /lock-screen/state code=" + code + " bodyLen=" + (body == null ? 0 : body.length()));
+    HttpTransport.Response resp = post("/lock-screen/state", token, payload.toString());
+    int code = resp.code;
+    String body = resp.body;
+    log(context, "POST /lock-screen/state code=" + code + " bodyLen=" + len(body));
     if (code >= 200 && code < 300) {
       return body != null && !body.isEmpty() ? new JSONObject(body) : null;
     }
@@ -164,7 +179,6 @@ public final class MdmApiClient {
   public static JSONObject postPasswordChangeState(
       Context context, String requestId, boolean passwordChanged, String status) throws Exception {
     String token = new EnrolState(context).getDeviceToken();
-    HttpURLConnection conn = open(context, "/password-change/state", "POST", token);
     JSONObject payload = new JSONObject();
     if (requestId != null) {
       payload.put("request_id", requestId);
@@ -174,17 +188,12 @@ public final class MdmApiClient {
     if (status != null) {
       payload.put("status", status);
     }
-    byte[] bytes = payload.toString().getBytes("UTF-8");
-    OutputStream os = conn.getOutputStream();
-    os.write(bytes);
-    os.flush();
-    os.close();
-    int code = conn.getResponseCode();
-    String body = readBody(conn, code);
-    conn.disconnect();
+    HttpTransport.Response resp = post("/password-change/state", token, payload.toString());
+    int code = resp.code;
+    String body = resp.body;
     log(
         context,
-        "POST /password-change/state code=" + code + " bodyLen=" + (body == null ? 0 : body.length()));
+        "POST /password-change/state code=" + code + " bodyLen=" + len(body));
     if (code >= 200 && code < 300) {
       return body != null && !body.isEmpty() ? new JSONObject(body) : null;
     }
@@ -194,20 +203,14 @@ public final class MdmApiClient {
   public static JSONObject postPushToken(Context context, String fcmToken, boolean enabled)
       throws Exception {
     String token = new EnrolState(context).getDeviceToken();
-    HttpURLConnection conn = open(context, "/push-token", "POST", token);
     JSONObject payload = new JSONObject();
     payload.put("token", fcmToken);
     payload.put("platform", "fcm");
     payload.put("enabled", enabled);
-    byte[] bytes = payload.toString().getBytes("UTF-8");
-    OutputStream os = conn.getOutputStream();
-    os.write(bytes);
-    os.flush();
-    os.close();
-    int code = conn.getResponseCode();
-    String body = readBody(conn, code);
-    conn.disconnect();
-    log(context, "POST /push-token code=" + code + " bodyLen=" + (body == null ? 0 : body.length()));
+    HttpTransport.Response resp = post("/push-token", token, payload.toString());
+    int code = resp.code;
+    String body = resp.body;
+    log(context, "POST /push-token code=" + code + " bodyLen=" + len(body));
     if (code >= 200 && code < 300) {
       return body != null && !body.isEmpty() ? new JSONObject(body) : null;
     }
@@ -216,10 +219,10 @@ public final class MdmApiClient {
 
   public static JSONObject postMqttCredentials(Context context) throws Exception {
     String token = new EnrolState(context).getDeviceToken();
-    HttpURLConnection conn = open(context, "/mqtt/credentials", "POST", token);
-    int code = conn.getResponseCode();
-    String body = readBody(conn, code);
-    conn.disconnect();
+    HttpTransport.Response resp =
+        HttpTransport.execute(request("/mqtt/credentials", "POST", token));
+    int code = resp.code;
+    String body = resp.body;
     log(context, "POST /mqtt/credentials code=" + code + " body=" + body);
     if (code >= 200 && code < 300 && body != null) {
       return new JSONObject(body);
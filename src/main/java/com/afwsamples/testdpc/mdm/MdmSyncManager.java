@@ -1,11 +1,9 @@
 package com.afwsamples.testdpc.mdm;
 
-import android.app.PendingIntent;
 import android.app.admin.DevicePolicyManager;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentSender;
 import android.content.pm.PackageInstaller;
 import android.content.pm.PackageManager;
 import android.location.LocationManager;
@@ -14,37 +12,89 @@ import android.os.PersistableBundle;
 import android.content.SharedPreferences;
 import android.os.UserManager;
 import android.util.Log;
-import com.afwsamples.testdpc.DeviceAdminReceiver;
 import com.afwsamples.testdpc.EnrolState;
+import com.afwsamples.testdpc.EventJournal;
 import com.afwsamples.testdpc.FileLogger;
 import com.afwsamples.testdpc.common.PackageInstallationUtils;
 import com.afwsamples.testdpc.common.Util;
 import com.afwsamples.testdpc.mdm.InventoryReporter;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
+import java.io.OutputStream;
 import java.net.URL;
-import org.json.JSONException;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
 import java.security.MessageDigest;
+import org.json.JSONException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
 /** Runs a manual sync cycle against Qubit backend: policy -> inbox -> ack. */
 public final class MdmSyncManager {
   private static final String TAG = "MdmSyncManager";
-  private static final long MAX_APK_BYTES = 200L * 1024L * 1024L; // 200MB guardrail
   private static final Map<String, Integer> KEYGUARD_FLAGS = new HashMap<>();
+  /** Uncached files at least this large are streamed into the install session, not cached. */
+  private static final long STREAM_INSTALL_MIN_BYTES = 32L * 1024L * 1024L;
+  private static final int MAX_PARALLEL_DOWNLOADS = 3;
   private static final String PREF_PWD = "mdm_pwd_req";
   private static final String KEY_LAST_PWD_REQ_ID = "last_request_id";
+  private static final ExecutorService SYNC_EXECUTOR =
+      Executors.newSingleThreadExecutor(r -> new Thread(r, "mdm-sync"));
+  private static final Object SYNC_LOCK = new Object();
+  private static final List<String> sPendingTriggers = new ArrayList<>();
+  private static final List<SyncCallback> sPendingCallbacks = new ArrayList<>();
+  private static boolean sSyncScheduled = false;
+  private static final List<SyncCallback> OBSERVERS = new CopyOnWriteArrayList<>();
+  private static final Object INVENTORY_LOCK = new Object();
+  /** Set when a package changed outside a command, e.g. an install session finished. */
+  private static final AtomicBoolean INVENTORY_REPORT_PENDING = new AtomicBoolean();
+  private static final ExecutorService PUSH_EXECUTOR =
+      Executors.newSingleThreadExecutor(r -> new Thread(r, "mdm-push"));
+  /** How long a push batch keeps its lanes open waiting for the next pushed command. */
+  private static final long PUSH_IDLE_MS = 30_000L;
+  private static final LinkedBlockingQueue<JSONObject> PUSH_QUEUE = new LinkedBlockingQueue<>();
+  /** Ack callbacks of queued pushes, by command identity. */
+  private static final Map<JSONObject, AckCallback> PUSH_CALLBACKS =
+      Collections.synchronizedMap(new IdentityHashMap<>());
+  private static final AtomicInteger PUSH_IN_FLIGHT = new AtomicInteger();
+  private static boolean sPushPumpRunning;
+  private static final int MAX_RECENT_COMMANDS = 256;
+  private static final String ERROR_INTERRUPTED = "interrupted";
+  /**
+   * Recently started commands by idempotency key. A command pushed over MQTT is usually listed by
+   * the next inbox as well, until the server has seen its ack; this makes it run once.
+   */
+  private static final Map<String, FutureTask<JSONObject>> RECENT_COMMANDS =
+      new LinkedHashMap<String, FutureTask<JSONObject>>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, FutureTask<JSONObject>> eldest) {
+          return size() > MAX_RECENT_COMMANDS;
+        }
+      };
 
   static {
     KEYGUARD_FLAGS.put("disable_secure_camera", DevicePolicyManager.KEYGUARD_DISABLE_SECURE_CAMERA);
@@ -62,90 +112,478 @@ public final class MdmSyncManager {
     KEYGUARD_FLAGS.put("disable_widgets", DevicePolicyManager.KEYGUARD_DISABLE_WIDGETS_ALL);
   }
 
+  static {
+    CommandRegistry.register("install_apk_package", MdmSyncManager::handleInstall);
+    CommandRegistry.register("uninstall_app", MdmSyncManager::handleUninstall);
+    CommandRegistry.register("suspend_app", MdmSyncManager::handleSuspend);
+    CommandRegistry.register("hide_app", MdmSyncManager::handleHide);
+    CommandRegistry.register("block_uninstall", MdmSyncManager::handleBlockUninstall);
+    CommandRegistry.register("get_user_restrictions", MdmSyncManager::handleGetUserRestrictions);
+    CommandRegistry.register("set_user_restrictions", MdmSyncManager::handleSetUserRestrictions);
+    CommandRegistry.register("set_location", MdmSyncManager::handleSetLocation);
+    CommandRegistry.register("wipe", MdmSyncManager::handleWipe);
+    CommandRegistry.register("set_lock_screen", merging(MdmSyncManager::handleSetLockScreen));
+    CommandRegistry.register(
+        "set_password_policy", merging(MdmSyncManager::handleSetPasswordPolicy));
+    CommandRegistry.register(
+        "request_password_change", merging(MdmSyncManager::handleRequestPasswordChange));
+    CommandRegistry.register(
+        "set_password_complexity", merging(MdmSyncManager::handleSetPasswordComplexity));
+  }
+
   public interface SyncCallback {
     void onComplete(boolean success, String message);
   }
 
+  public interface AckCallback {
+    void onAck(JSONObject ack);
+
+    /**
+     * Called instead of {@link #onAck} when this delivery yields no ack: a run of the same command
+     * through another channel owns it, and that ack reaches the server through {@link AckOutbox}.
+     */
+    void onDropped(String reason);
+  }
+
   private MdmSyncManager() {}
 
-  public static void syncNow(Context context, SyncCallback callback) {
+  /** Registers {@code observer} to be told about every finished sync, whoever triggered it. */
+  public static void addSyncObserver(SyncCallback observer) {
+    OBSERVERS.add(observer);
+  }
+
+  public static void removeSyncObserver(SyncCallback observer) {
+    OBSERVERS.remove(observer);
+  }
+
+  /**
+   * Executes a command pushed over MQTT off the caller's thread and hands its ack to {@code
+   * callback}. Pushed commands run through {@link CommandScheduler} like an inbox batch, so they get
+   * the same lanes and per-package ordering. The ack is also kept in {@link AckOutbox}, so if it
+   * never reaches the server over MQTT the next sync delivers it; call {@link #confirmPushedAck}
+   * once the broker accepted it. Exactly one of the callback's methods is called.
+   */
+  public static void executePushed(Context context, JSONObject cmd, AckCallback callback) {
     final Context app = context.getApplicationContext();
-    final String requestId = Long.toHexString(System.currentTimeMillis());
-    new Thread(
+    PUSH_CALLBACKS.put(cmd, callback);
+    PUSH_QUEUE.add(cmd);
+    synchronized (PUSH_QUEUE) {
+      if (sPushPumpRunning) {
+        return;
+      }
+      sPushPumpRunning = true;
+    }
+    PUSH_EXECUTOR.execute(() -> pumpPushes(app));
+  }
+
+  /**
+   * Feeds queued pushes to one long-lived scheduler batch. The batch ends once every command has
+   * finished and no push arrived for {@link #PUSH_IDLE_MS}, so a long install never holds back a
+   * later push. Each ack is handed out as soon as its command finished.
+   */
+  private static void pumpPushes(Context app) {
+    while (true) {
+      SyncContext sync =
+          new SyncContext(app, "push-" + Long.toHexString(System.currentTimeMillis()));
+      try {
+        CommandScheduler.run(
             () -> {
-              boolean success = false;
-              String msg = "";
               try {
-                String token = new EnrolState(app).getDeviceToken();
-                if (token == null) {
-                  msg = "No device_token; enrol first";
-                  log(app, requestId, msg);
-                  postResult(callback, success, msg);
-                  return;
+                JSONObject next;
+                do {
+                  next = PUSH_QUEUE.poll(PUSH_IDLE_MS, TimeUnit.MILLISECONDS);
+                } while (next == null && PUSH_IN_FLIGHT.get() > 0);
+                if (next != null) {
+                  PUSH_IN_FLIGHT.incrementAndGet();
                 }
+                return next;
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+              }
+            },
+            cmd -> deliverPushed(sync, cmd, executeOnce(sync, cmd, "mqtt")),
+            (cmd, reason) -> deliverPushed(sync, cmd, dropCommand(sync, cmd, reason)));
+      } catch (IOException | InterruptedException e) {
+        log(app, sync.getRequestId(), "Push batch ended: " + e);
+      }
+      synchronized (PUSH_QUEUE) {
+        if (PUSH_QUEUE.isEmpty()) {
+          sPushPumpRunning = false;
+          return;
+        }
+      }
+    }
+  }
 
-                log(app, requestId, "Sync start");
-                FcmPushManager.sync(app);
-                JSONObject policyRoot = MdmApiClient.getPolicy(app);
-                JSONObject policyObj = policyRoot.optJSONObject("policy");
-                String etag = policyRoot.optString("policy_etag", null);
-                int poll = policyRoot.optInt("poll_interval_sec", 30);
-                if (policyObj != null) {
-                  PolicyConfig.savePolicy(app, policyObj.toString(), etag, poll);
-                  log(
-                      app,
-                      requestId,
-                      "Policy saved etag=" + etag + " poll=" + poll + " bodyLen=" + policyObj.length());
-                }
+  private static JSONObject deliverPushed(SyncContext sync, JSONObject cmd, JSONObject ack) {
+    PUSH_IN_FLIGHT.decrementAndGet();
+    AckCallback callback = PUSH_CALLBACKS.remove(cmd);
+    AckOutbox.sync(sync.getContext());
+    if (sync.takeInventoryChanged()) {
+      try {
+        reportInventory(sync);
+      } catch (JSONException e) {
+        log(sync.getContext(), sync.getRequestId(), "Inventory report error: " + e.getMessage());
+      }
+    }
+    if (callback != null) {
+      // always answered, so the caller can release what it holds for this command right away
+      try {
+        if (ack != null) {
+          callback.onAck(ack);
+        } else {
+          callback.onDropped("acked_by_other_run");
+        }
+      } catch (Exception e) {
+        Log.w(TAG, "Ack callback failed", e);
+      }
+    }
+    return ack;
+  }
 
-                boolean isDeviceOwner = Util.isDeviceOwner(app);
-                JSONObject inboxBody = new JSONObject();
-                inboxBody.put("is_device_owner", isDeviceOwner);
-                JSONArray inbox =
-                    MdmApiClient.postInbox(app, inboxBody);
-                JSONArray ackList = new JSONArray();
-                if (inbox != null) {
-                  log(app, requestId, "Inbox size=" + inbox.length());
-                  for (int i = 0; i < inbox.length(); i++) {
-                    JSONObject cmd = inbox.optJSONObject(i);
-                    if (cmd == null) continue;
-                    JSONObject ack = processCommand(app, cmd, requestId);
-                    if (ack != null) {
-                      ackList.put(ack);
-                    }
-                  }
-                } else {
-                  log(app, requestId, "Inbox empty (null results)");
-                }
+  /** Drops an ack from {@link AckOutbox} after the broker accepted it. */
+  public static void confirmPushedAck(Context context, JSONObject ack) {
+    String key = AckOutbox.idempotencyKey(ack);
+    if (key != null) {
+      AckOutbox.remove(context, Collections.singletonList(key));
+    }
+  }
 
-                if (ackList.length() > 0) {
-                  JSONObject ackResp = MdmApiClient.postAck(app, ackList);
-                  log(app, requestId, "Ack sent count=" + ackList.length() + " resp=" + ackResp);
-                } else {
-                  log(app, requestId, "No acks to send");
-                }
+  /** Makes the next sync upload inventory because {@code pkg} changed outside a command. */
+  static void requestInventoryReport(String pkg) {
+    InventoryIndex.markDirty(pkg);
+    INVENTORY_REPORT_PENDING.set(true);
+  }
 
-                success = true;
-                msg = "Sync done, commands acked=" + ackList.length();
-              } catch (Exception e) {
-                Log.e(TAG, "Sync failed", e);
-                log(app, requestId, "Sync error: " + e.getMessage());
-                msg = e.getMessage();
-              }
-              postResult(callback, success, msg);
-            })
-        .start();
+  /** Equivalent to {@link #syncNow(Context, String, SyncCallback)} with trigger "manual". */
+  public static void syncNow(Context context, SyncCallback callback) {
+    syncNow(context, "manual", callback);
   }
 
-  private static void postResult(SyncCallback callback, boolean success, String msg) {
-    if (callback != null) {
-      callback.onComplete(success, msg);
+  /**
+   * Requests a sync. At most one sync runs at a time; triggers arriving while one is in flight are
+   * merged into a single follow-up run, whose result is delivered to every merged callback.
+   */
+  public static void syncNow(Context context, String trigger, SyncCallback callback) {
+    final Context app = context.getApplicationContext();
+    SyncStats.TRIGGERS_RECEIVED.incrementAndGet();
+    synchronized (SYNC_LOCK) {
+      sPendingTriggers.add(trigger != null ? trigger : "unknown");
+      if (callback != null) {
+        sPendingCallbacks.add(callback);
+      }
+      if (sSyncScheduled) {
+        SyncStats.TRIGGERS_COALESCED.incrementAndGet();
+        Log.i(TAG, "Sync already scheduled, coalescing trigger=" + trigger);
+        return;
+      }
+      sSyncScheduled = true;
+    }
+    SYNC_EXECUTOR.execute(() -> drainSyncs(app));
+  }
+
+  private static void drainSyncs(Context app) {
+    while (true) {
+      List<String> triggers;
+      List<SyncCallback> callbacks;
+      synchronized (SYNC_LOCK) {
+        if (sPendingTriggers.isEmpty()) {
+          sSyncScheduled = false;
+          return;
+        }
+        triggers = new ArrayList<>(sPendingTriggers);
+        callbacks = new ArrayList<>(sPendingCallbacks);
+        sPendingTriggers.clear();
+        sPendingCallbacks.clear();
+      }
+      SyncStats.SYNCS_EXECUTED.incrementAndGet();
+      runSync(app, summarizeTriggers(triggers), callbacks);
+    }
+  }
+
+  private static String summarizeTriggers(List<String> triggers) {
+    Map<String, Integer> counts = new LinkedHashMap<>();
+    for (String t : triggers) {
+      Integer c = counts.get(t);
+      counts.put(t, c == null ? 1 : c + 1);
+    }
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, Integer> e : counts.entrySet()) {
+      if (sb.length() > 0) {
+        sb.append(',');
+      }
+      sb.append(e.getKey());
+      if (e.getValue() > 1) {
+        sb.append('x').append(e.getValue());
+      }
+    }
+    return sb.toString();
+  }
+
+  private static void runSync(Context app, String triggers, List<SyncCallback> callbacks) {
+    final long startMs = System.currentTimeMillis();
+    final String requestId = Long.toHexString(startMs);
+    boolean success = false;
+    String msg = "";
+    try {
+      String token = new EnrolState(app).getDeviceToken();
+      if (token == null) {
+        msg = "No device_token; enrol first";
+        log(app, requestId, msg);
+        postResults(callbacks, success, msg);
+        return;
+      }
+
+      EventJournal.record(app, "sync_start", requestId, "triggers", triggers);
+      FcmPushManager.sync(app);
+      JSONObject policyRoot = MdmApiClient.getPolicy(app);
+      SyncStats.POLICY_FETCHES.incrementAndGet();
+      String policyState;
+      if (policyRoot == null) {
+        SyncStats.POLICY_NOT_MODIFIED.incrementAndGet();
+        policyState = "unchanged";
+        String etag = PolicyConfig.getPolicyEtag(app);
+        EventJournal.record(app, "policy", requestId, "state", policyState, "etag", etag);
+      } else {
+        policyState = "fetched";
+        JSONObject policyObj = policyRoot.optJSONObject("policy");
+        String etag = policyRoot.optString("policy_etag", null);
+        int poll = policyRoot.optInt("poll_interval_sec", 30);
+        boolean written = false;
+        int policyBytes = 0;
+        if (policyObj != null) {
+          String policyJson = policyObj.toString();
+          policyBytes = policyJson.getBytes(StandardCharsets.UTF_8).length;
+          written = PolicyConfig.savePolicyIfChanged(app, policyJson, etag, poll);
+        }
+        EventJournal.record(
+            app,
+            "policy",
+            requestId,
+            "state",
+            policyState,
+            "etag",
+            etag,
+            "saved",
+            written,
+            "poll",
+            poll,
+            "policy_bytes",
+            policyBytes);
+      }
+
+      boolean isDeviceOwner = Util.isDeviceOwner(app);
+      JSONObject inboxBody = new JSONObject();
+      inboxBody.put("is_device_owner", isDeviceOwner);
+      JSONArray piggyback = AckOutbox.peek(app, AckOutbox.BATCH_SIZE);
+      if (piggyback.length() > 0) {
+        inboxBody.put("acks", piggyback);
+      }
+      SyncContext sync = new SyncContext(app, requestId);
+      JSONArray ackList;
+      JSONArray acked;
+      try (InboxStream inbox = MdmApiClient.openInbox(app, inboxBody)) {
+        try {
+          ackList =
+              CommandScheduler.run(
+                  inbox,
+                  cmd -> executeOnce(sync, cmd, "inbox"),
+                  (cmd, reason) -> dropCommand(sync, cmd, reason));
+        } finally {
+          // one fsync for the whole batch
+          AckOutbox.sync(app);
+        }
+        acked = inbox.getAcked();
+        EventJournal.record(
+            app,
+            "inbox",
+            requestId,
+            "results",
+            inbox.hasResults(),
+            "count",
+            inbox.getCount(),
+            "bytes",
+            inbox.getBytesRead());
+      }
+      int confirmed = 0;
+      if (piggyback.length() > 0) {
+        confirmed = AckOutbox.confirm(app, acked);
+      }
+      if (sync.takeInventoryChanged() | INVENTORY_REPORT_PENDING.getAndSet(false)) {
+        reportInventory(sync);
+      }
+
+      int unsent = AckOutbox.flush(app, requestId, ackList);
+      EventJournal.record(
+          app,
+          "acks",
+          requestId,
+          "executed",
+          ackList.length(),
+          "pending",
+          unsent,
+          "piggybacked",
+          piggyback.length(),
+          "confirmed",
+          confirmed);
+      HttpTransport.logMetrics(app);
+
+      success = true;
+      msg =
+          "Sync done, commands acked="
+              + ackList.length()
+              + " acks_pending="
+              + unsent
+              + " triggers="
+              + triggers
+              + " policy="
+              + policyState
+              + String.format(Locale.US, " policy_hit_ratio=%.2f", SyncStats.getPolicyHitRatio());
+    } catch (Exception e) {
+      Log.e(TAG, "Sync failed", e);
+      msg = e.getMessage();
     }
+    EventJournal.record(
+        app,
+        "sync_end",
+        requestId,
+        "success",
+        success,
+        "ms",
+        System.currentTimeMillis() - startMs,
+        "msg",
+        msg);
+    postResults(callbacks, success, msg);
+    postResults(OBSERVERS, success, msg);
   }
 
-  private static JSONObject processCommand(Context context, JSONObject cmd, String requestId) {
+  /**
+   * Runs {@code cmd} and stores its ack, unless a command with the same key already ran or is
+   * running; then that ack is waited for and stored again, so the channel asking now gets it too.
+   * Returns null if that wait fails; the run that owns the command sends its ack.
+   */
+  private static JSONObject executeOnce(SyncContext sync, JSONObject cmd, String channel) {
+    String key = AckOutbox.idempotencyKey(cmd);
+    if (key == null) {
+      return runCommand(sync, cmd, channel, null);
+    }
+    FutureTask<JSONObject> task;
+    boolean mine = false;
+    synchronized (RECENT_COMMANDS) {
+      task = RECENT_COMMANDS.get(key);
+      if (task == null) {
+        task = new FutureTask<>(() -> runCommand(sync, cmd, channel, key));
+        RECENT_COMMANDS.put(key, task);
+        mine = true;
+      }
+    }
+    if (mine) {
+      task.run();
+    }
+    JSONObject ack;
+    try {
+      ack = task.get();
+    } catch (ExecutionException e) {
+      if (!mine) {
+        // the run that owns the command acks it
+        log(sync.getContext(), sync.getRequestId(), "Wait for " + key + " failed: " + e);
+        return null;
+      }
+      synchronized (RECENT_COMMANDS) {
+        RECENT_COMMANDS.remove(key, task);
+      }
+      return dropCommand(sync, cmd, "error: " + e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      log(sync.getContext(), sync.getRequestId(), "Wait for " + key + " interrupted");
+      return null;
+    }
+    if (!mine) {
+      log(sync.getContext(), sync.getRequestId(), "Duplicate " + key + " via " + channel);
+      AckOutbox.append(sync.getContext(), ack);
+    }
+    return ack;
+  }
+
+  private static JSONObject runCommand(
+      SyncContext sync, JSONObject cmd, String channel, String key) {
+    Context app = sync.getContext();
+    if (key != null) {
+      // executed before a restart and not yet confirmed by the server; a dropped one runs again
+      JSONObject stored = AckOutbox.find(app, key);
+      if (stored != null && !ERROR_INTERRUPTED.equals(stored.optString("error"))) {
+        log(app, sync.getRequestId(), "Already executed " + key + ", resending ack");
+        return stored;
+      }
+    }
+    long cmdStart = System.currentTimeMillis();
+    JSONObject ack = processCommand(sync, cmd);
+    EventJournal.record(
+        app,
+        "command",
+        sync.getRequestId(),
+        "id",
+        ack.optLong("id", -1),
+        "type",
+        ack.optString("command"),
+        "channel",
+        channel,
+        "success",
+        ack.optBoolean("success"),
+        "status",
+        ack.optString("status", ""),
+        "error",
+        ack.optString("error", ""),
+        "ms",
+        System.currentTimeMillis() - cmdStart);
+    AckOutbox.append(app, ack);
+    return ack;
+  }
+
+  /**
+   * Acks a command that was dropped before it ran as failed with {@code reason}, so the server
+   * learns its fate and can send it again.
+   */
+  private static JSONObject dropCommand(SyncContext sync, JSONObject cmd, String reason) {
+    JSONObject ack = new JSONObject();
+    try {
+      ack.put("id", cmd.optLong("id", -1));
+      ack.put("command", cmd.optString("type", cmd.optString("command", "")));
+      String qid = cmd.optString("qid", null);
+      if (qid != null) {
+        ack.put("qid", qid);
+      }
+      ack.put("success", false);
+      ack.put("error", reason);
+    } catch (JSONException ignore) {
+      // values are primitives
+    }
+    log(
+        sync.getContext(),
+        sync.getRequestId(),
+        "Command dropped id="
+            + ack.optLong("id")
+            + " type="
+            + ack.optString("command")
+            + " reason="
+            + reason);
+    AckOutbox.append(sync.getContext(), ack);
+    return ack;
+  }
+
+  private static void postResults(List<SyncCallback> callbacks, boolean success, String msg) {
+    for (SyncCallback callback : callbacks) {
+      try {
+        callback.onComplete(success, msg);
+      } catch (Exception e) {
+        Log.w(TAG, "Sync callback failed", e);
+      }
+    }
+  }
+
+  private static JSONObject processCommand(SyncContext sync, JSONObject cmd) {
     String typeRaw = cmd.optString("type", cmd.optString("command", ""));
-    String type = typeRaw.toLowerCase(Locale.US);
     long id = cmd.optLong("id", -1);
     JSONObject ack = new JSONObject();
     try {
@@ -157,293 +595,13 @@ public final class MdmSyncManager {
       if (qid != null) {
         ack.put("qid", qid);
       }
-      switch (type) {
-        case "install_apk_package":
-          JSONObject payload = cmd.optJSONObject("payload");
-          JSONObject audit = cmd.optJSONObject("audit");
-          JSONObject installResult =
-              handleInstallCommand(context, payload, audit, requestId, ack.optLong("id", -1));
-          for (java.util.Iterator<String> it = installResult.keys(); it.hasNext(); ) {
-            String key = it.next();
-            ack.put(key, installResult.get(key));
-          }
-          break;
-        case "uninstall_app":
-          JSONObject uninstallPayload = cmd.optJSONObject("payload");
-          String pkgName =
-              uninstallPayload != null ? uninstallPayload.optString("package_name", null) : null;
-          if (pkgName == null) {
-            ack.put("success", false);
-            ack.put("error", "missing_package_name");
-            break;
-          }
-          FileLogger.log(context, "MdmSync uninstall start pkg=" + pkgName);
-          PackageInstallationUtils.uninstallPackage(context, pkgName);
-          FileLogger.log(context, "MdmSync uninstall invoked pkg=" + pkgName);
-          ack.put("success", true);
-          JSONArray inventoryUninstall = InventoryReporter.collect(context);
-          ack.put("inventory", inventoryUninstall);
-          maybePostInventory(context, inventoryUninstall, requestId);
-          break;
-        case "suspend_app":
-          JSONObject suspendPayload = cmd.optJSONObject("payload");
-          JSONArray pkgArray =
-              suspendPayload != null ? suspendPayload.optJSONArray("packages") : null;
-          boolean suspended = suspendPayload != null && suspendPayload.optBoolean("suspended", true);
-          List<String> pkgs = new ArrayList<>();
-          if (pkgArray != null) {
-            for (int i = 0; i < pkgArray.length(); i++) {
-              String p = pkgArray.optString(i, null);
-              if (p != null) pkgs.add(p);
-            }
-          }
-          if (pkgs.isEmpty()) {
-            ack.put("success", false);
-            ack.put("error", "missing_packages");
-            break;
-          }
-          try {
-            DevicePolicyManager dpmSuspend =
-                (DevicePolicyManager) context.getSystemService(Context.DEVICE_POLICY_SERVICE);
-            ComponentName adminSuspend = DeviceAdminReceiver.getComponentName(context);
-            dpmSuspend.setPackagesSuspended(
-                adminSuspend, pkgs.toArray(new String[0]), suspended);
-            FileLogger.log(
-                context,
-                "MdmSync suspend_app invoked suspended=" + suspended + " pkgs=" + pkgs.toString());
-            ack.put("success", true);
-            JSONArray inventorySuspend = InventoryReporter.collect(context);
-            ack.put("inventory", inventorySuspend);
-            maybePostInventory(context, inventorySuspend, requestId);
-          } catch (Exception e) {
-            FileLogger.log(context, "MdmSync suspend_app error: " + e.getMessage());
-            ack.put("success", false);
-            ack.put("error", e.getMessage());
-          }
-          break;
-        case "hide_app":
-          JSONObject hidePayload = cmd.optJSONObject("payload");
-          JSONArray hidePkgArray =
-              hidePayload != null ? hidePayload.optJSONArray("packages") : null;
-          boolean hidden = hidePayload != null && hidePayload.optBoolean("hidden", true);
-          List<String> hidePkgs = new ArrayList<>();
-          if (hidePkgArray != null) {
-            for (int i = 0; i < hidePkgArray.length(); i++) {
-              String p = hidePkgArray.optString(i, null);
-              if (p != null) hidePkgs.add(p);
-            }
-          }
-          if (hidePkgs.isEmpty()) {
-            ack.put("success", false);
-            ack.put("error", "missing_packages");
-            break;
-          }
-          try {
-            DevicePolicyManager dpmHide =
-                (DevicePolicyManager) context.getSystemService(Context.DEVICE_POLICY_SERVICE);
-            ComponentName adminHide = DeviceAdminReceiver.getComponentName(context);
-            boolean allOk = true;
-            for (String p : hidePkgs) {
-              boolean res = dpmHide.setApplicationHidden(adminHide, p, hidden);
-              if (!res) {
-                allOk = false;
-              }
-            }
-            FileLogger.log(
-                context,
-                "MdmSync hide_app invoked hidden=" + hidden + " pkgs=" + hidePkgs.toString());
-            ack.put("success", allOk);
-            if (!allOk) {
-              ack.put("error", "setApplicationHidden returned false for at least one pkg");
-            }
-            JSONArray inventoryHide = InventoryReporter.collect(context);
-            ack.put("inventory", inventoryHide);
-            maybePostInventory(context, inventoryHide, requestId);
-          } catch (Exception e) {
-            FileLogger.log(context, "MdmSync hide_app error: " + e.getMessage());
-            ack.put("success", false);
-            ack.put("error", e.getMessage());
-          }
-          break;
-        case "block_uninstall":
-          JSONObject blockPayload = cmd.optJSONObject("payload");
-          JSONArray blockPkgArray =
-              blockPayload != null ? blockPayload.optJSONArray("packages") : null;
-          boolean blocked = blockPayload != null && blockPayload.optBoolean("blocked", true);
-          if (blockPkgArray == null || blockPkgArray.length() == 0) {
-            ack.put("success", false);
-            ack.put("error", "missing_packages");
-            break;
-          }
-          DevicePolicyManager dpmBlock =
-              (DevicePolicyManager) context.getSystemService(Context.DEVICE_POLICY_SERVICE);
-          ComponentName adminBlock = DeviceAdminReceiver.getComponentName(context);
-          JSONArray metaPackages = new JSONArray();
-          boolean allBlocked = true;
-          for (int i = 0; i < blockPkgArray.length(); i++) {
-            String p = blockPkgArray.optString(i, null);
-            if (p == null) {
-              continue;
-            }
-            JSONObject metaEntry = new JSONObject();
-            metaEntry.put("package", p);
-            try {
-              dpmBlock.setUninstallBlocked(adminBlock, p, blocked);
-              metaEntry.put("blocked", blocked);
-            } catch (Exception e) {
-              allBlocked = false;
-              metaEntry.put("blocked", !blocked);
-              metaEntry.put("message", e.getMessage());
-              FileLogger.log(context, "MdmSync block_uninstall error pkg=" + p + " err=" + e.getMessage());
-            }
-            metaPackages.put(metaEntry);
-          }
-          ack.put("success", allBlocked);
-          JSONObject meta = new JSONObject();
-          meta.put("packages", metaPackages);
-          meta.put("blocked", blocked);
-          ack.put("meta", meta);
-          break;
-        case "get_user_restrictions":
-          ack.put("success", true);
-          ack.put("meta", UserRestrictionsManager.snapshot(context));
-          break;
-        case "set_user_restrictions":
-          JSONObject restrictionPayload = cmd.optJSONObject("payload");
-          JSONObject requested =
-              restrictionPayload != null ? restrictionPayload.optJSONObject("restrictions") : null;
-          if (requested == null) {
-            ack.put("success", false);
-            ack.put("error", "missing_restrictions");
-            break;
-          }
-          JSONObject applyRes = UserRestrictionsManager.apply(context, requested);
-          boolean allOk = applyRes.optBoolean("all_ok", false);
-          ack.put("success", allOk);
-          ack.put("meta", applyRes);
-          break;
-        case "set_location":
-          JSONObject locationPayload = cmd.optJSONObject("payload");
-          boolean locationEnabled =
-              locationPayload != null && locationPayload.optBoolean("enabled", false);
-          DevicePolicyManager dpmLocation =
-              (DevicePolicyManager) context.getSystemService(Context.DEVICE_POLICY_SERVICE);
-          ComponentName adminLocation = DeviceAdminReceiver.getComponentName(context);
-          try {
-            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.R) {
-              ack.put("success", false);
-              ack.put("error", "setLocationEnabled requires API 30+");
-              ack.put("current_state", isLocationEnabled(context));
-              break;
-            }
-            dpmLocation.setLocationEnabled(adminLocation, locationEnabled);
-            dpmLocation.addUserRestriction(adminLocation, UserManager.DISALLOW_CONFIG_LOCATION);
-            boolean currentLocationState = isLocationEnabled(context);
-            FileLogger.log(
-                context,
-                "MdmSync set_location invoked enabled="
-                    + locationEnabled
-                    + " now="
-                    + currentLocationState);
-            ack.put("success", true);
-            ack.put("current_state", currentLocationState);
-          } catch (Exception e) {
-            FileLogger.log(context, "MdmSync set_location error: " + e.getMessage());
-            ack.put("success", false);
-            ack.put("error", e.getMessage());
-            ack.put("current_state", isLocationEnabled(context));
-          }
-          break;
-        case "wipe":
-          DevicePolicyManager dpm =
-              (DevicePolicyManager) context.getSystemService(Context.DEVICE_POLICY_SERVICE);
-          ComponentName admin = DeviceAdminReceiver.getComponentName(context);
-          JSONObject wipePayload = cmd.optJSONObject("payload");
-          boolean wipeExternal =
-              wipePayload != null && wipePayload.optBoolean("wipe_external_storage", false);
-          boolean wipeResetProtection =
-              wipePayload != null && wipePayload.optBoolean("wipe_reset_protection_data", false);
-          int flags = 0;
-          if (wipeExternal) {
-            flags |= DevicePolicyManager.WIPE_EXTERNAL_STORAGE;
-          }
-          if (wipeResetProtection) {
-            flags |= DevicePolicyManager.WIPE_RESET_PROTECTION_DATA;
-          }
-          FileLogger.log(
-              context,
-              "MdmSync wipe invoked flags="
-                  + flags
-                  + " wipeExternal="
-                  + wipeExternal
-                  + " wipeRP="
-                  + wipeResetProtection);
-          try {
-            boolean isOrgOwned =
-                Build.VERSION.SDK_INT >= Build.VERSION_CODES.R
-                    && dpm.isOrganizationOwnedDeviceWithManagedProfile();
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.UPSIDE_DOWN_CAKE) {
-              dpm.wipeDevice(flags);
-            } else if (isOrgOwned && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-              // COPE before U uses parent instance and ignores flags.
-              DevicePolicyManager parent = dpm.getParentProfileInstance(admin);
-              if (parent != null) {
-                parent.wipeData(0);
-              } else {
-                throw new IllegalStateException("Parent DPM missing for org-owned profile");
-              }
-            } else {
-              dpm.wipeData(flags);
-            }
-            ack.put("success", true);
-            ack.put("flags", flags);
-          } catch (Exception e) {
-            FileLogger.log(context, "MdmSync wipe error: " + e.getMessage());
-            ack.put("success", false);
-            ack.put("error", e.getMessage());
-          }
-          break;
-        case "set_lock_screen":
-          JSONObject lsPayload = cmd.optJSONObject("payload");
-          JSONObject lockResult =
-              handleSetLockScreen(context, lsPayload, requestId, ack.optString("qid", null), id);
-          for (java.util.Iterator<String> it = lockResult.keys(); it.hasNext(); ) {
-            String key = it.next();
-            ack.put(key, lockResult.get(key));
-          }
-          break;
-        case "set_password_policy":
-          JSONObject ppPayload = cmd.optJSONObject("payload");
-          JSONObject ppResult =
-              handleSetPasswordPolicy(context, ppPayload, requestId, ack.optString("qid", null), id);
-          for (java.util.Iterator<String> it = ppResult.keys(); it.hasNext(); ) {
-            String key = it.next();
-            ack.put(key, ppResult.get(key));
-          }
-          break;
-        case "request_password_change":
-          JSONObject rpcPayload = cmd.optJSONObject("payload");
-          JSONObject rpcResult =
-              handleRequestPasswordChange(context, rpcPayload, requestId, ack.optString("qid", null), id);
-          for (java.util.Iterator<String> it = rpcResult.keys(); it.hasNext(); ) {
-            String key = it.next();
-            ack.put(key, rpcResult.get(key));
-          }
-          break;
-        case "set_password_complexity":
-          JSONObject pcPayload = cmd.optJSONObject("payload");
-          JSONObject pcResult =
-              handleSetPasswordComplexity(context, pcPayload, requestId, ack.optString("qid", null), id);
-          for (java.util.Iterator<String> it = pcResult.keys(); it.hasNext(); ) {
-            String key = it.next();
-            ack.put(key, pcResult.get(key));
-          }
-          break;
-        default:
-          ack.put("success", false);
-          ack.put("error", "unsupported_type");
-          break;
+      CommandHandler handler = CommandRegistry.lookup(typeRaw);
+      if (handler == null) {
+        ack.put("success", false);
+        ack.put("error", "unsupported_type");
+        return ack;
       }
+      handler.handle(sync, cmd, ack);
     } catch (Exception e) {
       try {
         ack.put("success", false);
@@ -455,8 +613,245 @@ public final class MdmSyncManager {
     return ack;
   }
 
+  /** Handlers that build a standalone result which is then merged into the ack. */
+  private interface PayloadHandler {
+    JSONObject handle(SyncContext sync, JSONObject payload, String qid, long commandId);
+  }
+
+  private static CommandHandler merging(PayloadHandler handler) {
+    return (sync, cmd, ack) ->
+        merge(
+            ack,
+            handler.handle(
+                sync, cmd.optJSONObject("payload"), ack.optString("qid", null), ack.optLong("id", -1)));
+  }
+
+  private static void merge(JSONObject ack, JSONObject result) throws JSONException {
+    for (java.util.Iterator<String> it = result.keys(); it.hasNext(); ) {
+      String key = it.next();
+      ack.put(key, result.get(key));
+    }
+  }
+
+  private static void handleInstall(SyncContext sync, JSONObject cmd, JSONObject ack)
+      throws JSONException {
+    JSONObject payload = cmd.optJSONObject("payload");
+    JSONObject audit = cmd.optJSONObject("audit");
+    merge(
+        ack,
+        handleInstallCommand(
+            sync, payload, audit, ack.optLong("id", -1), ack.optString("qid", null)));
+  }
+
+  private static void handleUninstall(SyncContext sync, JSONObject cmd, JSONObject ack)
+      throws JSONException {
+    Context context = sync.getContext();
+    JSONObject payload = cmd.optJSONObject("payload");
+    String pkgName = payload != null ? payload.optString("package_name", null) : null;
+    if (pkgName == null) {
+      ack.put("success", false);
+      ack.put("error", "missing_package_name");
+      return;
+    }
+    FileLogger.log(context, "MdmSync uninstall start pkg=" + pkgName);
+    PackageInstallationUtils.uninstallPackage(context, pkgName);
+    FileLogger.log(context, "MdmSync uninstall invoked pkg=" + pkgName);
+    sync.markInventoryChanged(pkgName);
+    ack.put("success", true);
+  }
+
+  private static void handleSuspend(SyncContext sync, JSONObject cmd, JSONObject ack)
+      throws JSONException {
+    Context context = sync.getContext();
+    JSONObject payload = cmd.optJSONObject("payload");
+    boolean suspended = payload != null && payload.optBoolean("suspended", true);
+    List<String> pkgs = readPackages(payload);
+    if (pkgs.isEmpty()) {
+      ack.put("success", false);
+      ack.put("error", "missing_packages");
+      return;
+    }
+    try {
+      sync.getDpm().setPackagesSuspended(sync.getAdmin(), pkgs.toArray(new String[0]), suspended);
+      sync.markInventoryChanged(pkgs);
+      FileLogger.log(
+          context,
+          "MdmSync suspend_app invoked suspended=" + suspended + " pkgs=" + pkgs.toString());
+      ack.put("success", true);
+    } catch (Exception e) {
+      FileLogger.log(context, "MdmSync suspend_app error: " + e.getMessage());
+      ack.put("success", false);
+      ack.put("error", e.getMessage());
+    }
+  }
+
+  private static void handleHide(SyncContext sync, JSONObject cmd, JSONObject ack)
+      throws JSONException {
+    JSONObject payload = cmd.optJSONObject("payload");
+    boolean hidden = payload != null && payload.optBoolean("hidden", true);
+    List<String> pkgs = readPackages(payload);
+    if (pkgs.isEmpty()) {
+      ack.put("success", false);
+      ack.put("error", "missing_packages");
+      return;
+    }
+    PackageStateBatch.Result result =
+        PackageStateBatch.apply(sync, PackageStateBatch.Flag.HIDDEN, pkgs, hidden);
+    if (!result.changed.isEmpty()) {
+      sync.markInventoryChanged(result.changed);
+    }
+    ack.put("success", result.allOk());
+    if (!result.allOk()) {
+      ack.put("error", "setApplicationHidden failed for " + result.failed + " pkg(s)");
+    }
+    ack.put("meta", batchMeta(result, "hidden", hidden));
+  }
+
+  private static void handleBlockUninstall(SyncContext sync, JSONObject cmd, JSONObject ack)
+      throws JSONException {
+    JSONObject payload = cmd.optJSONObject("payload");
+    boolean blocked = payload != null && payload.optBoolean("blocked", true);
+    List<String> pkgs = readPackages(payload);
+    if (pkgs.isEmpty()) {
+      ack.put("success", false);
+      ack.put("error", "missing_packages");
+      return;
+    }
+    PackageStateBatch.Result result =
+        PackageStateBatch.apply(sync, PackageStateBatch.Flag.UNINSTALL_BLOCKED, pkgs, blocked);
+    ack.put("success", result.allOk());
+    if (!result.allOk()) {
+      ack.put("error", "setUninstallBlocked failed for " + result.failed + " pkg(s)");
+    }
+    ack.put("meta", batchMeta(result, "blocked", blocked));
+  }
+
+  private static JSONObject batchMeta(PackageStateBatch.Result result, String key, boolean value)
+      throws JSONException {
+    JSONObject meta = new JSONObject();
+    meta.put("packages", result.packages);
+    meta.put(key, value);
+    meta.put("changed", result.changed.size());
+    meta.put("skipped", result.skipped);
+    meta.put("failed", result.failed);
+    return meta;
+  }
+
+  private static void handleGetUserRestrictions(SyncContext sync, JSONObject cmd, JSONObject ack)
+      throws JSONException {
+    ack.put("success", true);
+    ack.put("meta", UserRestrictionsManager.snapshot(sync.getContext()));
+  }
+
+  private static void handleSetUserRestrictions(SyncContext sync, JSONObject cmd, JSONObject ack)
+      throws JSONException {
+    JSONObject payload = cmd.optJSONObject("payload");
+    JSONObject requested = payload != null ? payload.optJSONObject("restrictions") : null;
+    if (requested == null) {
+      ack.put("success", false);
+      ack.put("error", "missing_restrictions");
+      return;
+    }
+    JSONObject applyRes = UserRestrictionsManager.apply(sync.getContext(), requested);
+    ack.put("success", applyRes.optBoolean("all_ok", false));
+    ack.put("meta", applyRes);
+  }
+
+  private static void handleSetLocation(SyncContext sync, JSONObject cmd, JSONObject ack)
+      throws JSONException {
+    Context context = sync.getContext();
+    JSONObject payload = cmd.optJSONObject("payload");
+    boolean locationEnabled = payload != null && payload.optBoolean("enabled", false);
+    try {
+      if (Build.VERSION.SDK_INT < Build.VERSION_CODES.R) {
+        ack.put("success", false);
+        ack.put("error", "setLocationEnabled requires API 30+");
+        ack.put("current_state", isLocationEnabled(context));
+        return;
+      }
+      sync.getDpm().setLocationEnabled(sync.getAdmin(), locationEnabled);
+      sync.getDpm().addUserRestriction(sync.getAdmin(), UserManager.DISALLOW_CONFIG_LOCATION);
+      boolean currentLocationState = isLocationEnabled(context);
+      FileLogger.log(
+          context,
+          "MdmSync set_location invoked enabled=" + locationEnabled + " now=" + currentLocationState);
+      ack.put("success", true);
+      ack.put("current_state", currentLocationState);
+    } catch (Exception e) {
+      FileLogger.log(context, "MdmSync set_location error: " + e.getMessage());
+      ack.put("success", false);
+      ack.put("error", e.getMessage());
+      ack.put("current_state", isLocationEnabled(context));
+    }
+  }
+
+  private static void handleWipe(SyncContext sync, JSONObject cmd, JSONObject ack)
+      throws JSONException {
+    Context context = sync.getContext();
+    DevicePolicyManager dpm = sync.getDpm();
+    JSONObject payload = cmd.optJSONObject("payload");
+    boolean wipeExternal = payload != null && payload.optBoolean("wipe_external_storage", false);
+    boolean wipeResetProtection =
+        payload != null && payload.optBoolean("wipe_reset_protection_data", false);
+    int flags = 0;
+    if (wipeExternal) {
+      flags |= DevicePolicyManager.WIPE_EXTERNAL_STORAGE;
+    }
+    if (wipeResetProtection) {
+      flags |= DevicePolicyManager.WIPE_RESET_PROTECTION_DATA;
+    }
+    FileLogger.log(
+        context,
+        "MdmSync wipe invoked flags="
+            + flags
+            + " wipeExternal="
+            + wipeExternal
+            + " wipeRP="
+            + wipeResetProtection);
+    // the wipe does not return on success, so get the log onto disk first
+    FileLogger.flush(1000);
+    try {
+      boolean isOrgOwned =
+          Build.VERSION.SDK_INT >= Build.VERSION_CODES.R
+              && dpm.isOrganizationOwnedDeviceWithManagedProfile();
+      if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.UPSIDE_DOWN_CAKE) {
+        dpm.wipeDevice(flags);
+      } else if (isOrgOwned && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+        // COPE before U uses parent instance and ignores flags.
+        DevicePolicyManager parent = dpm.getParentProfileInstance(sync.getAdmin());
+        if (parent != null) {
+          parent.wipeData(0);
+        } else {
+          throw new IllegalStateException("Parent DPM missing for org-owned profile");
+        }
+      } else {
+        dpm.wipeData(flags);
+      }
+      ack.put("success", true);
+      ack.put("flags", flags);
+    } catch (Exception e) {
+      FileLogger.log(context, "MdmSync wipe error: " + e.getMessage());
+      ack.put("success", false);
+      ack.put("error", e.getMessage());
+    }
+  }
+
+  private static List<String> readPackages(JSONObject payload) {
+    List<String> pkgs = new ArrayList<>();
+    JSONArray pkgArray = payload != null ? payload.optJSONArray("packages") : null;
+    if (pkgArray != null) {
+      for (int i = 0; i < pkgArray.length(); i++) {
+        String p = pkgArray.optString(i, null);
+        if (p != null) pkgs.add(p);
+      }
+    }
+    return pkgs;
+  }
+
   private static JSONObject handleSetLockScreen(
-      Context context, JSONObject payload, String requestId, String qid, long commandId) {
+      SyncContext sync, JSONObject payload, String qid, long commandId) {
+    Context context = sync.getContext();
+    String requestId = sync.getRequestId();
     JSONObject result = new JSONObject();
     JSONObject meta = new JSONObject();
     JSONArray perKey = new JSONArray();
@@ -478,9 +873,8 @@ public final class MdmSyncManager {
         return result;
       }
 
-      DevicePolicyManager dpm =
-          (DevicePolicyManager) context.getSystemService(Context.DEVICE_POLICY_SERVICE);
-      ComponentName admin = DeviceAdminReceiver.getComponentName(context);
+      DevicePolicyManager dpm = sync.getDpm();
+      ComponentName admin = sync.getAdmin();
 
       if (lock.has("message")) {
         try {
@@ -626,7 +1020,7 @@ public final class MdmSyncManager {
       // Telemetry snapshot
       try {
         JSONObject snapshot =
-            buildLockScreenSnapshot(context, admin, taComponent, lock.optJSONObject("keyguard_features"));
+            buildLockScreenSnapshot(dpm, admin, taComponent, lock.optJSONObject("keyguard_features"));
         JSONObject telemetry = new JSONObject();
         telemetry.put("request_id", req != null ? req : requestId);
         telemetry.put("timestamp", System.currentTimeMillis() / 1000);
@@ -659,14 +1053,12 @@ public final class MdmSyncManager {
   }
 
   private static JSONObject buildLockScreenSnapshot(
-      Context context,
+      DevicePolicyManager dpm,
       ComponentName admin,
       ComponentName trustAgent,
       JSONObject requestedKeyguardFeatures) {
     JSONObject snap = new JSONObject();
     try {
-      DevicePolicyManager dpm =
-          (DevicePolicyManager) context.getSystemService(Context.DEVICE_POLICY_SERVICE);
       CharSequence msg = dpm.getDeviceOwnerLockScreenInfo();
       if (msg != null) {
         snap.put("message", msg.toString());
@@ -717,7 +1109,9 @@ public final class MdmSyncManager {
   }
 
   private static JSONObject handleSetPasswordComplexity(
-      Context context, JSONObject payload, String requestId, String qid, long commandId) {
+      SyncContext sync, JSONObject payload, String qid, long commandId) {
+    Context context = sync.getContext();
+    String requestId = sync.getRequestId();
     JSONObject result = new JSONObject();
     JSONObject meta = new JSONObject();
     boolean success = true;
@@ -750,8 +1144,7 @@ public final class MdmSyncManager {
         result.put("meta", meta);
         return result;
       }
-      DevicePolicyManager dpm =
-          (DevicePolicyManager) context.getSystemService(Context.DEVICE_POLICY_SERVICE);
+      DevicePolicyManager dpm = sync.getDpm();
       dpm.setRequiredPasswordComplexity(complexity);
       meta.put("password_complexity", value.toLowerCase(Locale.US));
       meta.put("request_id", req);
@@ -776,7 +1169,9 @@ public final class MdmSyncManager {
   }
 
   private static JSONObject handleSetPasswordPolicy(
-      Context context, JSONObject payload, String requestId, String qid, long commandId) {
+      SyncContext sync, JSONObject payload, String qid, long commandId) {
+    Context context = sync.getContext();
+    String requestId = sync.getRequestId();
     JSONObject result = new JSONObject();
     JSONObject meta = new JSONObject();
     boolean success = true;
@@ -795,9 +1190,8 @@ public final class MdmSyncManager {
         result.put("meta", meta);
         return result;
       }
-      DevicePolicyManager dpm =
-          (DevicePolicyManager) context.getSystemService(Context.DEVICE_POLICY_SERVICE);
-      ComponentName admin = DeviceAdminReceiver.getComponentName(context);
+      DevicePolicyManager dpm = sync.getDpm();
+      ComponentName admin = sync.getAdmin();
 
       // Quality
       String qualityStr = policy.optString("quality", null);
@@ -852,7 +1246,7 @@ public final class MdmSyncManager {
 
       // Snapshot current state
       try {
-        JSONObject snap = buildPasswordPolicySnapshot(context, admin);
+        JSONObject snap = buildPasswordPolicySnapshot(dpm, admin);
         meta.put("snapshot", snap);
       } catch (Exception e) {
         meta.put("snapshot_error", e.getMessage());
@@ -983,7 +1377,9 @@ public final class MdmSyncManager {
   }
 
   private static JSONObject handleRequestPasswordChange(
-      Context context, JSONObject payload, String requestId, String qid, long commandId) {
+      SyncContext sync, JSONObject payload, String qid, long commandId) {
+    Context context = sync.getContext();
+    String requestId = sync.getRequestId();
     JSONObject result = new JSONObject();
     JSONObject meta = new JSONObject();
     boolean success = true;
@@ -1013,10 +1409,8 @@ public final class MdmSyncManager {
       meta.put("timestamp", System.currentTimeMillis() / 1000);
       // Force immediate change: expire current pwd and lock the device
       try {
-        DevicePolicyManager dpm =
-            (DevicePolicyManager) context.getSystemService(Context.DEVICE_POLICY_SERVICE);
-        ComponentName admin = DeviceAdminReceiver.getComponentName(context);
-        dpm.setPasswordExpirationTimeout(admin, 1000); // expire immediately
+        DevicePolicyManager dpm = sync.getDpm();
+        dpm.setPasswordExpirationTimeout(sync.getAdmin(), 1000); // expire immediately
         dpm.lockNow();
         meta.put("lock_invoked", true);
         meta.put("expiration_timeout_ms", 1000);
@@ -1094,11 +1488,10 @@ public final class MdmSyncManager {
     }
   }
 
-  private static JSONObject buildPasswordPolicySnapshot(Context context, ComponentName admin) {
+  private static JSONObject buildPasswordPolicySnapshot(
+      DevicePolicyManager dpm, ComponentName admin) {
     JSONObject snap = new JSONObject();
     try {
-      DevicePolicyManager dpm =
-          (DevicePolicyManager) context.getSystemService(Context.DEVICE_POLICY_SERVICE);
       snap.put("quality", qualityToString(dpm.getPasswordQuality(admin)));
       snap.put(
           "expiration_seconds", TimeUnit.MILLISECONDS.toSeconds(dpm.getPasswordExpirationTimeout(admin)));
@@ -1168,7 +1561,9 @@ public final class MdmSyncManager {
   }
 
   private static JSONObject handleInstallCommand(
-      Context context, JSONObject payload, JSONObject audit, String requestId, long commandId) {
+      SyncContext sync, JSONObject payload, JSONObject audit, long commandId, String qid) {
+    Context context = sync.getContext();
+    String requestId = sync.getRequestId();
     JSONObject result = new JSONObject();
     long start = System.currentTimeMillis();
     JSONObject meta = new JSONObject();
@@ -1216,62 +1611,57 @@ public final class MdmSyncManager {
           continue;
         }
         String url = fileObj.optString("url", null);
-        String kind = fileObj.optString("kind", "apk");
-        String expectedSha = fileObj.optString("sha256", null);
-        int versionCode = fileObj.optInt("version_code", -1);
-        String versionName = fileObj.optString("version_name", null);
         if (url == null) {
           result.put("success", false);
           result.put("error", "missing_url");
           result.put("meta", meta);
           return result;
         }
-        try {
-          long dlStart = System.currentTimeMillis();
-          DownloadedFile file = downloadAndVerify(context, url, expectedSha, kind);
-          file.versionCode = versionCode;
-          file.versionName = versionName;
-          file.downloadMs = System.currentTimeMillis() - dlStart;
-          files.add(file);
-
-          JSONObject metaFile = new JSONObject();
-          metaFile.put("url", url);
-          metaFile.put("kind", kind);
-          metaFile.put("expected_sha256", expectedSha);
-          metaFile.put("actual_sha256", file.actualSha256);
-          metaFile.put("bytes", file.length);
-          metaFile.put("download_ms", file.downloadMs);
-          if (versionCode >= 0) {
-            metaFile.put("version_code", versionCode);
-          }
-          if (versionName != null) {
-            metaFile.put("version_name", versionName);
-          }
-          metaFiles.put(metaFile);
-        } catch (Exception e) {
-          result.put("success", false);
-          result.put("error", e.getMessage());
-          meta.put("files", metaFiles);
-          meta.put("install_duration_ms", System.currentTimeMillis() - start);
-          result.put("meta", meta);
-          return result;
+        DownloadedFile file = new DownloadedFile();
+        file.url = url;
+        file.kind = fileObj.optString("kind", "apk");
+        file.sha256 = fileObj.optString("sha256", null);
+        file.size = fileObj.optLong("size", -1);
+        file.versionCode = fileObj.optInt("version_code", -1);
+        file.versionName = fileObj.optString("version_name", null);
+        if (file.isPatch()) {
+          file.baseVersionCode = fileObj.optLong("base_version_code", -1);
+          file.baseSha256 = fileObj.optString("base_sha256", null);
+          file.patchSha256 = fileObj.optString("patch_sha256", null);
+          file.patchFormat = fileObj.optString("format", null);
+          file.fullUrl = fileObj.optString("full_url", null);
         }
+        files.add(file);
       }
 
       try {
-        installApkFiles(context, pkg, files);
-        result.put("success", true);
-        log(
+        int[] sessionId = new int[1];
+        long fetchWallMs =
+            installApkFiles(context, pkg, files, commandId, qid, start, sessionId);
+        meta.put("download_wall_ms", fetchWallMs);
+        meta.put("session_id", sessionId[0]);
+        // the commit was accepted but nothing is installed yet, so this ack carries no success;
+        // InstallTracker reports the outcome as an install_result ack
+        result.put("status", "pending");
+        meta.put("install_status", "pending");
+        EventJournal.record(
             context,
+            "install",
             requestId,
-            "Install done pkg="
-                + pkg
-                + " release_file_id="
-                + releaseFileId
-                + " files="
-                + files.size()
-                + " ms="
-                + (System.currentTimeMillis() - start));
+            "package",
+            pkg,
+            "status",
+            meta.optString("install_status"),
+            "release_file_id",
+            releaseFileId,
+            "files",
+            files.size(),
+            "session_id",
+            sessionId[0],
+            "download_wall_ms",
+            fetchWallMs,
+            "ms",
+            System.currentTimeMillis() - start);
       } catch (Exception e) {
         result.put("success", false);
         result.put("error", e.getMessage());
@@ -1286,7 +1676,15 @@ public final class MdmSyncManager {
                 + e.getMessage());
       }
 
+      long downloadSumMs = 0;
+      for (DownloadedFile file : files) {
+        if (file.actualSha256 != null) {
+          metaFiles.put(describeFile(file));
+          downloadSumMs += file.downloadMs;
+        }
+      }
       meta.put("files", metaFiles);
+      meta.put("download_sum_ms", downloadSumMs);
       if (audit != null) {
         String source = audit.optString("source", null);
         String requestedBy = audit.optString("requested_by", null);
@@ -1299,12 +1697,6 @@ public final class MdmSyncManager {
       }
       meta.put("install_duration_ms", System.currentTimeMillis() - start);
 
-      if (result.optBoolean("success", false)) {
-        JSONArray inventoryInstall = InventoryReporter.collect(context);
-        meta.put("inventory", inventoryInstall);
-        maybePostInventory(context, inventoryInstall, requestId);
-      }
-
       result.put("meta", meta);
       return result;
     } catch (JSONException e) {
@@ -1319,7 +1711,22 @@ public final class MdmSyncManager {
     }
   }
 
-  private static void installApkFiles(Context context, String packageName, List<DownloadedFile> files)
+  /**
+   * Fetches every file into one install session and commits it. Files are fetched in parallel,
+   * at most {@link #MAX_PARALLEL_DOWNLOADS} at a time, each into its own session entry. Large
+   * files with a known size and sha256 that are not cached are streamed straight into the
+   * session; all others go through {@link ApkCache}. The session is abandoned if any file fails.
+   *
+   * @return wall-clock time spent fetching, in milliseconds
+   */
+  private static long installApkFiles(
+      Context context,
+      String packageName,
+      List<DownloadedFile> files,
+      long commandId,
+      String qid,
+      long commandStartMs,
+      int[] sessionIdOut)
       throws IOException {
     if (files == null || files.isEmpty()) {
       throw new IOException("no_files_to_install");
@@ -1329,43 +1736,172 @@ public final class MdmSyncManager {
         new PackageInstaller.SessionParams(PackageInstaller.SessionParams.MODE_FULL_INSTALL);
     params.setAppPackageName(packageName);
     int sessionId = installer.createSession(params);
+    sessionIdOut[0] = sessionId;
     PackageInstaller.Session session = installer.openSession(sessionId);
-    int idx = 0;
+    boolean committed = false;
     try {
+      long fetchStart = System.currentTimeMillis();
+      List<Callable<Void>> tasks = new ArrayList<>();
+      int idx = 0;
       for (DownloadedFile file : files) {
-        String entry = deriveEntryName(file.url, file.kind != null ? file.kind : "apk", idx++);
-        InputStream in = null;
-        java.io.OutputStream out = null;
+        String entry =
+            file.isPatch()
+                ? "file_" + idx++ + ".apk"
+                : deriveEntryName(file.url, file.kind != null ? file.kind : "apk", idx++);
+        tasks.add(
+            () -> {
+              fetchIntoSession(context, packageName, session, file, entry);
+              return null;
+            });
+      }
+      runBounded(tasks, MAX_PARALLEL_DOWNLOADS);
+      long fetchWallMs = System.currentTimeMillis() - fetchStart;
+      session.commit(
+          InstallTracker.track(context, sessionId, commandId, qid, packageName, commandStartMs));
+      committed = true;
+      return fetchWallMs;
+    } finally {
+      // cached files stay in ApkCache for re-issued or retried installs
+      if (!committed) {
+        InstallTracker.untrack(context, sessionId);
+        session.abandon();
+      }
+      session.close();
+    }
+  }
+
+  private static void fetchIntoSession(
+      Context context,
+      String packageName,
+      PackageInstaller.Session session,
+      DownloadedFile file,
+      String entry)
+      throws IOException {
+    long dlStart = System.currentTimeMillis();
+    if (file.isPatch()) {
+      patchAndVerify(context, packageName, file);
+      file.downloadMs = System.currentTimeMillis() - dlStart;
+      copyIntoSession(session, entry, file.file);
+    } else if (shouldStream(context, file)) {
+      ApkDownloader.Result dl =
+          ApkDownloader.streamInto(context, file.url, file.sha256, file.size, session, entry);
+      file.streamed = true;
+      file.actualSha256 = dl.sha256;
+      file.length = dl.length;
+      file.resumedBytes = dl.resumedBytes;
+      file.attempts = dl.attempts;
+      file.downloadMs = System.currentTimeMillis() - dlStart;
+    } else {
+      downloadAndVerify(context, file);
+      file.downloadMs = System.currentTimeMillis() - dlStart;
+      copyIntoSession(session, entry, file.file);
+    }
+  }
+
+  /**
+   * Runs {@code tasks} on up to {@code limit} threads and rethrows the first failure, after
+   * cancelling the rest. A single task runs on the calling thread.
+   */
+  private static void runBounded(List<Callable<Void>> tasks, int limit) throws IOException {
+    if (tasks.size() == 1) {
+      try {
+        tasks.get(0).call();
+        return;
+      } catch (IOException | RuntimeException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new IOException(e);
+      }
+    }
+    ExecutorService pool =
+        Executors.newFixedThreadPool(
+            Math.min(tasks.size(), limit), r -> new Thread(r, "mdm-apk-fetch"));
+    ExecutorCompletionService<Void> completion = new ExecutorCompletionService<>(pool);
+    try {
+      for (Callable<Void> task : tasks) {
+        completion.submit(task);
+      }
+      for (int i = 0; i < tasks.size(); i++) {
         try {
-          in = new FileInputStream(file.file);
-          long length = file.file.length();
-          out = session.openWrite(entry, 0, length);
-          byte[] buffer = new byte[65536];
-          int read;
-          while ((read = in.read(buffer)) != -1) {
-            out.write(buffer, 0, read);
-          }
-          session.fsync(out);
-        } finally {
-          if (in != null) {
-            in.close();
+          completion.take().get();
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (cause instanceof IOException) {
+            throw (IOException) cause;
           }
-          if (out != null) {
-            out.close();
+          if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
           }
+          throw new IOException(cause);
         }
       }
-      session.commit(createInstallIntentSender(context, sessionId));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("install fetch interrupted");
     } finally {
-      session.close();
-      // cleanup temp files
-      for (DownloadedFile file : files) {
-        if (file.file != null && file.file.exists()) {
-          //noinspection ResultOfMethodCallIgnored
-          file.file.delete();
-        }
+      pool.shutdownNow();
+      try {
+        // let cancelled fetches stop writing before the session is abandoned
+        pool.awaitTermination(30, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private static boolean shouldStream(Context context, DownloadedFile file) {
+    return !file.isPatch()
+        && file.sha256 != null
+        && !file.sha256.isEmpty()
+        && file.size >= STREAM_INSTALL_MIN_BYTES
+        && file.size <= ApkDownloader.MAX_APK_BYTES
+        && ApkCache.lookup(context, file.sha256) == null;
+  }
+
+  private static void copyIntoSession(PackageInstaller.Session session, String entry, File file)
+      throws IOException {
+    try (InputStream in = new FileInputStream(file);
+        OutputStream out = session.openWrite(entry, 0, file.length())) {
+      byte[] buffer = new byte[65536];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+      session.fsync(out);
+    }
+  }
+
+  private static JSONObject describeFile(DownloadedFile file) throws JSONException {
+    JSONObject metaFile = new JSONObject();
+    metaFile.put("url", file.url);
+    metaFile.put("kind", file.kind);
+    metaFile.put("expected_sha256", file.sha256);
+    metaFile.put("actual_sha256", file.actualSha256);
+    metaFile.put("bytes", file.length);
+    metaFile.put("download_ms", file.downloadMs);
+    metaFile.put("streamed", file.streamed);
+    metaFile.put("cache_hit", file.cacheHit);
+    metaFile.put("download_attempts", file.attempts);
+    if (file.resumedBytes > 0) {
+      metaFile.put("resumed_bytes", file.resumedBytes);
+    }
+    if (file.versionCode >= 0) {
+      metaFile.put("version_code", file.versionCode);
+    }
+    if (file.versionName != null) {
+      metaFile.put("version_name", file.versionName);
+    }
+    if (file.isPatch()) {
+      metaFile.put("patched", file.patched);
+      metaFile.put("base_version_code", file.baseVersionCode);
+      if (file.patchBytes > 0) {
+        metaFile.put("patch_bytes", file.patchBytes);
+      }
+      if (file.patchFallback != null) {
+        metaFile.put("patch_fallback", file.patchFallback);
       }
     }
+    return metaFile;
   }
 
   private static String deriveEntryName(String url, String kind, int index) {
@@ -1385,105 +1921,112 @@ public final class MdmSyncManager {
     return "file_" + index + suffix;
   }
 
-  private static DownloadedFile downloadAndVerify(
-      Context context, String urlStr, String expectedSha, String kind) throws Exception {
-    URL url = new URL(urlStr);
-    HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-    conn.setConnectTimeout(15000);
-    conn.setReadTimeout(45000);
-    conn.setInstanceFollowRedirects(true);
-    conn.setRequestProperty("Cache-Control", "no-cache");
-    conn.connect();
-    int code = conn.getResponseCode();
-    if (code < 200 || code >= 300) {
-      conn.disconnect();
-      throw new IOException("download_failed code=" + code);
-    }
-    long contentLength = conn.getContentLengthLong();
-    if (contentLength > 0 && contentLength > MAX_APK_BYTES) {
-      conn.disconnect();
-      throw new IOException("file_too_large bytes=" + contentLength);
-    }
-
-    File tmp =
-        File.createTempFile("mdm_dl_", ".apk", context.getCacheDir());
-    long written = 0;
-    String actualSha;
-    try (InputStream in = conn.getInputStream();
-        FileOutputStream out = new FileOutputStream(tmp)) {
-      MessageDigest md = MessageDigest.getInstance("SHA-256");
-      byte[] buf = new byte[65536];
-      int read;
-      while ((read = in.read(buf)) != -1) {
-        written += read;
-        if (written > MAX_APK_BYTES) {
-          throw new IOException("file_too_large bytes=" + written);
-        }
-        out.write(buf, 0, read);
-        md.update(buf, 0, read);
-      }
-      actualSha = hex(md.digest());
-      out.getFD().sync();
-    } catch (Exception e) {
-      // cleanup temp file on failure
-      if (tmp.exists()) {
-        //noinspection ResultOfMethodCallIgnored
-        tmp.delete();
-      }
-      throw e;
-    } finally {
-      conn.disconnect();
-    }
+  private static void downloadAndVerify(Context context, DownloadedFile file) throws IOException {
+    ApkCache.Entry entry = ApkCache.fetch(context, file.url, file.sha256);
+    file.actualSha256 = entry.sha256;
+    file.file = entry.file;
+    file.length = entry.length;
+    file.cacheHit = entry.hit;
+    file.resumedBytes = entry.resumedBytes;
+    file.attempts = entry.attempts;
+  }
 
-    if (expectedSha != null
-        && !expectedSha.isEmpty()
-        && !expectedSha.equalsIgnoreCase(actualSha)) {
-      // cleanup before throwing
-      if (tmp.exists()) {
-        //noinspection ResultOfMethodCallIgnored
-        tmp.delete();
+  /**
+   * Rebuilds a {@code kind:"patch"} file from the installed base APK and verifies the result
+   * against {@code sha256}. Falls back to {@code full_url}, when given, if the installed base does
+   * not match or the patch cannot be fetched or applied.
+   */
+  private static void patchAndVerify(Context context, String pkg, DownloadedFile file)
+      throws IOException {
+    if (file.sha256 == null || file.sha256.isEmpty()) {
+      throw new IOException("patch_missing_sha256");
+    }
+    File cached = ApkCache.lookup(context, file.sha256);
+    if (cached != null) {
+      file.file = cached;
+      file.actualSha256 = file.sha256.toLowerCase(Locale.US);
+      file.length = cached.length();
+      file.cacheHit = true;
+      return;
+    }
+    try {
+      applyPatch(context, pkg, file);
+    } catch (IOException e) {
+      if (file.fullUrl == null || file.fullUrl.isEmpty()) {
+        throw e;
       }
-      throw new IOException("sha256_mismatch expected=" + expectedSha + " actual=" + actualSha);
+      FileLogger.log(
+          context, "MdmSync patch fallback pkg=" + pkg + " reason=" + e.getMessage());
+      file.patchFallback = e.getMessage();
+      file.url = file.fullUrl;
+      downloadAndVerify(context, file);
     }
-
-    DownloadedFile file = new DownloadedFile();
-    file.url = urlStr;
-    file.kind = kind;
-    file.sha256 = expectedSha;
-    file.actualSha256 = actualSha;
-    file.file = tmp;
-    file.length = tmp.length();
-    return file;
   }
 
-  private static String hex(byte[] data) {
-    StringBuilder sb = new StringBuilder();
-    for (byte b : data) {
-      sb.append(String.format("%02x", b));
+  private static void applyPatch(Context context, String pkg, DownloadedFile file)
+      throws IOException {
+    if (file.patchFormat != null && !ApkPatcher.FORMAT.equals(file.patchFormat)) {
+      throw new IOException("patch_unsupported_format " + file.patchFormat);
+    }
+    File base = ApkPatcher.baseApk(context, pkg, file.baseVersionCode, file.baseSha256);
+    ApkDownloader.Result patch = ApkDownloader.download(context, file.url, file.patchSha256);
+    file.patchBytes = patch.length;
+    file.resumedBytes = patch.resumedBytes;
+    file.attempts = patch.attempts;
+    File out = File.createTempFile("mdm_patch_", ".part", ApkDownloader.directory(context));
+    try {
+      MessageDigest md = ApkDownloader.newDigest();
+      try (OutputStream os =
+          new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(out)), md)) {
+        ApkPatcher.apply(base, patch.file, os, ApkDownloader.MAX_APK_BYTES);
+      }
+      String actual = ApkDownloader.hex(md.digest());
+      if (!file.sha256.equalsIgnoreCase(actual)) {
+        throw new IOException(
+            "patch_result_sha256_mismatch expected=" + file.sha256 + " actual=" + actual);
+      }
+      file.file = ApkCache.put(context, out, actual);
+      file.actualSha256 = actual;
+      file.length = file.file.length();
+      file.patched = true;
+    } finally {
+      // the rebuilt APK is cached under its own digest; the patch is not needed again
+      //noinspection ResultOfMethodCallIgnored
+      out.delete();
+      //noinspection ResultOfMethodCallIgnored
+      patch.file.delete();
     }
-    return sb.toString();
-  }
-
-  private static IntentSender createInstallIntentSender(Context context, int sessionId) {
-    PendingIntent pendingIntent =
-        PendingIntent.getBroadcast(
-            context,
-            sessionId,
-            new Intent(PackageInstallationUtils.ACTION_INSTALL_COMPLETE),
-            PendingIntent.FLAG_IMMUTABLE);
-    return pendingIntent.getIntentSender();
   }
 
   private static final class DownloadedFile {
     String url;
     String kind;
     String sha256;
+    /** Expected size from the command, or -1. */
+    long size = -1;
     String actualSha256;
     String versionName;
     int versionCode;
     long downloadMs;
+    boolean cacheHit;
+    boolean streamed;
+    long resumedBytes;
+    int attempts;
     File file;
     long length;
+    /** Fields of a {@code kind:"patch"} file. */
+    long baseVersionCode = -1;
+    String baseSha256;
+    String patchSha256;
+    String patchFormat;
+    String fullUrl;
+    long patchBytes;
+    boolean patched;
+    String patchFallback;
+
+    boolean isPatch() {
+      return "patch".equalsIgnoreCase(kind);
+    }
   }
 
   private static void log(Context context, String reqId, String msg) {
@@ -1500,14 +2043,55 @@ public final class MdmSyncManager {
     }
   }
 
-  private static void maybePostInventory(Context context, JSONArray inventory, String requestId) {
-    if (inventory == null || inventory.length() == 0) {
-      return;
-    }
-    try {
-      MdmApiClient.postInventory(context, inventory, requestId);
-    } catch (Exception e) {
-      FileLogger.log(context, "Inventory upload failed reqId=" + requestId + " err=" + e.getMessage());
+  /**
+   * Uploads the inventory changes since the last accepted report: the full array when reconciling,
+   * otherwise only added, removed and changed packages. Called at most once per sync.
+   */
+  private static void reportInventory(SyncContext sync) throws JSONException {
+    Context context = sync.getContext();
+    String requestId = sync.getRequestId();
+    synchronized (INVENTORY_LOCK) {
+      JSONArray snapshot = sync.inventory();
+      if (snapshot.length() == 0) {
+        return;
+      }
+      JSONObject delta = InventoryStore.diff(context, snapshot);
+      boolean full = "full".equals(delta.optString("mode"));
+      if (!full && InventoryStore.isEmpty(delta)) {
+        log(context, requestId, "Inventory unchanged, nothing to upload");
+        return;
+      }
+      try {
+        if (full) {
+          MdmApiClient.postInventory(context, snapshot, requestId);
+        } else {
+          MdmApiClient.postInventoryDelta(context, delta, requestId);
+        }
+        InventoryStore.commit(context, snapshot, delta);
+        if (full) {
+          EventJournal.record(
+              context, "inventory", requestId, "mode", "full", "count", snapshot.length());
+        } else {
+          EventJournal.record(
+              context,
+              "inventory",
+              requestId,
+              "mode",
+              delta.optString("mode"),
+              "count",
+              snapshot.length(),
+              "added",
+              delta.optJSONArray("added").length(),
+              "removed",
+              delta.optJSONArray("removed").length(),
+              "changed",
+              delta.optJSONArray("changed").length());
+        }
+      } catch (Exception e) {
+        FileLogger.log(
+            context, "Inventory upload failed reqId=" + requestId + " err=" + e.getMessage());
+      }
     }
   }
+
 }
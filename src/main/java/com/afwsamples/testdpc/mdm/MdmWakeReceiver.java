@@ -18,6 +18,6 @@ public class MdmWakeReceiver extends BroadcastReceiver {
 
     Toast.makeText(context, "MDM wake-up received for " + deviceId, Toast.LENGTH_SHORT).show();
 
-    MdmSyncManager.syncNow(context.getApplicationContext(), null);
+    MdmSyncManager.syncNow(context.getApplicationContext(), "wake", null);
   }
 }
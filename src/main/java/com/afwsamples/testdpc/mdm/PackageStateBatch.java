@@ -0,0 +1,121 @@
+package com.afwsamples.testdpc.mdm;
+
+import android.app.admin.DevicePolicyManager;
+import android.content.ComponentName;
+import com.afwsamples.testdpc.FileLogger;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Applies one per-package DPM flag to many packages in a single pass. Duplicate names are
+ * collapsed, packages already in the requested state are not touched, and every package gets its
+ * own result entry.
+ */
+final class PackageStateBatch {
+
+  /** Per-package flag a batch sets. */
+  enum Flag {
+    HIDDEN("hidden"),
+    UNINSTALL_BLOCKED("blocked");
+
+    final String key;
+
+    Flag(String key) {
+      this.key = key;
+    }
+
+    boolean get(DevicePolicyManager dpm, ComponentName admin, String pkg) {
+      switch (this) {
+        case HIDDEN:
+          return dpm.isApplicationHidden(admin, pkg);
+        case UNINSTALL_BLOCKED:
+        default:
+          return dpm.isUninstallBlocked(admin, pkg);
+      }
+    }
+
+    /** Returns false if the platform reported that the call had no effect. */
+    boolean set(DevicePolicyManager dpm, ComponentName admin, String pkg, boolean value) {
+      switch (this) {
+        case HIDDEN:
+          return dpm.setApplicationHidden(admin, pkg, value);
+        case UNINSTALL_BLOCKED:
+        default:
+          dpm.setUninstallBlocked(admin, pkg, value);
+          return true;
+      }
+    }
+  }
+
+  /** Outcome of {@link #apply}. */
+  static final class Result {
+    final JSONArray packages = new JSONArray();
+    final Set<String> changed = new LinkedHashSet<>();
+    int skipped;
+    int failed;
+
+    boolean allOk() {
+      return failed == 0;
+    }
+  }
+
+  private PackageStateBatch() {}
+
+  /** Sets {@code flag} to {@code value} on every package in {@code pkgs}. */
+  static Result apply(SyncContext sync, Flag flag, List<String> pkgs, boolean value)
+      throws JSONException {
+    DevicePolicyManager dpm = sync.getDpm();
+    ComponentName admin = sync.getAdmin();
+    Result result = new Result();
+    for (String pkg : new LinkedHashSet<>(pkgs)) {
+      JSONObject entry = new JSONObject();
+      entry.put("package", pkg);
+      try {
+        if (flag.get(dpm, admin, pkg) == value) {
+          entry.put(flag.key, value);
+          entry.put("changed", false);
+          result.skipped++;
+        } else if (flag.set(dpm, admin, pkg, value)) {
+          entry.put(flag.key, value);
+          entry.put("changed", true);
+          result.changed.add(pkg);
+        } else {
+          entry.put(flag.key, !value);
+          entry.put("changed", false);
+          entry.put("message", "call returned false");
+          result.failed++;
+        }
+      } catch (Exception e) {
+        entry.put(flag.key, !value);
+        entry.put("changed", false);
+        entry.put("message", e.getMessage());
+        result.failed++;
+        FileLogger.log(
+            sync.getContext(),
+            "MdmSync " + flag.key + " batch error pkg=" + pkg + " err=" + e.getMessage());
+      }
+      result.packages.put(entry);
+    }
+    FileLogger.log(
+        sync.getContext(),
+        "MdmSync "
+            + flag.key
+            + "="
+            + value
+            + " batch reqId="
+            + sync.getRequestId()
+            + " requested="
+            + pkgs.size()
+            + " changed="
+            + result.changed.size()
+            + " skipped="
+            + result.skipped
+            + " failed="
+            + result.failed);
+    return result;
+  }
+}
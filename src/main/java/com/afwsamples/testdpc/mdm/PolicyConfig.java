@@ -25,6 +25,19 @@ public final class PolicyConfig {
         .apply();
   }
 
+  /** Saves only when etag or poll interval differ from what is stored; returns true if written. */
+  public static boolean savePolicyIfChanged(Context c, String json, String etag, int poll) {
+    SharedPreferences p = prefs(c);
+    if (etag != null
+        && etag.equals(p.getString(KEY_POLICY_ETAG, null))
+        && poll == p.getInt(KEY_POLL, 30)
+        && p.contains(KEY_POLICY_JSON)) {
+      return false;
+    }
+    savePolicy(c, json, etag, poll);
+    return true;
+  }
+
   public static String getPolicyJson(Context c) {
     return prefs(c).getString(KEY_POLICY_JSON, null);
   }
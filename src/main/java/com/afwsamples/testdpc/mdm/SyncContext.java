@@ -0,0 +1,76 @@
+package com.afwsamples.testdpc.mdm;
+
+import android.app.admin.DevicePolicyManager;
+import android.content.ComponentName;
+import android.content.Context;
+import com.afwsamples.testdpc.DeviceAdminReceiver;
+import java.util.Collections;
+import org.json.JSONArray;
+
+/**
+ * State shared by every command of one sync: system services are resolved once, the inventory
+ * snapshot is collected lazily and reused until a handler invalidates it, and package state changes
+ * are collected so the sync uploads a single inventory delta at the end.
+ */
+public final class SyncContext {
+  private final Context context;
+  private final String requestId;
+  private final DevicePolicyManager dpm;
+  private final ComponentName admin;
+  private JSONArray inventory;
+  private boolean inventoryChanged;
+
+  SyncContext(Context context, String requestId) {
+    this.context = context;
+    this.requestId = requestId;
+    this.dpm = (DevicePolicyManager) context.getSystemService(Context.DEVICE_POLICY_SERVICE);
+    this.admin = DeviceAdminReceiver.getComponentName(context);
+  }
+
+  public Context getContext() {
+    return context;
+  }
+
+  public String getRequestId() {
+    return requestId;
+  }
+
+  public DevicePolicyManager getDpm() {
+    return dpm;
+  }
+
+  public ComponentName getAdmin() {
+    return admin;
+  }
+
+  /** Returns the cached inventory snapshot, collecting it on first use. */
+  public synchronized JSONArray inventory() {
+    if (inventory == null) {
+      inventory = InventoryReporter.collect(context);
+    }
+    return inventory;
+  }
+
+  /** Drops the cached snapshot; call after a command changed installed package state. */
+  public synchronized void invalidateInventory() {
+    inventory = null;
+  }
+
+  /** Records that a command changed the given packages; the report is sent once per sync. */
+  public synchronized void markInventoryChanged(Iterable<String> packages) {
+    InventoryIndex.markDirty(packages);
+    inventory = null;
+    inventoryChanged = true;
+  }
+
+  public void markInventoryChanged(String pkg) {
+    markInventoryChanged(Collections.singletonList(pkg));
+  }
+
+  /** Returns whether any command changed inventory since the last call, and resets the flag. */
+  synchronized boolean takeInventoryChanged() {
+    boolean changed = inventoryChanged;
+    inventoryChanged = false;
+    return changed;
+  }
+}
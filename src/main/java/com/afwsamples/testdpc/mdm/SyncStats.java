@@ -0,0 +1,58 @@
+package com.afwsamples.testdpc.mdm;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/** Process-wide counters for sync triggers, sync runs and conditional policy fetches. */
+public final class SyncStats {
+  static final AtomicLong TRIGGERS_RECEIVED = new AtomicLong();
+  static final AtomicLong TRIGGERS_COALESCED = new AtomicLong();
+  static final AtomicLong SYNCS_EXECUTED = new AtomicLong();
+  static final AtomicLong POLICY_FETCHES = new AtomicLong();
+  static final AtomicLong POLICY_NOT_MODIFIED = new AtomicLong();
+
+  private SyncStats() {}
+
+  public static long getTriggersReceived() {
+    return TRIGGERS_RECEIVED.get();
+  }
+
+  public static long getTriggersCoalesced() {
+    return TRIGGERS_COALESCED.get();
+  }
+
+  public static long getSyncsExecuted() {
+    return SYNCS_EXECUTED.get();
+  }
+
+  public static long getPolicyFetches() {
+    return POLICY_FETCHES.get();
+  }
+
+  public static long getPolicyNotModified() {
+    return POLICY_NOT_MODIFIED.get();
+  }
+
+  /** Fraction of policy fetches answered with 304 Not Modified. */
+  public static double getPolicyHitRatio() {
+    long fetches = POLICY_FETCHES.get();
+    return fetches == 0 ? 0d : (double) POLICY_NOT_MODIFIED.get() / fetches;
+  }
+
+  public static JSONObject snapshot() {
+    JSONObject out = new JSONObject();
+    try {
+      out.put("triggers_received", getTriggersReceived());
+      out.put("triggers_coalesced", getTriggersCoalesced());
+      out.put("syncs_executed", getSyncsExecuted());
+      out.put("policy_fetches", getPolicyFetches());
+      out.put("policy_not_modified", getPolicyNotModified());
+      out.put("policy_hit_ratio", getPolicyHitRatio());
+      out.put("http", HttpTransport.metrics());
+    } catch (JSONException ignore) {
+      // best-effort
+    }
+    return out;
+  }
+}
@@ -2,6 +2,7 @@ package com.afwsamples.testdpc.provision;
 
 import android.content.Context;
 import android.content.pm.PackageInfo;
+import android.content.pm.PackageInstaller;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Handler;
@@ -9,23 +10,42 @@ import android.os.Looper;
 import android.widget.Toast;
 import com.afwsamples.testdpc.EnrolApiClient;
 import com.afwsamples.testdpc.FileLogger;
-import com.afwsamples.testdpc.common.PackageInstallationUtils;
 import com.afwsamples.testdpc.common.Util;
+import com.afwsamples.testdpc.mdm.ApkCache;
+import com.afwsamples.testdpc.mdm.HttpTransport;
+import com.afwsamples.testdpc.mdm.InstallTracker;
 import com.afwsamples.testdpc.mdm.MdmSyncManager;
-import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
-/** Installs baseline apps from apk_index_url, then enrols and triggers initial sync. */
+/**
+ * Installs baseline apps from apk_index_url while enrolling in parallel, then triggers the initial
+ * sync.
+ */
 public final class BaselineProvisioner {
   private static final String TAG = "BaselineProvisioner";
-  private static final int HTTP_TIMEOUT_MS = 15000;
   private static final AtomicBoolean RUNNING = new AtomicBoolean(false);
+  private static final int MAX_PARALLEL_DOWNLOADS = 3;
+  /** How long to wait, in total, for PackageInstaller to report the committed installs. */
+  private static final long INSTALL_RESULT_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(2);
 
   private BaselineProvisioner() {}
 
@@ -52,28 +72,18 @@ public final class BaselineProvisioner {
                         + apkIndexUrl
                         + " supportUrlPresent="
                         + (supportUrl != null));
-                boolean installsOk = fetchAndInstall(app, apkIndexUrl, supportUrl, requestId);
+                // enrolment does not depend on the baseline apps, so it runs alongside them
+                FutureTask<EnrolApiClient.EnrolResult> enrol = null;
                 if (enrolToken != null && !enrolToken.isEmpty()) {
-                  EnrolApiClient.EnrolResult result =
-                      EnrolApiClient.enrolBlocking(app, enrolToken);
-                  if (result.success) {
-                    FileLogger.log(
-                        app, TAG + " enrol ok reqId=" + requestId + " -> kicking off sync");
-                    MdmSyncManager.syncNow(app, null);
-                  } else {
-                    FileLogger.log(
-                        app,
-                        TAG
-                            + " enrol failed reqId="
-                            + requestId
-                            + " code="
-                            + result.responseCode
-                            + " msg="
-                            + result.errorMessage);
-                    notifySupport(app, supportUrl, "Enrol failed: " + result.errorMessage);
-                  }
+                  enrol = new FutureTask<>(() -> EnrolApiClient.enrolBlocking(app, enrolToken));
+                  new Thread(enrol, "baseline-enrol").start();
                 } else {
-                  FileLogger.log(app, TAG + " enrol token missing, skipping enrol reqId=" + requestId);
+                  FileLogger.log(
+                      app, TAG + " enrol token missing, skipping enrol reqId=" + requestId);
+                }
+                boolean installsOk = fetchAndInstall(app, apkIndexUrl, supportUrl, requestId);
+                if (enrol != null) {
+                  finishEnrol(app, enrol, supportUrl, requestId);
                 }
                 if (!installsOk) {
                   notifySupport(app, supportUrl, "Baseline install failures; check logs");
@@ -85,12 +95,103 @@ public final class BaselineProvisioner {
         .start();
   }
 
+  /**
+   * Waits for the concurrent enrol and kicks off the first sync. The sync starts only after the
+   * baseline installs finished, so its inventory already lists them.
+   */
+  private static void finishEnrol(
+      Context context,
+      FutureTask<EnrolApiClient.EnrolResult> enrol,
+      String supportUrl,
+      String requestId) {
+    EnrolApiClient.EnrolResult result;
+    try {
+      result = enrol.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    } catch (ExecutionException e) {
+      result = new EnrolApiClient.EnrolResult();
+      result.errorMessage = String.valueOf(e.getCause());
+    }
+    if (result.success) {
+      FileLogger.log(context, TAG + " enrol ok reqId=" + requestId + " -> kicking off sync");
+      MdmSyncManager.syncNow(context, "baseline", null);
+    } else {
+      FileLogger.log(
+          context,
+          TAG
+              + " enrol failed reqId="
+              + requestId
+              + " code="
+              + result.responseCode
+              + " msg="
+              + result.errorMessage);
+      notifySupport(context, supportUrl, "Enrol failed: " + result.errorMessage);
+    }
+  }
+
+  /** Outcome and timing of one baseline app, logged as part of the provisioning report. */
+  private static final class AppReport {
+    final String pkg;
+    final long versionCode;
+    final String url;
+    final String sha256;
+    String status = "pending";
+    boolean cacheHit;
+    long bytes;
+    long downloadMs;
+    long queuedMs;
+    long installMs;
+    String error;
+    long downloadedAt;
+    ApkCache.Entry apk;
+    /** Set once the install session is committed, until its result arrives. */
+    InstallTracker.Pending pending;
+
+    AppReport(String pkg, long versionCode, String url, String sha256) {
+      this.pkg = pkg;
+      this.versionCode = versionCode;
+      this.url = url;
+      this.sha256 = sha256;
+    }
+
+    JSONObject toJson() {
+      JSONObject o = new JSONObject();
+      try {
+        o.put("package", pkg);
+        o.put("version_code", versionCode);
+        o.put("status", status);
+        if (apk != null || downloadMs > 0) {
+          o.put("cache_hit", cacheHit);
+          o.put("bytes", bytes);
+          o.put("download_ms", downloadMs);
+          o.put("queued_ms", queuedMs);
+          o.put("install_ms", installMs);
+        }
+        if (error != null) {
+          o.put("error", error);
+        }
+      } catch (JSONException ignore) {
+        // fields are primitives
+      }
+      return o;
+    }
+  }
+
+  /**
+   * Downloads outdated apps on up to {@link #MAX_PARALLEL_DOWNLOADS} threads and installs each on
+   * this thread as soon as its download completes, so installs overlap the remaining downloads.
+   * Downloads go through {@link ApkCache}, which verifies the optional {@code sha256} of the index
+   * entry. An app counts as installed only once PackageInstaller reports success.
+   */
   private static boolean fetchAndInstall(
       Context context, String apkIndexUrl, String supportUrl, String requestId) {
     if (apkIndexUrl == null || apkIndexUrl.isEmpty()) {
       FileLogger.log(context, TAG + " no apk_index_url provided, skipping baseline install");
       return true;
     }
+    long start = System.currentTimeMillis();
     JSONObject index = downloadIndex(context, apkIndexUrl, requestId);
     if (index == null) {
       notifySupport(context, supportUrl, "Neuspjelo preuzimanje index.json");
@@ -101,7 +202,62 @@ public final class BaselineProvisioner {
       FileLogger.log(context, TAG + " no channel entries in index.json");
       return true;
     }
+    List<AppReport> reports = plan(context, channel);
+    List<AppReport> pending = new ArrayList<>();
+    for (AppReport r : reports) {
+      if ("pending".equals(r.status)) {
+        pending.add(r);
+      }
+    }
     boolean allOk = true;
+    if (!pending.isEmpty()) {
+      ExecutorService pool =
+          Executors.newFixedThreadPool(
+              Math.min(pending.size(), MAX_PARALLEL_DOWNLOADS),
+              r -> new Thread(r, "baseline-apk-fetch"));
+      ExecutorCompletionService<AppReport> completion = new ExecutorCompletionService<>(pool);
+      Map<Future<AppReport>, AppReport> submitted = new HashMap<>();
+      try {
+        for (AppReport r : pending) {
+          submitted.put(completion.submit(() -> download(context, r, requestId)), r);
+        }
+        for (int i = 0; i < pending.size(); i++) {
+          Future<AppReport> done = completion.take();
+          AppReport r = submitted.get(done);
+          try {
+            done.get();
+          } catch (ExecutionException e) {
+            // download() reports its own failures; anything else is a bug worth surfacing
+            r.status = "download_failed";
+            r.error = String.valueOf(e.getCause());
+            FileLogger.log(
+                context,
+                TAG + " pipeline error reqId=" + requestId + " pkg=" + r.pkg + " err=" + r.error);
+          }
+          if (r.apk == null || !install(context, r, requestId)) {
+            allOk = false;
+          }
+        }
+        if (!awaitInstalls(context, pending, requestId)) {
+          allOk = false;
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        allOk = false;
+      } finally {
+        pool.shutdownNow();
+      }
+    }
+    logReport(context, requestId, reports, System.currentTimeMillis() - start);
+    return allOk;
+  }
+
+  /**
+   * Turns channel entries into reports, keeping the highest {@code version_code} per package and
+   * marking apps whose installed version is already current as skipped.
+   */
+  private static List<AppReport> plan(Context context, JSONArray channel) {
+    Map<String, AppReport> byPackage = new LinkedHashMap<>();
     for (int i = 0; i < channel.length(); i++) {
       JSONObject entry = channel.optJSONObject(i);
       if (entry == null) {
@@ -114,107 +270,188 @@ public final class BaselineProvisioner {
         FileLogger.log(context, TAG + " skip invalid entry " + entry);
         continue;
       }
-      if (!isPackageOutdated(context, pkg, versionCode)) {
-        FileLogger.log(
-            context,
-            TAG
-                + " skip install reqId="
-                + requestId
-                + " pkg="
-                + pkg
-                + " version="
-                + versionCode
-                + " already present");
+      AppReport previous = byPackage.get(pkg);
+      if (previous == null || previous.versionCode < versionCode) {
+        String sha256 = entry.optString("sha256", null);
+        if (sha256 != null && sha256.isEmpty()) {
+          sha256 = null;
+        }
+        byPackage.put(pkg, new AppReport(pkg, versionCode, url, sha256));
+      }
+    }
+    for (AppReport r : byPackage.values()) {
+      if (!isPackageOutdated(context, r.pkg, r.versionCode)) {
+        r.status = "up_to_date";
+      }
+    }
+    return new ArrayList<>(byPackage.values());
+  }
+
+  private static AppReport download(Context context, AppReport r, String requestId) {
+    long start = System.currentTimeMillis();
+    r.apk = fetchApk(context, r.url, r.sha256, requestId);
+    r.downloadedAt = System.currentTimeMillis();
+    r.downloadMs = r.downloadedAt - start;
+    if (r.apk == null) {
+      r.status = "download_failed";
+      r.error = "download failed";
+    } else {
+      r.cacheHit = r.apk.hit;
+      r.bytes = r.apk.length;
+    }
+    return r;
+  }
+
+  private static boolean install(Context context, AppReport r, String requestId) {
+    long start = System.currentTimeMillis();
+    r.queuedMs = start - r.downloadedAt;
+    try {
+      r.pending = commit(context, r, start);
+      // the platform reports the outcome asynchronously; awaitInstalls collects it
+      r.status = "committed";
+      return true;
+    } catch (Exception e) {
+      r.status = "install_failed";
+      r.error = e.getMessage();
+      FileLogger.log(
+          context,
+          TAG + " install error reqId=" + requestId + " pkg=" + r.pkg + " err=" + e.getMessage());
+      return false;
+    } finally {
+      r.installMs = System.currentTimeMillis() - start;
+    }
+  }
+
+  /** Writes {@code r.apk} into a new install session and commits it, tracked by InstallTracker. */
+  private static InstallTracker.Pending commit(Context context, AppReport r, long startMs)
+      throws IOException {
+    PackageInstaller installer = context.getPackageManager().getPackageInstaller();
+    PackageInstaller.SessionParams params =
+        new PackageInstaller.SessionParams(PackageInstaller.SessionParams.MODE_FULL_INSTALL);
+    params.setAppPackageName(r.pkg);
+    int sessionId = installer.createSession(params);
+    PackageInstaller.Session session = installer.openSession(sessionId);
+    boolean committed = false;
+    try {
+      try (InputStream in = new FileInputStream(r.apk.file);
+          OutputStream out = session.openWrite("base.apk", 0, r.apk.length)) {
+        byte[] buffer = new byte[65536];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+          out.write(buffer, 0, read);
+        }
+        session.fsync(out);
+      }
+      InstallTracker.Pending pending =
+          InstallTracker.trackLocal(context, sessionId, r.pkg, startMs);
+      session.commit(pending.sender);
+      committed = true;
+      return pending;
+    } finally {
+      if (!committed) {
+        InstallTracker.untrack(context, sessionId);
+        session.abandon();
+      }
+      session.close();
+    }
+  }
+
+  /**
+   * Waits up to {@link #INSTALL_RESULT_TIMEOUT_MS} in total for the results of the committed
+   * installs and records them. Returns false if any install failed.
+   */
+  private static boolean awaitInstalls(Context context, List<AppReport> apps, String requestId)
+      throws InterruptedException {
+    boolean allOk = true;
+    long deadline = System.currentTimeMillis() + INSTALL_RESULT_TIMEOUT_MS;
+    for (AppReport r : apps) {
+      if (r.pending == null) {
         continue;
       }
-      DownloadHandle handle = downloadApk(context, url, requestId);
-      if (handle == null) {
-        allOk = false;
+      InstallTracker.Result result =
+          r.pending.await(Math.max(0L, deadline - System.currentTimeMillis()));
+      r.pending = null;
+      if (result == null) {
+        // still running; the status stays "committed" and the next inventory shows the outcome
+        r.error = "no install result within " + INSTALL_RESULT_TIMEOUT_MS + "ms";
         continue;
       }
-      try {
-        PackageInstallationUtils.installPackage(context, handle.stream, pkg);
-        FileLogger.log(
-            context,
-            TAG + " install invoked reqId=" + requestId + " pkg=" + pkg + " url=" + url);
-      } catch (Exception e) {
+      if (result.latencyMs >= 0) {
+        r.installMs = result.latencyMs;
+      }
+      if (result.isSuccess()) {
+        r.status = "installed";
+      } else {
+        r.status = "install_failed";
+        r.error = InstallTracker.errorOf(result);
         allOk = false;
         FileLogger.log(
             context,
-            TAG
-                + " install error reqId="
-                + requestId
-                + " pkg="
-                + pkg
-                + " err="
-                + e.getMessage());
-      } finally {
-        handle.close();
+            TAG + " install error reqId=" + requestId + " pkg=" + r.pkg + " err=" + r.error);
       }
     }
     return allOk;
   }
 
+  private static void logReport(
+      Context context, String requestId, List<AppReport> reports, long wallMs) {
+    JSONArray apps = new JSONArray();
+    long downloadSum = 0;
+    long installSum = 0;
+    for (AppReport r : reports) {
+      apps.put(r.toJson());
+      downloadSum += r.downloadMs;
+      installSum += r.installMs;
+    }
+    FileLogger.log(
+        context,
+        TAG
+            + " report reqId="
+            + requestId
+            + " wall_ms="
+            + wallMs
+            + " download_sum_ms="
+            + downloadSum
+            + " install_sum_ms="
+            + installSum
+            + " apps="
+            + apps);
+  }
+
   private static JSONObject downloadIndex(Context context, String urlStr, String requestId) {
-    HttpURLConnection conn = null;
     try {
-      URL url = new URL(urlStr);
-      conn = (HttpURLConnection) url.openConnection();
-      conn.setConnectTimeout(HTTP_TIMEOUT_MS);
-      conn.setReadTimeout(HTTP_TIMEOUT_MS);
-      conn.setRequestMethod("GET");
-      conn.setRequestProperty("Accept", "application/json");
-      conn.setInstanceFollowRedirects(true);
-      conn.connect();
-      int code = conn.getResponseCode();
-      String body = readBody(conn, code);
+      HttpTransport.Response resp =
+          HttpTransport.execute(
+              new HttpTransport.Request("GET baseline index", urlStr)
+                  .header("Accept", "application/json"));
+      String body = resp.body;
       FileLogger.log(
           context,
           TAG
               + " index fetch reqId="
               + requestId
               + " code="
-              + code
+              + resp.code
               + " bodyLen="
               + (body == null ? 0 : body.length()));
-      if (code >= 200 && code < 300 && body != null) {
+      if (resp.isSuccessful() && body != null) {
         return new JSONObject(body);
       }
     } catch (Exception e) {
       FileLogger.log(
           context, TAG + " index fetch error reqId=" + requestId + " err=" + e.getMessage());
-    } finally {
-      if (conn != null) {
-        conn.disconnect();
-      }
     }
     return null;
   }
 
-  private static DownloadHandle downloadApk(Context context, String urlStr, String requestId) {
-    HttpURLConnection conn = null;
+  private static ApkCache.Entry fetchApk(
+      Context context, String urlStr, String sha256, String requestId) {
     try {
-      URL url = new URL(urlStr);
-      conn = (HttpURLConnection) url.openConnection();
-      conn.setConnectTimeout(HTTP_TIMEOUT_MS);
-      conn.setReadTimeout(30000);
-      conn.setInstanceFollowRedirects(true);
-      conn.setRequestProperty("Accept-Encoding", "identity");
-      conn.connect();
-      int code = conn.getResponseCode();
-      if (code >= 200 && code < 300) {
-        return new DownloadHandle(conn, conn.getInputStream());
-      }
-      FileLogger.log(
-          context,
-          TAG + " download failed reqId=" + requestId + " code=" + code + " url=" + urlStr);
+      return ApkCache.fetch(context, urlStr, sha256);
     } catch (Exception e) {
       FileLogger.log(
           context, TAG + " download error reqId=" + requestId + " url=" + urlStr + " err=" + e.getMessage());
     }
-    if (conn != null) {
-      conn.disconnect();
-    }
     return null;
   }
 
@@ -241,25 +478,6 @@ public final class BaselineProvisioner {
     }
   }
 
-  private static String readBody(HttpURLConnection conn, int code) {
-    try {
-      InputStream is = code >= 200 && code < 300 ? conn.getInputStream() : conn.getErrorStream();
-      if (is == null) {
-        return null;
-      }
-      BufferedReader br = new BufferedReader(new InputStreamReader(is));
-      StringBuilder sb = new StringBuilder();
-      String line;
-      while ((line = br.readLine()) != null) {
-        sb.append(line);
-      }
-      br.close();
-      return sb.toString();
-    } catch (Exception e) {
-      return null;
-    }
-  }
-
   private static void notifySupport(Context context, String supportUrl, String reason) {
     final Context app = context.getApplicationContext();
     FileLogger.log(app, TAG + " notify support: " + reason + " supportUrl=" + supportUrl);
@@ -270,24 +488,4 @@ public final class BaselineProvisioner {
     new Handler(Looper.getMainLooper())
         .post(() -> Toast.makeText(app, msg, Toast.LENGTH_LONG).show());
   }
-
-  private static final class DownloadHandle implements AutoCloseable {
-    private final HttpURLConnection connection;
-    private final InputStream stream;
-
-    DownloadHandle(HttpURLConnection connection, InputStream stream) {
-      this.connection = connection;
-      this.stream = stream;
-    }
-
-    @Override
-    public void close() {
-      try {
-        stream.close();
-      } catch (Exception ignore) {
-        // ignore
-      }
-      connection.disconnect();
-    }
-  }
 }
@@ -0,0 +1,137 @@
+package com.afwsamples.testdpc;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+import androidx.test.core.app.ApplicationProvider;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class EventJournalTest {
+
+  private final Context mContext = ApplicationProvider.getApplicationContext();
+
+  @Before
+  public void setUp() {
+    FileLogger.resetForTesting(mContext);
+    EventJournal.resetForTesting();
+  }
+
+  @After
+  public void tearDown() {
+    FileLogger.flush(1000);
+    EventJournal.resetForTesting();
+  }
+
+  @Test
+  public void forRequest_returnsOnlyThatRequestInOrder() {
+    EventJournal.record(mContext, "sync_start", "r1");
+    EventJournal.record(mContext, "sync_start", "r2");
+    EventJournal.record(mContext, "sync_end", "r1", "acks", 3, "ok", true);
+
+    List<EventJournal.Event> events = EventJournal.forRequest(mContext, "r1");
+
+    assertThat(typesOf(events)).containsExactly("sync_start", "sync_end").inOrder();
+    assertThat(events.get(1).fields).containsExactly("acks", "3", "ok", "true").inOrder();
+  }
+
+  @Test
+  public void scan_cutsTornLastRecord() throws IOException {
+    recordAndRestart("a", "b");
+    long valid = journal().length();
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(journal(), true))) {
+      // a record header promising more bytes than were written before the crash
+      out.writeInt(200);
+      out.writeLong(System.currentTimeMillis());
+      out.writeUTF("torn");
+    }
+
+    List<EventJournal.Event> events = EventJournal.forRequest(mContext, "r1");
+
+    assertThat(typesOf(events)).containsExactly("a", "b").inOrder();
+    assertThat(journal().length()).isEqualTo(valid);
+  }
+
+  @Test
+  public void scan_cutsRecordWithBadLength() throws IOException {
+    recordAndRestart("a");
+    long valid = journal().length();
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(journal(), true))) {
+      out.writeInt(-1);
+      out.write(new byte[64]);
+    }
+
+    assertThat(typesOf(EventJournal.forRequest(mContext, "r1"))).containsExactly("a");
+    assertThat(journal().length()).isEqualTo(valid);
+  }
+
+  @Test
+  public void scan_cutsHalfWrittenLengthPrefix() throws IOException {
+    recordAndRestart("a");
+    long valid = journal().length();
+    try (FileOutputStream out = new FileOutputStream(journal(), true)) {
+      out.write(new byte[] {0, 0});
+    }
+
+    assertThat(typesOf(EventJournal.forRequest(mContext, "r1"))).containsExactly("a");
+    assertThat(journal().length()).isEqualTo(valid);
+  }
+
+  @Test
+  public void record_afterTornTailAppendsReadableRecords() throws IOException {
+    recordAndRestart("a");
+    try (FileOutputStream out = new FileOutputStream(journal(), true)) {
+      out.write(new byte[] {0, 0, 1, 0, 7});
+    }
+    EventJournal.forRequest(mContext, "r1");
+
+    EventJournal.record(mContext, "b", "r1");
+    FileLogger.flush(1000);
+    EventJournal.resetForTesting();
+
+    assertThat(typesOf(EventJournal.forRequest(mContext, "r1")))
+        .containsExactly("a", "b")
+        .inOrder();
+  }
+
+  @Test
+  public void between_filtersByTime() {
+    long start = System.currentTimeMillis();
+    EventJournal.record(mContext, "a", null);
+    EventJournal.record(mContext, "b", "r1");
+
+    assertThat(EventJournal.between(mContext, start, Long.MAX_VALUE)).hasSize(2);
+    assertThat(EventJournal.between(mContext, 0, start)).isEmpty();
+  }
+
+  /** Records events for request r1 and forgets the index, as if the process restarted. */
+  private void recordAndRestart(String... types) {
+    for (String type : types) {
+      EventJournal.record(mContext, type, "r1");
+    }
+    FileLogger.flush(1000);
+    EventJournal.resetForTesting();
+  }
+
+  private File journal() {
+    return new File(mContext.getFilesDir(), "event_journal.bin");
+  }
+
+  private static List<String> typesOf(List<EventJournal.Event> events) {
+    List<String> types = new ArrayList<>();
+    for (EventJournal.Event e : events) {
+      types.add(e.type);
+    }
+    return types;
+  }
+}
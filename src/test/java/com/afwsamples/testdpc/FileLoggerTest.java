@@ -0,0 +1,179 @@
+package com.afwsamples.testdpc;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+import androidx.test.core.app.ApplicationProvider;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class FileLoggerTest {
+
+  private static final long MAX_FILE_BYTES = 1024L * 1024L;
+  private static final long BUDGET_BYTES = 8L * 1024L * 1024L;
+
+  private final Context mContext = ApplicationProvider.getApplicationContext();
+
+  @Before
+  public void setUp() {
+    FileLogger.resetForTesting(mContext);
+  }
+
+  @Test
+  public void tail_returnsLastLinesOldestFirst() {
+    for (int i = 0; i < 5; i++) {
+      FileLogger.log(mContext, "line " + i);
+    }
+
+    List<String> lines = FileLogger.tail(mContext, 3);
+
+    assertThat(lines).hasSize(3);
+    assertThat(lines.get(0)).endsWith(" line 2");
+    assertThat(lines.get(2)).endsWith(" line 4");
+  }
+
+  @Test
+  public void tail_spansReadBlocks() {
+    String padding = new String(new char[100]).replace('\0', 'x');
+    for (int i = 0; i < 300; i++) {
+      FileLogger.log(mContext, "line " + i + " " + padding);
+    }
+
+    List<String> lines = FileLogger.tail(mContext, 250);
+
+    assertThat(lines).hasSize(250);
+    assertThat(lines.get(0)).contains(" line 50 ");
+    assertThat(lines.get(249)).contains(" line 299 ");
+  }
+
+  @Test
+  public void tail_shortFileReturnsEverything() {
+    FileLogger.log(mContext, "only");
+
+    assertThat(FileLogger.tail(mContext, 10)).hasSize(1);
+  }
+
+  @Test
+  public void tail_nonPositiveCountIsEmpty() {
+    FileLogger.log(mContext, "only");
+
+    assertThat(FileLogger.tail(mContext, 0)).isEmpty();
+  }
+
+  @Test
+  public void log_rollsFullFileIntoGzip() throws IOException {
+    writeActive(System.currentTimeMillis(), MAX_FILE_BYTES);
+
+    FileLogger.log(mContext, "after roll");
+    FileLogger.flush(1000);
+
+    assertThat(rolled()).hasLength(1);
+    List<String> active = Files.readAllLines(activeFile().toPath(), StandardCharsets.UTF_8);
+    assertThat(active).hasSize(1);
+    assertThat(active.get(0)).endsWith(" after roll");
+  }
+
+  @Test
+  public void log_rollsFileOlderThanADay() throws IOException {
+    writeActive(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(2), 1000);
+
+    FileLogger.log(mContext, "after roll");
+    FileLogger.flush(1000);
+
+    assertThat(rolled()).hasLength(1);
+    assertThat(Files.readAllLines(activeFile().toPath(), StandardCharsets.UTF_8)).hasSize(1);
+  }
+
+  @Test
+  public void log_keepsRecentFileAppending() throws IOException {
+    writeActive(System.currentTimeMillis(), 1000);
+    long before = activeFile().length();
+
+    FileLogger.log(mContext, "appended");
+    FileLogger.flush(1000);
+
+    assertThat(rolled()).isEmpty();
+    assertThat(activeFile().length()).isGreaterThan(before);
+  }
+
+  @Test
+  public void tail_continuesIntoRolledFile() throws IOException {
+    writeActive(System.currentTimeMillis(), MAX_FILE_BYTES);
+    FileLogger.log(mContext, "after roll");
+
+    List<String> lines = FileLogger.tail(mContext, 2);
+
+    assertThat(lines).hasSize(2);
+    assertThat(lines.get(0)).endsWith(" old");
+    assertThat(lines.get(1)).endsWith(" after roll");
+  }
+
+  @Test
+  public void log_dropsOldestRolledFilesOverBudget() throws IOException {
+    File dir = mContext.getFilesDir();
+    byte[] chunk = new byte[3 * 1024 * 1024];
+    for (int i = 1; i <= 4; i++) {
+      try (FileOutputStream out =
+          new FileOutputStream(new File(dir, "provision_log-20200101-00000" + i + ".txt.gz"))) {
+        out.write(chunk);
+      }
+    }
+    writeActive(System.currentTimeMillis(), MAX_FILE_BYTES);
+
+    FileLogger.log(mContext, "after roll");
+    FileLogger.flush(1000);
+
+    File[] rolled = rolled();
+    long total = activeFile().length();
+    for (File f : rolled) {
+      total += f.length();
+    }
+    assertThat(total).isAtMost(BUDGET_BYTES);
+    assertThat(new File(dir, "provision_log-20200101-000001.txt.gz").exists()).isFalse();
+    // the file rolled just now is the newest and always kept
+    assertThat(rolled[rolled.length - 1].getName()).doesNotContain("20200101");
+  }
+
+  private File activeFile() {
+    return new File(mContext.getFilesDir(), "provision_log.txt");
+  }
+
+  private File[] rolled() {
+    File[] files =
+        mContext.getFilesDir().listFiles((d, name) -> name.startsWith("provision_log-"));
+    Arrays.sort(files);
+    return files;
+  }
+
+  /** Writes an active log of at most {@code size} bytes whose lines are stamped {@code timeMs}. */
+  private void writeActive(long timeMs, long size) throws IOException {
+    String stamp =
+        new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US).format(new Date(timeMs));
+    String line = stamp + " " + new String(new char[99]).replace('\0', 'x') + "\n";
+    String last = stamp + " old\n";
+    StringBuilder sb = new StringBuilder();
+    while (sb.length() + line.length() + last.length() <= size) {
+      sb.append(line);
+    }
+    sb.append(last);
+    try (FileOutputStream out = new FileOutputStream(activeFile())) {
+      out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+    // the writer may hold the file from an earlier test; make it reopen this one
+    FileLogger.resetForTesting(mContext);
+  }
+}
@@ -0,0 +1,78 @@
+package com.afwsamples.testdpc.lite;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.afwsamples.testdpc.lite.LiteMqttConfig.Broker;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class BrokerHealthTest {
+
+  private final Broker mFirst = new Broker("a.example", 443);
+  private final Broker mSecond = new Broker("b.example", 443);
+  private final Broker mThird = new Broker("c.example", 8443);
+  private final List<Broker> mConfigured = Arrays.asList(mFirst, mSecond, mThird);
+  private final BrokerHealth mHealth = new BrokerHealth();
+
+  @Test
+  public void rank_withoutHistoryKeepsConfiguredOrder() {
+    assertThat(mHealth.rank(mConfigured)).containsExactly(mFirst, mSecond, mThird).inOrder();
+  }
+
+  @Test
+  public void rank_slightlyFasterLaterBrokerDoesNotWin() {
+    mHealth.recordSuccess(mFirst, 300);
+    mHealth.recordSuccess(mSecond, 200);
+
+    assertThat(mHealth.rank(mConfigured).get(0)).isSameInstanceAs(mFirst);
+  }
+
+  @Test
+  public void rank_clearlyFasterLaterBrokerWins() {
+    mHealth.recordSuccess(mFirst, 2000);
+    mHealth.recordSuccess(mSecond, 100);
+    mHealth.recordSuccess(mThird, 2000);
+
+    assertThat(mHealth.rank(mConfigured)).containsExactly(mSecond, mFirst, mThird).inOrder();
+  }
+
+  @Test
+  public void rank_failingBrokerMovesBack() {
+    mHealth.recordSuccess(mFirst, 100);
+    mHealth.recordSuccess(mSecond, 100);
+    mHealth.recordFailure(mFirst);
+
+    assertThat(mHealth.rank(mConfigured)).containsExactly(mSecond, mThird, mFirst).inOrder();
+  }
+
+  @Test
+  public void rank_successClearsFailures() {
+    mHealth.recordFailure(mFirst);
+    mHealth.recordSuccess(mFirst, 100);
+
+    assertThat(mHealth.rank(mConfigured).get(0)).isSameInstanceAs(mFirst);
+  }
+
+  @Test
+  public void rank_untriedBrokerAssumedAverage() {
+    // the first is slow; the untried third is assumed as fast as the average of the others
+    mHealth.recordSuccess(mFirst, 3000);
+    mHealth.recordSuccess(mSecond, 1000);
+
+    assertThat(mHealth.rank(mConfigured)).containsExactly(mSecond, mThird, mFirst).inOrder();
+  }
+
+  @Test
+  public void recordSuccess_smoothsLatency() throws Exception {
+    mHealth.recordSuccess(mFirst, 100);
+    mHealth.recordSuccess(mFirst, 1100);
+
+    // 0.3 * 1100 + 0.7 * 100
+    assertThat(mHealth.snapshot().getJSONObject("a.example:443").getLong("ewma_ms"))
+        .isEqualTo(400);
+  }
+}
@@ -0,0 +1,95 @@
+package com.afwsamples.testdpc.lite;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+import androidx.test.core.app.ApplicationProvider;
+import com.afwsamples.testdpc.lite.LiteMqttConfig.Broker;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class LiteMqttConfigTest {
+
+  private final Context mContext = ApplicationProvider.getApplicationContext();
+  private final LiteMqttConfig mConfig = new LiteMqttConfig(mContext);
+
+  @Test
+  public void getBrokers_defaultsToDefaultHost() {
+    assertThat(names(mConfig.getBrokers()))
+        .containsExactly(LiteMqttConfig.DEFAULT_HOST + ":" + LiteMqttConfig.DEFAULT_PORT);
+  }
+
+  @Test
+  public void getBrokers_singleHostUsesPortSetting() {
+    mConfig.setHost("mqtt.example");
+    mConfig.setPort(8883);
+
+    assertThat(names(mConfig.getBrokers())).containsExactly("mqtt.example:8883");
+  }
+
+  @Test
+  public void getBrokers_listKeepsOrderAndOwnPorts() {
+    mConfig.setHost(" a.example:1883, b.example ,c.example:9001");
+    mConfig.setPort(443);
+
+    assertThat(names(mConfig.getBrokers()))
+        .containsExactly("a.example:1883", "b.example:443", "c.example:9001")
+        .inOrder();
+  }
+
+  @Test
+  public void getBrokers_skipsEmptyEntries() {
+    mConfig.setHost("a.example,, ,b.example");
+
+    assertThat(names(mConfig.getBrokers())).hasSize(2);
+  }
+
+  @Test
+  public void getBrokers_onlySeparatorsFallsBackToDefaultHost() {
+    mConfig.setHost(" , ");
+
+    assertThat(mConfig.getBrokers().get(0).host).isEqualTo(LiteMqttConfig.DEFAULT_HOST);
+  }
+
+  @Test
+  public void getBrokers_nonNumericPortStaysInHost() {
+    mConfig.setHost("a.example:mqtt");
+    mConfig.setPort(443);
+
+    Broker broker = mConfig.getBrokers().get(0);
+    assertThat(broker.host).isEqualTo("a.example:mqtt");
+    assertThat(broker.port).isEqualTo(443);
+  }
+
+  @Test
+  public void getBrokers_ipv6LiteralIsNotSplit() {
+    mConfig.setHost("fd00::1");
+    mConfig.setPort(443);
+
+    Broker broker = mConfig.getBrokers().get(0);
+    assertThat(broker.host).isEqualTo("fd00::1");
+    assertThat(broker.port).isEqualTo(443);
+  }
+
+  @Test
+  public void clientFingerprint_changesWithBrokers() {
+    mConfig.setHost("a.example");
+    String before = mConfig.clientFingerprint();
+
+    mConfig.setHost("a.example,b.example");
+
+    assertThat(mConfig.clientFingerprint()).isNotEqualTo(before);
+  }
+
+  private static List<String> names(List<Broker> brokers) {
+    List<String> out = new ArrayList<>();
+    for (Broker b : brokers) {
+      out.add(b.toString());
+    }
+    return out;
+  }
+}
@@ -0,0 +1,215 @@
+package com.afwsamples.testdpc.mdm;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+import androidx.test.core.app.ApplicationProvider;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class AckOutboxTest {
+
+  private final Context mContext = ApplicationProvider.getApplicationContext();
+
+  @Before
+  public void setUp() {
+    AckOutbox.resetForTesting();
+    outboxFile().delete();
+  }
+
+  @After
+  public void tearDown() {
+    AckOutbox.resetForTesting();
+  }
+
+  @Test
+  public void idempotencyKey_prefersQid() throws Exception {
+    assertThat(AckOutbox.idempotencyKey(ack(7, "q-1", null))).isEqualTo("qid:q-1");
+  }
+
+  @Test
+  public void idempotencyKey_fallsBackToId() throws Exception {
+    assertThat(AckOutbox.idempotencyKey(ack(7, null, null))).isEqualTo("id:7");
+    assertThat(AckOutbox.idempotencyKey(ack(7, "", null))).isEqualTo("id:7");
+  }
+
+  @Test
+  public void idempotencyKey_phaseGetsOwnKey() throws Exception {
+    assertThat(AckOutbox.idempotencyKey(ack(7, "q-1", "install_result")))
+        .isEqualTo("qid:q-1#install_result");
+  }
+
+  @Test
+  public void idempotencyKey_nullWithoutQidOrId() {
+    assertThat(AckOutbox.idempotencyKey(new JSONObject())).isNull();
+  }
+
+  @Test
+  public void append_sameKeyKeepsLatestAtEnd() throws Exception {
+    AckOutbox.append(mContext, ack(1, null, null).put("success", false));
+    AckOutbox.append(mContext, ack(2, null, null));
+    AckOutbox.append(mContext, ack(1, null, null).put("success", true));
+
+    List<JSONObject> pending = AckOutbox.pending(mContext);
+
+    assertThat(keysOf(pending)).containsExactly("id:2", "id:1").inOrder();
+    assertThat(pending.get(1).optBoolean("success")).isTrue();
+  }
+
+  @Test
+  public void append_followUpDoesNotReplaceOriginal() throws Exception {
+    AckOutbox.append(mContext, ack(1, null, null));
+    AckOutbox.append(mContext, ack(1, null, "install_result"));
+
+    assertThat(keysOf(AckOutbox.pending(mContext)))
+        .containsExactly("id:1", "id:1#install_result")
+        .inOrder();
+  }
+
+  @Test
+  public void append_withoutKeyIsIgnored() {
+    AckOutbox.append(mContext, new JSONObject());
+
+    assertThat(AckOutbox.pending(mContext)).isEmpty();
+  }
+
+  @Test
+  public void pending_survivesReload() throws Exception {
+    AckOutbox.append(mContext, ack(1, null, null));
+    AckOutbox.append(mContext, ack(2, "q-2", null));
+    AckOutbox.sync(mContext);
+
+    AckOutbox.resetForTesting();
+
+    assertThat(keysOf(AckOutbox.pending(mContext))).containsExactly("id:1", "qid:q-2").inOrder();
+  }
+
+  @Test
+  public void reload_dedupesRepeatedKeys() throws Exception {
+    AckOutbox.append(mContext, ack(1, null, null).put("success", false));
+    AckOutbox.append(mContext, ack(1, null, null).put("success", true));
+    AckOutbox.sync(mContext);
+
+    AckOutbox.resetForTesting();
+
+    List<JSONObject> pending = AckOutbox.pending(mContext);
+    assertThat(keysOf(pending)).containsExactly("id:1");
+    assertThat(pending.get(0).optBoolean("success")).isTrue();
+  }
+
+  @Test
+  public void reload_skipsTornLastLine() throws Exception {
+    AckOutbox.append(mContext, ack(1, null, null));
+    AckOutbox.sync(mContext);
+    AckOutbox.resetForTesting();
+    try (FileOutputStream out = new FileOutputStream(outboxFile(), true)) {
+      out.write("{\"id\":2,\"idempotency_key\":\"id:".getBytes(StandardCharsets.UTF_8));
+    }
+
+    assertThat(keysOf(AckOutbox.pending(mContext))).containsExactly("id:1");
+  }
+
+  @Test
+  public void remove_compactsFile() throws Exception {
+    for (int i = 1; i <= 3; i++) {
+      AckOutbox.append(mContext, ack(i, null, null));
+    }
+    AckOutbox.sync(mContext);
+
+    int removed = AckOutbox.remove(mContext, Arrays.asList("id:1", "id:3", "id:9"));
+
+    assertThat(removed).isEqualTo(2);
+    assertThat(Files.readAllLines(outboxFile().toPath())).hasSize(1);
+    AckOutbox.resetForTesting();
+    assertThat(keysOf(AckOutbox.pending(mContext))).containsExactly("id:2");
+  }
+
+  @Test
+  public void remove_lastAckDeletesFile() throws Exception {
+    AckOutbox.append(mContext, ack(1, null, null));
+    AckOutbox.sync(mContext);
+
+    AckOutbox.remove(mContext, Arrays.asList("id:1"));
+
+    assertThat(outboxFile().exists()).isFalse();
+    assertThat(AckOutbox.pending(mContext)).isEmpty();
+  }
+
+  @Test
+  public void confirm_removesAckedKeys() throws Exception {
+    AckOutbox.append(mContext, ack(1, null, null));
+    AckOutbox.append(mContext, ack(2, null, null));
+
+    int confirmed = AckOutbox.confirm(mContext, new JSONArray().put("id:2"));
+
+    assertThat(confirmed).isEqualTo(1);
+    assertThat(keysOf(AckOutbox.pending(mContext))).containsExactly("id:1");
+  }
+
+  @Test
+  public void append_overCapDropsOldest() throws Exception {
+    for (int i = 0; i <= AckOutbox.MAX_PENDING; i++) {
+      AckOutbox.append(mContext, ack(i, null, null));
+    }
+
+    List<JSONObject> pending = AckOutbox.pending(mContext);
+
+    int kept = AckOutbox.MAX_PENDING * 9 / 10;
+    assertThat(pending).hasSize(kept);
+    assertThat(AckOutbox.idempotencyKey(pending.get(0)))
+        .isEqualTo("id:" + (AckOutbox.MAX_PENDING + 1 - kept));
+    assertThat(AckOutbox.idempotencyKey(pending.get(kept - 1)))
+        .isEqualTo("id:" + AckOutbox.MAX_PENDING);
+  }
+
+  @Test
+  public void peek_returnsOldestFirstUpToMax() throws Exception {
+    for (int i = 1; i <= 3; i++) {
+      AckOutbox.append(mContext, ack(i, null, null));
+    }
+
+    JSONArray peeked = AckOutbox.peek(mContext, 2);
+
+    assertThat(peeked.length()).isEqualTo(2);
+    assertThat(peeked.getJSONObject(0).getLong("id")).isEqualTo(1);
+    assertThat(peeked.getJSONObject(1).getLong("id")).isEqualTo(2);
+  }
+
+  private File outboxFile() {
+    return new File(mContext.getFilesDir(), "mdm_ack_outbox.jsonl");
+  }
+
+  private static JSONObject ack(long id, String qid, String phase) throws Exception {
+    JSONObject ack = new JSONObject();
+    ack.put("id", id);
+    ack.put("success", true);
+    if (qid != null) {
+      ack.put("qid", qid);
+    }
+    if (phase != null) {
+      ack.put("phase", phase);
+    }
+    return ack;
+  }
+
+  private static List<String> keysOf(List<JSONObject> acks) {
+    List<String> keys = new ArrayList<>();
+    for (JSONObject ack : acks) {
+      keys.add(ack.optString("idempotency_key"));
+    }
+    return keys;
+  }
+}
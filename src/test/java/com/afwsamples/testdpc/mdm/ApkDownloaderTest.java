@@ -0,0 +1,179 @@
+package com.afwsamples.testdpc.mdm;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+import androidx.test.core.app.ApplicationProvider;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class ApkDownloaderTest {
+
+  private static final String ETAG = "\"v1\"";
+
+  private final Context mContext = ApplicationProvider.getApplicationContext();
+  private final byte[] mApk = new byte[100_000];
+  private final List<String> mRanges = Collections.synchronizedList(new ArrayList<>());
+  private String mSha;
+  private HttpServer mServer;
+  private String mUrl;
+  /** Responses still to be cut off halfway through their body. */
+  private int mDrops;
+  private String mServedEtag = ETAG;
+  private long mDelayMs;
+
+  @Before
+  public void setUp() throws IOException {
+    for (int i = 0; i < mApk.length; i++) {
+      mApk[i] = (byte) (i * 31);
+    }
+    mSha = ApkDownloader.hex(ApkDownloader.newDigest().digest(mApk));
+    mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    mServer.createContext("/app.apk", this::serve);
+    mServer.start();
+    mUrl = "http://127.0.0.1:" + mServer.getAddress().getPort() + "/app.apk";
+  }
+
+  @After
+  public void tearDown() {
+    mServer.stop(0);
+  }
+
+  @Test
+  public void download_freshFetchesWholeFile() throws IOException {
+    ApkDownloader.Result result = ApkDownloader.download(mContext, mUrl, mSha);
+
+    assertThat(Files.readAllBytes(result.file.toPath())).isEqualTo(mApk);
+    assertThat(result.resumedBytes).isEqualTo(0);
+    assertThat(mRanges).containsExactly("none");
+  }
+
+  @Test
+  public void download_resumesEarlierPartialWithIfRange() throws IOException {
+    writePartial(40_000, ETAG);
+
+    ApkDownloader.Result result = ApkDownloader.download(mContext, mUrl, mSha);
+
+    assertThat(Files.readAllBytes(result.file.toPath())).isEqualTo(mApk);
+    assertThat(result.resumedBytes).isEqualTo(40_000);
+    assertThat(mRanges).containsExactly("bytes=40000- if-range=" + ETAG);
+  }
+
+  @Test
+  public void download_changedValidatorRestartsFromZero() throws IOException {
+    writePartial(40_000, ETAG);
+    mServedEtag = "\"v2\"";
+
+    ApkDownloader.Result result = ApkDownloader.download(mContext, mUrl, mSha);
+
+    assertThat(Files.readAllBytes(result.file.toPath())).isEqualTo(mApk);
+    assertThat(result.resumedBytes).isEqualTo(0);
+  }
+
+  @Test
+  public void download_retriesDroppedConnectionWithRange() throws IOException {
+    mDrops = 2;
+
+    ApkDownloader.Result result = ApkDownloader.download(mContext, mUrl, mSha);
+
+    assertThat(Files.readAllBytes(result.file.toPath())).isEqualTo(mApk);
+    assertThat(result.attempts).isEqualTo(3);
+    assertThat(mRanges).hasSize(3);
+    assertThat(mRanges.get(1)).startsWith("bytes=");
+    // the second ranged retry must not count the first one's prefix again
+    long firstOffset = Long.parseLong(mRanges.get(1).split("[=-]")[1]);
+    assertThat(result.resumedBytes).isEqualTo(firstOffset);
+  }
+
+  @Test
+  public void download_waitingCallerTakesTheCachedResult() throws Exception {
+    mDelayMs = 300;
+    ApkCache.Entry[] second = new ApkCache.Entry[1];
+    Thread other =
+        new Thread(
+            () -> {
+              try {
+                second[0] = ApkCache.fetch(mContext, mUrl, mSha);
+              } catch (IOException e) {
+                throw new AssertionError(e);
+              }
+            });
+
+    other.start();
+    ApkCache.Entry first = ApkCache.fetch(mContext, mUrl, mSha);
+    other.join();
+
+    assertThat(mRanges).hasSize(1);
+    assertThat(second[0].file).isEqualTo(first.file);
+    assertThat(first.hit || second[0].hit).isTrue();
+  }
+
+  private void serve(HttpExchange exchange) throws IOException {
+    String range = exchange.getRequestHeaders().getFirst("Range");
+    String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+    mRanges.add(range == null ? "none" : range + " if-range=" + ifRange);
+    if (mDelayMs > 0) {
+      // keeps the first download in flight while the other caller queues on the same digest
+      sleep(mDelayMs);
+    }
+    int from = 0;
+    if (range != null && mServedEtag.equals(ifRange)) {
+      from = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+    }
+    byte[] body = Arrays.copyOfRange(mApk, from, mApk.length);
+    exchange.getResponseHeaders().set("ETag", mServedEtag);
+    if (from > 0) {
+      exchange
+          .getResponseHeaders()
+          .set("Content-Range", "bytes " + from + "-" + (mApk.length - 1) + "/" + mApk.length);
+    }
+    exchange.sendResponseHeaders(from > 0 ? 206 : 200, body.length);
+    OutputStream out = exchange.getResponseBody();
+    try {
+      if (mDrops > 0) {
+        mDrops--;
+        out.write(body, 0, body.length / 2);
+        out.flush();
+      } else {
+        out.write(body);
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private static void sleep(long ms) {
+    try {
+      Thread.sleep(ms);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void writePartial(int length, String validator) throws IOException {
+    File dir = ApkDownloader.directory(mContext);
+    try (FileOutputStream out = new FileOutputStream(new File(dir, mSha + ".part"))) {
+      out.write(mApk, 0, length);
+    }
+    try (FileOutputStream out = new FileOutputStream(new File(dir, mSha + ".part.validator"))) {
+      out.write(validator.getBytes("UTF-8"));
+    }
+  }
+}
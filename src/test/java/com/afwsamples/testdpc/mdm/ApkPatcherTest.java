@@ -0,0 +1,164 @@
+package com.afwsamples.testdpc.mdm;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import android.content.Context;
+import androidx.test.core.app.ApplicationProvider;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class ApkPatcherTest {
+
+  private static final byte[] MAGIC = "ENDSLEY/BSDIFF43".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] OLD = "0123456789".getBytes(StandardCharsets.US_ASCII);
+
+  private final Context mContext = ApplicationProvider.getApplicationContext();
+  private File mBase;
+  private File mPatch;
+
+  @Before
+  public void setUp() throws IOException {
+    mBase = new File(mContext.getCacheDir(), "base.apk");
+    mPatch = new File(mContext.getCacheDir(), "update.patch");
+    write(mBase, OLD);
+  }
+
+  @Test
+  public void apply_rebuildsFromDiffExtraAndSeek() throws IOException {
+    // old[0..4) -> "0124", literal "XYZ", seek back 2, old[2..4) -> "2a"
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    offset(body, 9);
+    control(body, 4, 3, -2);
+    body.write(diff("0124", 0));
+    body.write("XYZ".getBytes(StandardCharsets.US_ASCII));
+    control(body, 2, 0, 0);
+    body.write(diff("2a", 2));
+    write(mPatch, patch(body.toByteArray()));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    long size = ApkPatcher.apply(mBase, mPatch, out, 1024);
+
+    assertThat(size).isEqualTo(9);
+    assertThat(new String(out.toByteArray(), StandardCharsets.US_ASCII)).isEqualTo("0124XYZ2a");
+  }
+
+  @Test
+  public void apply_rejectsBadMagic() throws IOException {
+    byte[] data = patch(new byte[8]);
+    data[0] = 'X';
+    write(mPatch, data);
+
+    IOException e =
+        assertThrows(
+            IOException.class,
+            () -> ApkPatcher.apply(mBase, mPatch, new ByteArrayOutputStream(), 1024));
+    assertThat(e).hasMessageThat().isEqualTo("patch_bad_magic");
+  }
+
+  @Test
+  public void apply_rejectsSizeOverLimit() throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    offset(body, 2048);
+    write(mPatch, patch(body.toByteArray()));
+
+    IOException e =
+        assertThrows(
+            IOException.class,
+            () -> ApkPatcher.apply(mBase, mPatch, new ByteArrayOutputStream(), 1024));
+    assertThat(e).hasMessageThat().startsWith("patch_bad_size");
+  }
+
+  @Test
+  public void apply_rejectsControlPastNewSize() throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    offset(body, 4);
+    control(body, 4, 1, 0);
+    write(mPatch, patch(body.toByteArray()));
+
+    IOException e =
+        assertThrows(
+            IOException.class,
+            () -> ApkPatcher.apply(mBase, mPatch, new ByteArrayOutputStream(), 1024));
+    assertThat(e).hasMessageThat().startsWith("patch_corrupt");
+  }
+
+  @Test
+  public void apply_rejectsTruncatedPatch() throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    offset(body, 4);
+    control(body, 4, 0, 0);
+    body.write(diff("01", 0));
+    write(mPatch, patch(body.toByteArray()));
+
+    IOException e =
+        assertThrows(
+            IOException.class,
+            () -> ApkPatcher.apply(mBase, mPatch, new ByteArrayOutputStream(), 1024));
+    assertThat(e).hasMessageThat().isEqualTo("patch_truncated");
+  }
+
+  @Test
+  public void baseApk_missingPackageIsMismatch() {
+    ApkPatcher.BaseMismatchException e =
+        assertThrows(
+            ApkPatcher.BaseMismatchException.class,
+            () -> ApkPatcher.baseApk(mContext, "com.example.missing", 1, null));
+    assertThat(e).hasMessageThat().isEqualTo("base_not_installed");
+  }
+
+  /** Bytes that turn {@code OLD} from {@code oldPos} into {@code target} when added. */
+  private static byte[] diff(String target, int oldPos) {
+    byte[] t = target.getBytes(StandardCharsets.US_ASCII);
+    byte[] d = new byte[t.length];
+    for (int i = 0; i < t.length; i++) {
+      d[i] = (byte) (t[i] - OLD[oldPos + i]);
+    }
+    return d;
+  }
+
+  private static void control(OutputStream out, long diffLen, long extraLen, long seek)
+      throws IOException {
+    offset(out, diffLen);
+    offset(out, extraLen);
+    offset(out, seek);
+  }
+
+  /** Writes a bsdiff offset: 8 bytes little-endian, sign in the top bit. */
+  private static void offset(OutputStream out, long value) throws IOException {
+    long magnitude = Math.abs(value);
+    byte[] b = new byte[8];
+    for (int i = 0; i < 8; i++) {
+      b[i] = (byte) (magnitude >>> (8 * i));
+    }
+    if (value < 0) {
+      b[7] |= (byte) 0x80;
+    }
+    out.write(b);
+  }
+
+  private static byte[] patch(byte[] body) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(MAGIC);
+    try (GZIPOutputStream gz = new GZIPOutputStream(out)) {
+      gz.write(body);
+    }
+    return out.toByteArray();
+  }
+
+  private static void write(File file, byte[] data) throws IOException {
+    try (FileOutputStream out = new FileOutputStream(file)) {
+      out.write(data);
+    }
+  }
+}
@@ -0,0 +1,42 @@
+package com.afwsamples.testdpc.mdm;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class CommandRegistryTest {
+
+  private final CommandHandler mHandler = (sync, cmd, ack) -> ack.put("success", true);
+
+  @Test
+  public void lookup_ignoresCase() {
+    CommandRegistry.register("Test_Registry_Case", mHandler);
+
+    assertThat(CommandRegistry.lookup("test_registry_case")).isSameInstanceAs(mHandler);
+    assertThat(CommandRegistry.lookup("TEST_REGISTRY_CASE")).isSameInstanceAs(mHandler);
+  }
+
+  @Test
+  public void lookup_unknownTypeIsNull() {
+    assertThat(CommandRegistry.lookup("test_registry_unknown")).isNull();
+  }
+
+  @Test
+  public void lookup_nullOrEmptyTypeIsNull() {
+    assertThat(CommandRegistry.lookup(null)).isNull();
+    assertThat(CommandRegistry.lookup("")).isNull();
+  }
+
+  @Test
+  public void register_replacesEarlierHandler() {
+    CommandHandler other = (sync, cmd, ack) -> ack.put("success", false);
+    CommandRegistry.register("test_registry_replace", mHandler);
+
+    CommandRegistry.register("TEST_REGISTRY_REPLACE", other);
+
+    assertThat(CommandRegistry.lookup("test_registry_replace")).isSameInstanceAs(other);
+  }
+}
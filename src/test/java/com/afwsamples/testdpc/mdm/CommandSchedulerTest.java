@@ -0,0 +1,189 @@
+package com.afwsamples.testdpc.mdm;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class CommandSchedulerTest {
+
+  private final List<String> mRan = Collections.synchronizedList(new ArrayList<>());
+
+  @Test
+  public void laneFor_mapsTypes() throws Exception {
+    assertThat(CommandScheduler.laneFor(cmd(1, "install_apk_package", "a")))
+        .isEqualTo(CommandScheduler.Lane.NETWORK);
+    assertThat(CommandScheduler.laneFor(cmd(2, "WIPE", null)))
+        .isEqualTo(CommandScheduler.Lane.ORDERED);
+    assertThat(CommandScheduler.laneFor(cmd(3, "hide_app", "a")))
+        .isEqualTo(CommandScheduler.Lane.DPM);
+  }
+
+  @Test
+  public void packagesOf_readsSingleAndList() throws Exception {
+    JSONObject cmd = cmd(1, "hide_app", "a");
+    cmd.getJSONObject("payload").put("packages", new JSONArray().put("b").put("a").put(""));
+
+    assertThat(CommandScheduler.packagesOf(cmd)).containsExactly("a", "b").inOrder();
+  }
+
+  @Test
+  public void run_keepsInboxOrderWithinLane() throws Exception {
+    JSONArray acks =
+        CommandScheduler.run(
+            source(cmd(1, "hide_app", "a"), cmd(2, "suspend_app", "b"), cmd(3, "hide_app", "c")),
+            this::record,
+            CommandSchedulerTest::drop);
+
+    assertThat(mRan).containsExactly("1", "2", "3").inOrder();
+    assertThat(idsOf(acks)).containsExactly(1L, 2L, 3L).inOrder();
+  }
+
+  @Test
+  public void run_lanesDoNotWaitForEachOther() throws Exception {
+    CountDownLatch dpmRan = new CountDownLatch(1);
+    JSONArray acks =
+        CommandScheduler.run(
+            source(cmd(1, "install_apk_package", "a"), cmd(2, "hide_app", "b")),
+            cmd -> {
+              if (cmd.optLong("id") == 1) {
+                // only finishes if the DPM lane got past this slow download
+                await(dpmRan);
+                return record(cmd);
+              }
+              JSONObject ack = record(cmd);
+              dpmRan.countDown();
+              return ack;
+            },
+            CommandSchedulerTest::drop);
+
+    assertThat(mRan).containsExactly("2", "1").inOrder();
+    assertThat(idsOf(acks)).containsExactly(1L, 2L).inOrder();
+  }
+
+  @Test
+  public void run_samePackageWaitsAcrossLanes() throws Exception {
+    CountDownLatch unrelatedRan = new CountDownLatch(1);
+    CommandScheduler.run(
+        source(
+            cmd(1, "install_apk_package", "a"), cmd(2, "hide_app", "b"), cmd(3, "hide_app", "a")),
+        cmd -> {
+          if (cmd.optLong("id") == 1) {
+            await(unrelatedRan);
+          }
+          JSONObject ack = record(cmd);
+          if (cmd.optLong("id") == 2) {
+            unrelatedRan.countDown();
+          }
+          return ack;
+        },
+        CommandSchedulerTest::drop);
+
+    assertThat(mRan).containsExactly("2", "1", "3").inOrder();
+  }
+
+  @Test
+  public void run_reusesLaneThreadsAcrossBatches() throws Exception {
+    Set<Thread> threads = Collections.synchronizedSet(new HashSet<>());
+    for (int i = 0; i < 20; i++) {
+      CommandScheduler.run(
+          source(cmd(i, "hide_app", "a")),
+          cmd -> {
+            threads.add(Thread.currentThread());
+            return record(cmd);
+          },
+          CommandSchedulerTest::drop);
+    }
+
+    // a fresh executor per batch would have started 20 threads
+    assertThat(threads.size()).isLessThan(5);
+  }
+
+  @Test
+  public void run_skipsNullAcks() throws Exception {
+    JSONArray acks =
+        CommandScheduler.run(
+            source(cmd(1, "hide_app", "a"), cmd(2, "hide_app", "b")),
+            cmd -> cmd.optLong("id") == 1 ? null : record(cmd),
+            CommandSchedulerTest::drop);
+
+    assertThat(idsOf(acks)).containsExactly(2L);
+  }
+
+  @Test
+  public void run_sourceFailureStillCompletesDispatched() throws Exception {
+    Iterator<JSONObject> commands = Arrays.asList(cmd(1, "hide_app", "a")).iterator();
+    CommandScheduler.CommandSource failing =
+        () -> {
+          if (commands.hasNext()) {
+            return commands.next();
+          }
+          throw new IOException("stream cut");
+        };
+
+    assertThrows(
+        IOException.class,
+        () -> CommandScheduler.run(failing, this::record, CommandSchedulerTest::drop));
+    assertThat(mRan).containsExactly("1");
+  }
+
+  private JSONObject record(JSONObject cmd) {
+    mRan.add(String.valueOf(cmd.optLong("id")));
+    JSONObject ack = new JSONObject();
+    try {
+      ack.put("id", cmd.optLong("id"));
+      ack.put("success", true);
+    } catch (Exception e) {
+      throw new AssertionError(e);
+    }
+    return ack;
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static JSONObject drop(JSONObject cmd, String reason) {
+    throw new AssertionError("dropped " + cmd + " reason=" + reason);
+  }
+
+  private static CommandScheduler.CommandSource source(JSONObject... commands) {
+    Iterator<JSONObject> it = Arrays.asList(commands).iterator();
+    return () -> it.hasNext() ? it.next() : null;
+  }
+
+  private static JSONObject cmd(long id, String type, String pkg) throws Exception {
+    JSONObject payload = new JSONObject();
+    if (pkg != null) {
+      payload.put("package", pkg);
+    }
+    return new JSONObject().put("id", id).put("type", type).put("payload", payload);
+  }
+
+  private static List<Long> idsOf(JSONArray acks) {
+    List<Long> ids = new ArrayList<>();
+    for (int i = 0; i < acks.length(); i++) {
+      ids.add(acks.optJSONObject(i).optLong("id"));
+    }
+    return ids;
+  }
+}
@@ -0,0 +1,165 @@
+package com.afwsamples.testdpc.mdm;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class HttpTransportTest {
+
+  private static final String REPLY = "{\"ok\":true}";
+
+  private final List<String> mEncodings = Collections.synchronizedList(new ArrayList<>());
+  private final List<byte[]> mBodies = Collections.synchronizedList(new ArrayList<>());
+  private HttpServer mServer;
+  private String mUrl;
+  private boolean mRejectGzip;
+  private boolean mGzipReply;
+
+  @Before
+  public void setUp() throws IOException {
+    HttpTransport.resetForTesting();
+    mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    mServer.createContext("/ack", this::serve);
+    mServer.start();
+    mUrl = "http://127.0.0.1:" + mServer.getAddress().getPort() + "/ack";
+  }
+
+  @After
+  public void tearDown() {
+    mServer.stop(0);
+    HttpTransport.resetForTesting();
+  }
+
+  @Test
+  public void execute_decodesGzipResponse() throws IOException {
+    mGzipReply = true;
+
+    HttpTransport.Response response =
+        HttpTransport.execute(new HttpTransport.Request("GET /ack", mUrl));
+
+    assertThat(response.code).isEqualTo(200);
+    assertThat(response.body).isEqualTo(REPLY);
+  }
+
+  @Test
+  public void execute_compressesLargeJsonBody() throws IOException {
+    byte[] body = jsonOfSize(4096);
+
+    HttpTransport.execute(post(body));
+
+    assertThat(mEncodings).containsExactly("gzip");
+    assertThat(mBodies.get(0)).isEqualTo(body);
+  }
+
+  @Test
+  public void execute_sendsSmallJsonBodyAsIs() throws IOException {
+    byte[] body = jsonOfSize(100);
+
+    HttpTransport.execute(post(body));
+
+    assertThat(mEncodings).containsExactly("identity");
+    assertThat(mBodies.get(0)).isEqualTo(body);
+  }
+
+  @Test
+  public void execute_retries415Uncompressed() throws IOException {
+    mRejectGzip = true;
+    byte[] body = jsonOfSize(4096);
+
+    HttpTransport.Response response = HttpTransport.execute(post(body));
+
+    assertThat(response.code).isEqualTo(200);
+    assertThat(response.body).isEqualTo(REPLY);
+    assertThat(mEncodings).containsExactly("gzip", "identity").inOrder();
+    assertThat(mBodies.get(1)).isEqualTo(body);
+  }
+
+  @Test
+  public void execute_after415StopsCompressingRequests() throws IOException {
+    mRejectGzip = true;
+    HttpTransport.execute(post(jsonOfSize(4096)));
+    mEncodings.clear();
+
+    HttpTransport.Response response = HttpTransport.execute(post(jsonOfSize(4096)));
+
+    assertThat(response.code).isEqualTo(200);
+    assertThat(mEncodings).containsExactly("identity");
+  }
+
+  private HttpTransport.Request post(byte[] body) {
+    return new HttpTransport.Request("POST /ack", mUrl).method("POST").json(body);
+  }
+
+  private void serve(HttpExchange exchange) throws IOException {
+    try {
+      String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+      boolean gzip = "gzip".equals(encoding);
+      byte[] raw = readAll(exchange.getRequestBody());
+      if (gzip && mRejectGzip) {
+        mEncodings.add("gzip");
+        mBodies.add(null);
+        byte[] error = "unsupported".getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(415, error.length);
+        exchange.getResponseBody().write(error);
+        return;
+      }
+      mEncodings.add(gzip ? "gzip" : "identity");
+      mBodies.add(gzip ? readAll(new GZIPInputStream(new ByteArrayInputStream(raw))) : raw);
+      byte[] reply = REPLY.getBytes(StandardCharsets.UTF_8);
+      String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+      if (mGzipReply && accept != null && accept.contains("gzip")) {
+        reply = gzip(reply);
+        exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+      }
+      exchange.sendResponseHeaders(200, reply.length);
+      exchange.getResponseBody().write(reply);
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private static byte[] jsonOfSize(int size) {
+    char[] pad = new char[size - "{\"p\":\"\"}".length()];
+    Arrays.fill(pad, 'a');
+    return ("{\"p\":\"" + new String(pad) + "\"}").getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static byte[] gzip(byte[] data) throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    try (OutputStream gz = new GZIPOutputStream(bos)) {
+      gz.write(data);
+    }
+    return bos.toByteArray();
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    byte[] buf = new byte[8192];
+    int r;
+    while ((r = in.read(buf)) != -1) {
+      bos.write(buf, 0, r);
+    }
+    return bos.toByteArray();
+  }
+}
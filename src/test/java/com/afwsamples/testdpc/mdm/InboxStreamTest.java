@@ -0,0 +1,121 @@
+package com.afwsamples.testdpc.mdm;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class InboxStreamTest {
+
+  private HttpServer mServer;
+  private String mUrl;
+  private byte[] mBody;
+
+  @Before
+  public void setUp() throws IOException {
+    mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    mServer.createContext("/inbox", this::serve);
+    mServer.start();
+    mUrl = "http://127.0.0.1:" + mServer.getAddress().getPort() + "/inbox";
+  }
+
+  @After
+  public void tearDown() {
+    mServer.stop(0);
+  }
+
+  @Test
+  public void next_yieldsCommandsAndAcked() throws Exception {
+    mBody =
+        utf8(
+            "{\"cursor\":{\"skip\":[1,2]},\"results\":[{\"id\":1,\"type\":\"hide_app\"},7,"
+                + "{\"id\":2,\"payload\":{\"big\":12345678901}}],\"acked\":[\"k1\",\"k2\"]}");
+
+    try (InboxStream inbox = open()) {
+      JSONObject first = inbox.next();
+      JSONObject second = inbox.next();
+
+      assertThat(first.getInt("id")).isEqualTo(1);
+      assertThat(first.getString("type")).isEqualTo("hide_app");
+      assertThat(second.getJSONObject("payload").getLong("big")).isEqualTo(12345678901L);
+      assertThat(inbox.next()).isNull();
+      assertThat(inbox.next()).isNull();
+      assertThat(inbox.getCount()).isEqualTo(2);
+      assertThat(inbox.hasResults()).isTrue();
+      assertThat(inbox.getAcked().length()).isEqualTo(2);
+      assertThat(inbox.getBytesRead()).isEqualTo(mBody.length);
+    }
+  }
+
+  @Test
+  public void next_withoutResultsEndsImmediately() throws Exception {
+    mBody = utf8("{\"acked\":[]}");
+
+    try (InboxStream inbox = open()) {
+      assertThat(inbox.next()).isNull();
+      assertThat(inbox.hasResults()).isFalse();
+    }
+  }
+
+  @Test
+  public void next_tornBodyFailsAfterCompleteCommands() throws Exception {
+    mBody = utf8("{\"results\":[{\"id\":1},{\"id\":2,\"payload\":{\"pack");
+
+    try (InboxStream inbox = open()) {
+      assertThat(inbox.next().getInt("id")).isEqualTo(1);
+      assertThrows(IOException.class, inbox::next);
+    }
+  }
+
+  @Test
+  public void next_bodyOverCapFails() throws Exception {
+    byte[] filler = new byte[(int) InboxStream.MAX_BODY_BYTES];
+    Arrays.fill(filler, (byte) 'x');
+    mBody =
+        utf8(
+            "{\"results\":[{\"id\":1}],\"padding\":\""
+                + new String(filler, StandardCharsets.US_ASCII)
+                + "\"}");
+
+    try (InboxStream inbox = open()) {
+      assertThat(inbox.next().getInt("id")).isEqualTo(1);
+      IOException e = assertThrows(IOException.class, inbox::next);
+      assertThat(e).hasMessageThat().contains("exceeds");
+    }
+  }
+
+  private InboxStream open() throws IOException {
+    return new InboxStream(
+        HttpTransport.open(new HttpTransport.Request("POST /inbox", mUrl).method("POST")));
+  }
+
+  private void serve(HttpExchange exchange) throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(200, mBody.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(mBody);
+    } catch (IOException e) {
+      // the client stops reading once the cap is hit
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private static byte[] utf8(String s) {
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+}
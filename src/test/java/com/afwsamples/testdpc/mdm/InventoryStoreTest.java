@@ -0,0 +1,123 @@
+package com.afwsamples.testdpc.mdm;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+import androidx.test.core.app.ApplicationProvider;
+import java.io.File;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class InventoryStoreTest {
+
+  private final Context mContext = ApplicationProvider.getApplicationContext();
+
+  @Before
+  public void setUp() {
+    InventoryStore.resetForTesting();
+    new File(mContext.getFilesDir(), "mdm_inventory_baseline.json").delete();
+  }
+
+  @After
+  public void tearDown() {
+    InventoryStore.resetForTesting();
+  }
+
+  @Test
+  public void fingerprint_stableForSameEntry() throws Exception {
+    assertThat(InventoryStore.fingerprint(app("a", 1, false)))
+        .isEqualTo(InventoryStore.fingerprint(app("a", 1, false)));
+  }
+
+  @Test
+  public void fingerprint_changesWithAnyField() throws Exception {
+    String base = InventoryStore.fingerprint(app("a", 1, false));
+
+    assertThat(InventoryStore.fingerprint(app("a", 2, false))).isNotEqualTo(base);
+    assertThat(InventoryStore.fingerprint(app("a", 1, true))).isNotEqualTo(base);
+  }
+
+  @Test
+  public void diff_withoutBaselineIsFull() throws Exception {
+    JSONArray snapshot = new JSONArray().put(app("a", 1, false));
+
+    JSONObject delta = InventoryStore.diff(mContext, snapshot);
+
+    assertThat(delta.getString("mode")).isEqualTo("full");
+    assertThat(delta.getJSONArray("packages").length()).isEqualTo(1);
+    assertThat(InventoryStore.isEmpty(delta)).isFalse();
+  }
+
+  @Test
+  public void diff_unchangedSnapshotIsEmptyDelta() throws Exception {
+    JSONArray snapshot = new JSONArray().put(app("a", 1, false)).put(app("b", 1, false));
+    commitFull(snapshot);
+
+    JSONObject delta = InventoryStore.diff(mContext, snapshot);
+
+    assertThat(delta.getString("mode")).isEqualTo("delta");
+    assertThat(InventoryStore.isEmpty(delta)).isTrue();
+  }
+
+  @Test
+  public void diff_reportsAddedRemovedAndChangedFields() throws Exception {
+    commitFull(new JSONArray().put(app("a", 1, false)).put(app("b", 1, false)));
+    JSONObject changedApp = app("a", 2, false);
+    changedApp.remove("hidden");
+
+    JSONObject delta =
+        InventoryStore.diff(mContext, new JSONArray().put(changedApp).put(app("c", 1, false)));
+
+    assertThat(delta.getString("mode")).isEqualTo("delta");
+    assertThat(delta.getJSONArray("added").getJSONObject(0).getString("package")).isEqualTo("c");
+    assertThat(delta.getJSONArray("removed").getString(0)).isEqualTo("b");
+    JSONObject changed = delta.getJSONArray("changed").getJSONObject(0);
+    assertThat(changed.getString("package")).isEqualTo("a");
+    assertThat(changed.getLong("version_code")).isEqualTo(2);
+    assertThat(changed.isNull("hidden")).isTrue();
+    assertThat(changed.has("label")).isFalse();
+  }
+
+  @Test
+  public void diff_baselineSurvivesReload() throws Exception {
+    JSONArray snapshot = new JSONArray().put(app("a", 1, false));
+    commitFull(snapshot);
+
+    InventoryStore.resetForTesting();
+
+    assertThat(InventoryStore.isEmpty(InventoryStore.diff(mContext, snapshot))).isTrue();
+  }
+
+  @Test
+  public void diff_afterReconcileIntervalIsFull() throws Exception {
+    JSONArray snapshot = new JSONArray().put(app("a", 1, false));
+    commitFull(snapshot);
+    long stale = System.currentTimeMillis() - InventoryStore.RECONCILE_INTERVAL_MS - 1000;
+    mContext
+        .getSharedPreferences("mdm_inventory", Context.MODE_PRIVATE)
+        .edit()
+        .putLong("last_full_upload_ms", stale)
+        .commit();
+
+    assertThat(InventoryStore.diff(mContext, snapshot).getString("mode")).isEqualTo("full");
+  }
+
+  private void commitFull(JSONArray snapshot) throws Exception {
+    InventoryStore.commit(mContext, snapshot, InventoryStore.diff(mContext, snapshot));
+  }
+
+  private static JSONObject app(String pkg, long versionCode, boolean hidden) throws Exception {
+    JSONObject entry = new JSONObject();
+    entry.put("package", pkg);
+    entry.put("label", pkg.toUpperCase());
+    entry.put("version_code", versionCode);
+    entry.put("hidden", hidden);
+    return entry;
+  }
+}
@@ -0,0 +1,106 @@
+package com.afwsamples.testdpc.mdm;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.app.admin.DevicePolicyManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import androidx.test.core.app.ApplicationProvider;
+import com.afwsamples.testdpc.DeviceAdminReceiver;
+import java.util.Arrays;
+import java.util.Collections;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class PackageStateBatchTest {
+
+  private final Context mContext = ApplicationProvider.getApplicationContext();
+  private final DevicePolicyManager mDpm =
+      (DevicePolicyManager) mContext.getSystemService(Context.DEVICE_POLICY_SERVICE);
+  private ComponentName mAdmin;
+  private SyncContext mSync;
+
+  @Before
+  public void setUp() {
+    mAdmin = DeviceAdminReceiver.getReceiverComponentName(mContext);
+    shadowOf(mDpm).setDeviceOwner(mAdmin);
+    for (String pkg : Arrays.asList("com.example.a", "com.example.b", "com.example.c")) {
+      PackageInfo info = new PackageInfo();
+      info.packageName = pkg;
+      shadowOf(mContext.getPackageManager()).installPackage(info);
+    }
+    mSync = new SyncContext(mContext, "req-1");
+  }
+
+  @Test
+  public void apply_collapsesDuplicateNames() throws Exception {
+    PackageStateBatch.Result result =
+        PackageStateBatch.apply(
+            mSync,
+            PackageStateBatch.Flag.HIDDEN,
+            Arrays.asList("com.example.a", "com.example.b", "com.example.a"),
+            true);
+
+    assertThat(result.packages.length()).isEqualTo(2);
+    assertThat(result.changed).containsExactly("com.example.a", "com.example.b").inOrder();
+    assertThat(result.allOk()).isTrue();
+    assertThat(mDpm.isApplicationHidden(mAdmin, "com.example.a")).isTrue();
+  }
+
+  @Test
+  public void apply_skipsPackagesAlreadyInState() throws Exception {
+    mDpm.setApplicationHidden(mAdmin, "com.example.a", true);
+
+    PackageStateBatch.Result result =
+        PackageStateBatch.apply(
+            mSync,
+            PackageStateBatch.Flag.HIDDEN,
+            Arrays.asList("com.example.a", "com.example.b"),
+            true);
+
+    assertThat(result.skipped).isEqualTo(1);
+    assertThat(result.changed).containsExactly("com.example.b");
+    JSONObject first = result.packages.getJSONObject(0);
+    assertThat(first.getBoolean("changed")).isFalse();
+    assertThat(first.getBoolean("hidden")).isTrue();
+  }
+
+  @Test
+  public void apply_countsCallsWithoutEffectAsFailed() throws Exception {
+    shadowOf(mDpm).failSetApplicationHiddenFor(Collections.singleton("com.example.c"));
+
+    PackageStateBatch.Result result =
+        PackageStateBatch.apply(
+            mSync,
+            PackageStateBatch.Flag.HIDDEN,
+            Arrays.asList("com.example.b", "com.example.c"),
+            true);
+
+    assertThat(result.failed).isEqualTo(1);
+    assertThat(result.allOk()).isFalse();
+    assertThat(result.changed).containsExactly("com.example.b");
+    JSONObject failed = result.packages.getJSONObject(1);
+    assertThat(failed.getBoolean("hidden")).isFalse();
+    assertThat(failed.getString("message")).isEqualTo("call returned false");
+  }
+
+  @Test
+  public void apply_setsUninstallBlocked() throws Exception {
+    PackageStateBatch.Result result =
+        PackageStateBatch.apply(
+            mSync,
+            PackageStateBatch.Flag.UNINSTALL_BLOCKED,
+            Arrays.asList("com.example.a", "com.example.a"),
+            true);
+
+    assertThat(result.changed).containsExactly("com.example.a");
+    assertThat(result.packages.getJSONObject(0).getBoolean("blocked")).isTrue();
+    assertThat(mDpm.isUninstallBlocked(mAdmin, "com.example.a")).isTrue();
+  }
+}